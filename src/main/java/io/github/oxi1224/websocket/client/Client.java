@@ -1,30 +1,29 @@
 package io.github.oxi1224.websocket.client;
 
-import java.io.BufferedInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.Method;
 import java.net.InetAddress;
 import java.net.Socket;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
 import java.util.ArrayList;
 import java.util.Base64;
 import java.util.HashMap;
-import java.util.List;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 import io.github.oxi1224.websocket.core.DataFrame;
 import io.github.oxi1224.websocket.core.DataReader;
 import io.github.oxi1224.websocket.core.DataWriter;
 import io.github.oxi1224.websocket.core.Opcode;
+import io.github.oxi1224.websocket.core.PerMessageDeflate;
+import io.github.oxi1224.websocket.core.SpilledMessage;
 import io.github.oxi1224.websocket.core.StatusCode;
 import io.github.oxi1224.websocket.json.JSONException;
 import io.github.oxi1224.websocket.json.JSONObject;
@@ -35,24 +34,34 @@ import io.github.oxi1224.websocket.messages.DefaultHandlerID;
 import io.github.oxi1224.websocket.shared.Constants;
 import io.github.oxi1224.websocket.shared.exceptions.ConnectionException;
 import io.github.oxi1224.websocket.shared.exceptions.InvalidConfigurationError;
-import io.github.oxi1224.websocket.shared.exceptions.InvalidHandlerError;
+import io.github.oxi1224.websocket.shared.exceptions.InvalidPayloadException;
+import io.github.oxi1224.websocket.shared.exceptions.MessageTooLargeException;
 import io.github.oxi1224.websocket.shared.exceptions.UnexpectedFrameException;
 import io.github.oxi1224.websocket.shared.exceptions.UsageError;
 import io.github.oxi1224.websocket.shared.http.HeaderMap;
 import io.github.oxi1224.websocket.shared.http.HttpRequest;
 import io.github.oxi1224.websocket.shared.http.HttpResponse;
-import io.github.oxi1224.websocket.shared.util.ClassScanner;
+import io.github.oxi1224.websocket.shared.util.HashedWheelTimer;
+import io.github.oxi1224.websocket.shared.util.ReadAheadInputStream;
+import io.github.oxi1224.websocket.shared.util.ThreadFactories;
 
 public class Client extends DataWriter {
   /** Whether or not to use regular websockets (no message identification) */
   private static boolean normalWebsocket = false;
   private static boolean jsonProtocol = true;
+  /** Negative if permessage-deflate is not offered */
+  private static int compressionMinSize = -1;
+  private static boolean compressionContextTakeover;
   private final Socket socket;
   private final InputStream in;
   private final DataReader reader;
-  private Timer timer;
+  private HashedWheelTimer timer = HashedWheelTimer.shared();
+  /** The pending close/ping timeout, null if none was started */
+  private volatile HashedWheelTimer.Timeout timeout;
   private String handlersPackageName;
   private HashMap<String, HandlerPair> handlers = new HashMap<String, HandlerPair>();
+  private ThreadFactory threadFactory = ThreadFactories.platform();
+  private boolean coalesceWrites = false;
   
   /**
    * Automatically performs the websocket handshake
@@ -80,22 +89,17 @@ public class Client extends DataWriter {
     if (!jsonProtocol) protocol = Constants.SUBPROTOCOL_NAME;
     if (normalWebsocket) protocol = null;
     if (protocol != null) headers.put(new HeaderMap.HeaderPair("Sec-WebSocket-Protocol", protocol));
+    int minSize = compressionMinSize;
+    boolean contextTakeover = compressionContextTakeover;
+    if (minSize >= 0) {
+      headers.put(new HeaderMap.HeaderPair("Sec-WebSocket-Extensions", PerMessageDeflate.offer(contextTakeover)));
+    }
     HttpRequest req = new HttpRequest("GET", "/", "1.1", headers, "");
     byte[] bytes = req.getBytes(); 
     socket.getOutputStream().write(bytes, 0, bytes.length);
-    in = (socket.getInputStream());
-
-    // Read the entire response before parsing
-    while (in.available() == 0) {
-      try {
-        Thread.sleep(100);
-      } catch (InterruptedException e) {
-        System.out.println("Client thread had been interrupted");
-        e.printStackTrace();
-        socket.close();
-        System.exit(1);
-      }
-    }
+    // Buffered so the response can be parsed byte by byte without reading into the first frame,
+    // frame headers are then parsed straight out of the buffer
+    in = new ReadAheadInputStream(socket.getInputStream());
 
     // Verify that the response is successful
     HttpResponse res = HttpResponse.parse(in);
@@ -123,7 +127,21 @@ public class Client extends DataWriter {
       throw new ConnectionException("The server has provided an invalid Sec-WebSocket-Accept key");
     }
 
-    reader = new DataReader(new BufferedInputStream(in));
+    reader = new DataReader(in);
+    reader.setControlFrameHandler(this::onInterleavedControlFrame);
+    if (minSize >= 0) {
+      PerMessageDeflate deflate;
+      try {
+        deflate = PerMessageDeflate.fromResponse(res.getHeader("Sec-WebSocket-Extensions"), minSize, contextTakeover);
+      } catch (IOException e) {
+        socket.close();
+        throw new ConnectionException(e.getMessage());
+      }
+      if (deflate != null) {
+        reader.setDeflate(deflate);
+        setDeflate(deflate);
+      }
+    }
   }
   
   /**
@@ -175,6 +193,23 @@ public class Client extends DataWriter {
   public static void enableJSON() {
     jsonProtocol = true;
   }
+
+  /**
+   * Offers permessage-deflate to the server on the next connections
+   * @param minSize - Messages shorter than this are sent uncompressed
+   * @param contextTakeover - Whether compression contexts are kept between messages, without it both sides
+   * are asked to reset them after every message
+   * @see PerMessageDeflate
+   */
+  public static void enableCompression(int minSize, boolean contextTakeover) {
+    if (minSize < 0) throw new InvalidConfigurationError("minSize may not be negative");
+    compressionMinSize = minSize;
+    compressionContextTakeover = contextTakeover;
+  }
+
+  public static void disableCompression() {
+    compressionMinSize = -1;
+  }
   
   /**
    * Sets the package name where all message handlers are located
@@ -190,31 +225,9 @@ public class Client extends DataWriter {
    * Collects all handlers extending MessageHandler with @Handler annotation
    */
   private void collectHandlers() {
-    List<Class<?>> found = ClassScanner.findAllWithAnnotation(Handler.class, handlersPackageName);
-    for (Class<?> c : found) {
-      if (!MessageHandler.class.isAssignableFrom(c)) throw new InvalidHandlerError(
-        String.format("Class %s uses @Handler annotation but does not implement MessageHandler interface", c.getName())
-      );
-      String msgID = c.getAnnotation(Handler.class).id();
-      if (handlers.containsKey(msgID)) throw new InvalidHandlerError("Duplicate handler ID " + msgID);
-      Method method;
-      try {
-        method = c.getMethod("onMessage", this.getClass());
-      } catch (NoSuchMethodException e) {
-        throw new InvalidHandlerError("Failed to find onMessage method on class %s" + c.getName());
-      }
-      try {
-        Object classInstance = c.getDeclaredConstructor().newInstance();
-        handlers.put(msgID, new HandlerPair(classInstance, method));
-      } catch (
-        InvocationTargetException | IllegalAccessException |
-        InstantiationException | NoSuchMethodException e
-      ) {
-        System.out.println("Exception when instantiating handler " + c.getName());
-        e.printStackTrace();
-      }
-    }
+    HandlerPair.collect(handlersPackageName, this.getClass(), handlers);
   }
+
   
   /**
    * Reads data until it receives a frame with FIN = 1
@@ -227,6 +240,21 @@ public class Client extends DataWriter {
       e.printStackTrace();
       close();
       return;
+    } catch (MessageTooLargeException e) {
+      // The rest of the message is still on the wire, waiting for the server's CLOSE is pointless
+      try {
+        write(true, Opcode.CLOSE, StatusCode.S_1009.toClosePayload("Message too big"));
+      } finally {
+        socket.close();
+      }
+      throw e;
+    } catch (InvalidPayloadException e) {
+      try {
+        write(true, Opcode.CLOSE, StatusCode.S_1007.toClosePayload("Invalid UTF-8"));
+      } finally {
+        socket.close();
+      }
+      throw e;
     }
     DataFrame refFrame = reader.getStartFrame();
     Opcode opcode = refFrame.getOpcode();
@@ -245,11 +273,11 @@ public class Client extends DataWriter {
       reader.read();
     } catch (UnexpectedFrameException e) {
       e.printStackTrace();
-      timer.cancel();
+      timeout.cancel();
       close();
       return;
     }
-    timer.cancel();
+    timeout.cancel();
     Opcode resOpcode = reader.getStartFrame().getOpcode();
     if (resOpcode != Opcode.PONG) socket.close();
     if (handlers.containsKey(DefaultHandlerID.PONG)) {
@@ -279,7 +307,7 @@ public class Client extends DataWriter {
     } catch (UnexpectedFrameException e) {
       e.printStackTrace();
     }
-    timer.cancel();
+    timeout.cancel();
     try {
       socket.close();
     } catch (IOException e) {}
@@ -305,10 +333,21 @@ public class Client extends DataWriter {
     } catch (UnexpectedFrameException e) {
       e.printStackTrace();
     }
-    timer.cancel();
+    timeout.cancel();
     socket.close();
   }
 
+  /**
+   * Handles a control frame received in the middle of a fragmented message, e.g. a heartbeat PING
+   */
+  private void onInterleavedControlFrame(DataFrame frame) throws IOException {
+    if (frame.getOpcode() == Opcode.PING) pong(frame.getPayload());
+    if (frame.getOpcode() == Opcode.PONG && handlers.containsKey(DefaultHandlerID.PONG)) {
+      handlers.get(DefaultHandlerID.PONG).invoke(this);
+    }
+    if (frame.getOpcode() == Opcode.CLOSE) onReceiveClose(frame);
+  }
+
   private void onReceiveClose(DataFrame frame) throws IOException {
     write(frame);
     socket.close();
@@ -318,37 +357,124 @@ public class Client extends DataWriter {
    * Starts the timeout timer which will close the connection after delay
    */
   private void startTimeoutTimer(long delay) {
-    timer = new Timer();
-    timer.schedule(new TimerTask() {
-      @Override
-      public void run() {
-        try {
-          write(true, Opcode.CLOSE, new byte[0]);
-          socket.close();
-        } catch (IOException err) {
-          System.out.println("Exception while closing connection");
-          err.printStackTrace();
-        }
+    timeout = timer.schedule(() -> {
+      try {
+        write(true, Opcode.CLOSE, new byte[0]);
+        socket.close();
+      } catch (IOException err) {
+        System.out.println("Exception while closing connection");
+        err.printStackTrace();
       }
-    }, delay); 
+    }, delay, TimeUnit.MILLISECONDS);
   }
   
+  /**
+   * Sets the factory used by {@link #listenInBackground()}
+   * @param factory - The factory to use
+   */
+  public void setThreadFactory(ThreadFactory factory) {
+    threadFactory = factory;
+  }
+
+  /**
+   * Sets the timer used for the close and ping timeouts, defaults to {@link HashedWheelTimer#shared()}
+   * @param timer - The timer to use
+   */
+  public void setTimer(HashedWheelTimer timer) {
+    this.timer = timer;
+  }
+
+  /**
+   * Sets the largest message accepted from the server, bigger messages close the connection with 1009
+   * @param bytes - The limit
+   * @see DataReader#setMaxMessageSize(long)
+   */
+  public void setMaxMessageSize(long bytes) {
+    reader.setMaxMessageSize(bytes);
+  }
+
+  /**
+   * Corks the client while a handler runs, so the frames it writes go out in a single write once it returns
+   * <p>Control frames are still sent right away. Disabled by default</p>
+   * @param coalesce - Whether to coalesce the writes of a handler
+   * @see #cork()
+   */
+  public void setWriteCoalescing(boolean coalesce) {
+    coalesceWrites = coalesce;
+  }
+
+  /**
+   * Sets TCP_NODELAY on the socket, which sends small writes without waiting for outstanding acknowledgements
+   * @param noDelay - Whether to disable Nagle's algorithm
+   */
+  public void setTcpNoDelay(boolean noDelay) throws IOException {
+    socket.setTcpNoDelay(noDelay);
+  }
+
+  /**
+   * Writes messages growing to at least the threshold into temporary files instead of the heap
+   * <p>Spilled messages go to the {@link DefaultHandlerID#DEFAULT} handler, read them through {@link #getSpilledMessage()}</p>
+   * @param bytes - The threshold, negative to never spill
+   * @param directory - Where to create the files, null for the default temporary directory
+   * @see DataReader#setSpillThreshold(long, Path)
+   */
+  public void setSpillThreshold(long bytes, Path directory) {
+    reader.setSpillThreshold(bytes, directory);
+  }
+
+  /**
+   * @return the file holding the last message if it was spilled, null otherwise
+   * <p>Only valid until the next message is read</p>
+   */
+  public SpilledMessage getSpilledMessage() {
+    return reader.getSpilledMessage();
+  }
+
+  /**
+   * Makes {@link #listenInBackground()} run the main loop on a virtual thread
+   * <p>Requires Java 21 or newer</p>
+   */
+  public void useVirtualThreads() {
+    threadFactory = ThreadFactories.virtual("websocket-client-");
+  }
+
   /**
    * Calls collectHandlers() and starts the main loop
    */
   public void listen() {
+    prepareListen();
+    runLoop();
+  }
+
+  /**
+   * Calls collectHandlers() and starts the main loop on a thread created by the configured factory
+   * @return the started thread
+   */
+  public Thread listenInBackground() {
+    prepareListen();
+    Thread t = threadFactory.newThread(this::runLoop);
+    t.start();
+    return t;
+  }
+
+  private void prepareListen() {
     if (handlersPackageName == null || handlersPackageName.isBlank()) {
       throw new InvalidConfigurationError("handlersPackageName is blank, set it via setHandlersPackageName");
     }
     collectHandlers();
+  }
 
+  /**
+   * Reads messages and invokes the handlers until the connection closes
+   */
+  private void runLoop() {
     while (true) {
       try {
         read();
         Opcode opcode = getPayloadStartFrame().getOpcode();
-        if (normalWebsocket || !getPayloadStartFrame().getRsv1()) {
+        if (normalWebsocket || !getPayloadStartFrame().getRsv2() || getSpilledMessage() != null) {
           HandlerPair p = handlers.get(DefaultHandlerID.DEFAULT);
-          if (p != null) p.invoke(this);
+          if (p != null) invoke(p);
         } else {
           String messageID;
           if (opcode == Opcode.JSON) {
@@ -364,15 +490,34 @@ public class Client extends DataWriter {
             messageID = payload.substring(0, payload.indexOf(" "));
           }
           HandlerPair p = handlers.get(handlers.containsKey(messageID) ? messageID : DefaultHandlerID.DEFAULT);
-          if (p != null) p.invoke(this);
+          if (p != null) invoke(p);
         }
       } catch (IOException e) {
         if (e.getMessage() != "Socket closed") e.printStackTrace();
         break;
       }
     }
+    try {
+      reader.releaseMessage();
+    } catch (IOException e) {}
   }
   
+  /**
+   * Invokes a handler, corking the client while it runs if writes are coalesced
+   */
+  private void invoke(HandlerPair p) throws IOException {
+    if (!coalesceWrites) {
+      p.invoke(this);
+      return;
+    }
+    cork();
+    try {
+      p.invoke(this);
+    } finally {
+      uncork();
+    }
+  }
+
   /**
    * Generates a random Sec-WebSocket-Key 
    * @return the generated key
@@ -0,0 +1,148 @@
+package io.github.oxi1224.websocket.core;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import io.github.oxi1224.websocket.shared.exceptions.InvalidConfigurationError;
+
+/**
+ * A pool of buffers used for frames and connection input, handing out {@link PooledBuffer}s
+ * <p>Buffers come in power of two size classes starting at 256 bytes. Released buffers first go to a small
+ * cache of the releasing thread, which serves that thread's next allocations without any synchronization,
+ * and then to a bounded cache shared by all threads. Buffers larger than the biggest class are not pooled</p>
+ * <p>Subclasses may override {@link #allocate(int)} to plug in a different strategy</p>
+ */
+public class BufferPool {
+  private static final int MIN_SHIFT = 8;
+  /** Only the classes up to this size get thread local caches, bigger buffers are rare and only shared */
+  private static final int MAX_THREAD_CACHED_SIZE = 32 * 1024;
+
+  private static volatile BufferPool shared;
+
+  private final boolean direct;
+  private final int maxPooledSize;
+  private final int threadCacheSize;
+  private final int sharedCacheSize;
+  private final Queue<ByteBuffer>[] sharedCaches;
+  private final AtomicInteger[] sharedCounts;
+  private final ThreadLocal<ThreadCache> threadCaches;
+
+  private final class ThreadCache {
+    final ByteBuffer[][] stacks = new ByteBuffer[threadCacheClasses()][threadCacheSize];
+    final int[] counts = new int[stacks.length];
+  }
+
+  /**
+   * Creates a heap buffer pool pooling buffers up to 1MiB, caching 16 buffers per size class and thread
+   * and 64 buffers per size class across threads
+   */
+  public BufferPool() {
+    this(false, 1024 * 1024, 16, 64);
+  }
+
+  /**
+   * @param direct - Whether to allocate direct buffers, which channels can write without an extra copy
+   * @param maxPooledSize - The biggest pooled buffer, rounded up to a power of two
+   * @param threadCacheSize - The amount of buffers every thread caches per size class, 0 to disable
+   * @param sharedCacheSize - The amount of buffers cached across threads per size class
+   */
+  @SuppressWarnings({"unchecked", "rawtypes"})
+  public BufferPool(boolean direct, int maxPooledSize, int threadCacheSize, int sharedCacheSize) {
+    if (maxPooledSize <= 0 || maxPooledSize > 1 << 30) throw new InvalidConfigurationError("maxPooledSize out of range");
+    if (threadCacheSize < 0 || sharedCacheSize < 0) throw new InvalidConfigurationError("Cache sizes may not be negative");
+    this.direct = direct;
+    this.maxPooledSize = sizeOf(classIndex(maxPooledSize));
+    this.threadCacheSize = threadCacheSize;
+    this.sharedCacheSize = sharedCacheSize;
+    int classes = classIndex(this.maxPooledSize) + 1;
+    sharedCaches = new Queue[classes];
+    sharedCounts = new AtomicInteger[classes];
+    for (int i = 0; i < classes; i++) {
+      sharedCaches[i] = new ConcurrentLinkedQueue<>();
+      sharedCounts[i] = new AtomicInteger();
+    }
+    threadCaches = threadCacheSize > 0 ? ThreadLocal.withInitial(ThreadCache::new) : null;
+  }
+
+  /**
+   * @return the pool used by servers and clients unless configured otherwise, created on first use
+   */
+  public static BufferPool shared() {
+    BufferPool pool = shared;
+    if (pool == null) {
+      synchronized(BufferPool.class) {
+        if (shared == null) shared = new BufferPool();
+        pool = shared;
+      }
+    }
+    return pool;
+  }
+
+  /**
+   * Hands out a cleared buffer in big endian order
+   * @param capacity - The minimum capacity, the buffer may be bigger
+   * @return the buffer holding a single reference
+   */
+  public PooledBuffer allocate(int capacity) {
+    if (capacity > maxPooledSize) return new PooledBuffer(newBuffer(capacity), null);
+    int idx = classIndex(capacity);
+    ByteBuffer buf = null;
+    if (threadCaches != null && idx < threadCacheClasses()) {
+      ThreadCache cache = threadCaches.get();
+      if (cache.counts[idx] > 0) {
+        buf = cache.stacks[idx][--cache.counts[idx]];
+        cache.stacks[idx][cache.counts[idx]] = null;
+      }
+    }
+    if (buf == null) {
+      buf = sharedCaches[idx].poll();
+      if (buf != null) sharedCounts[idx].decrementAndGet();
+    }
+    if (buf == null) buf = newBuffer(sizeOf(idx));
+    return new PooledBuffer(buf, this);
+  }
+
+  /**
+   * Takes back a buffer whose last reference was released
+   */
+  void recycle(ByteBuffer buf) {
+    buf.clear();
+    buf.order(ByteOrder.BIG_ENDIAN);
+    int idx = classIndex(buf.capacity());
+    if (threadCaches != null && idx < threadCacheClasses()) {
+      ThreadCache cache = threadCaches.get();
+      if (cache.counts[idx] < threadCacheSize) {
+        cache.stacks[idx][cache.counts[idx]++] = buf;
+        return;
+      }
+    }
+    if (sharedCounts[idx].incrementAndGet() <= sharedCacheSize) {
+      sharedCaches[idx].add(buf);
+    } else {
+      sharedCounts[idx].decrementAndGet();
+    }
+  }
+
+  private ByteBuffer newBuffer(int capacity) {
+    return direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+  }
+
+  private int threadCacheClasses() {
+    return classIndex(Math.min(MAX_THREAD_CACHED_SIZE, maxPooledSize)) + 1;
+  }
+
+  private static int classIndex(int capacity) {
+    if (capacity <= 1 << MIN_SHIFT) return 0;
+    return 32 - Integer.numberOfLeadingZeros(capacity - 1) - MIN_SHIFT;
+  }
+
+  private static int sizeOf(int classIndex) {
+    return 1 << (classIndex + MIN_SHIFT);
+  }
+
+  public boolean isDirect() { return direct; }
+  public int getMaxPooledSize() { return maxPooledSize; }
+}
@@ -1,7 +1,13 @@
 package io.github.oxi1224.websocket.core;
 
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import io.github.oxi1224.websocket.shared.exceptions.MessageTooLargeException;
+import io.github.oxi1224.websocket.shared.util.ReadAheadInputStream;
 
 /**
  * A class representing a single WebSocket data frame
@@ -14,9 +20,12 @@ public class DataFrame {
   private boolean rsv3;
   private Opcode opcode;
   private boolean mask;
-  private int payloadLength;
+  /** The length announced by the header, payloads above the array limit are only ever spilled */
+  private long payloadLength;
   private byte[] maskingKey = null;
   private byte[] payload;
+  /** The largest payload array allocated before any of its data arrived */
+  private static final int MAX_UPFRONT_PAYLOAD = 1024 * 1024;
  
   public DataFrame() {}
   public DataFrame(
@@ -26,7 +35,7 @@ public class DataFrame {
     boolean rsv3,
     Opcode opcode,
     boolean mask,
-    int payloadLength,
+    long payloadLength,
     byte[] maskingKey,
     byte[] payload
   ) {
@@ -45,110 +54,171 @@ public class DataFrame {
    * Transforms the entire class into a byte[]
    */
   public byte[] getBytes() {
-    int calcLength = 2 + payloadLength; // 2 = min len;
-    if (payloadLength <= 65535 && payloadLength > 125) calcLength += 3; // 1 byte + next 2
-    else if (payloadLength > 65535) calcLength += 9; // 1 byte + next 8
-    if (mask) {
-      if (maskingKey.length != 4) throw new IllegalArgumentException("Mask is set to true but maskingkey length is not 4");
-      else calcLength += 4;
-    }
-    byte[] out = new byte[calcLength];
-    int curIdx = 0;
-    byte b = 0x0;
-    if (fin) b |= 0b10000000;
-    if (rsv1) b |= 0b01000000;
-    if (rsv2) b |= 0b00100000;
-    if (rsv3) b |= 0b00010000;
-    b |= opcode.getValue();
-    out[curIdx] = (byte)(b & 0xFF);
-    curIdx += 1;
-
-    if (payloadLength <= 125) {
-      b = 0x0;
-      if (mask) b |= 0b10000000;
-      b |= payloadLength;
-      out[curIdx] = b;
-      curIdx += 1;
-    } else {
-      if (payloadLength <= 65535) {
-        if (mask) out[curIdx] = (byte)(0b10000000);
-        out[curIdx] |= 126;
-        out[curIdx + 1] = (byte)((payloadLength >> 8) & 0xFF); 
-        out[curIdx + 2] = (byte)(payloadLength & 0xFF);
-        curIdx += 3;
-      } else {
-        if (mask) out[curIdx] = (byte)(0b10000000);
-        out[curIdx] |= 127;
-        curIdx += 1;
-        for (int i = 7; i >= 0; i--) {
-          out[curIdx + 8 - i] = (byte)((payloadLength >> (i * 8)) & 0xFF);
-          curIdx += 1;
-        }
-      }
-    }
-    if (mask) {
-      for (int i = 0; i < 4; i++) {
-        out[curIdx + i] = maskingKey[i];
-      }
-      curIdx += 4;
-      for (int i = 0; i < payloadLength; i++) {
-        out[curIdx + i] = (byte)(payload[i] ^ maskingKey[i % 4]);
-      }
-      curIdx += payloadLength - 1;
-    } else {
-      System.arraycopy(payload, 0, out, curIdx, payloadLength);
-    }
+    if (mask && maskingKey.length != 4) throw new IllegalArgumentException("Mask is set to true but maskingkey length is not 4");
+    if (payloadLength > payload.length) throw new IllegalStateException("Payload of the frame is not held in memory");
+    int length = (int)payloadLength;
+    int headerLength = FrameCodec.headerLength(length, mask);
+    byte[] out = new byte[headerLength + length];
+    ByteBuffer buf = ByteBuffer.wrap(out);
+    int key = mask ? FrameCodec.maskingKey(maskingKey) : 0;
+    FrameCodec.encodeHeader(buf, fin, rsv1, rsv2, rsv3, opcode, mask, length, key);
+    buf.put(payload, 0, length);
+    if (mask) FrameCodec.mask(out, headerLength, length, key);
     return out;
   }
   
   /**
    * Parses a DataFrame class from an {@link java.io.InputStream}
+   * <p>Reads the header in at most two calls, or parses it in place when reading from a {@link ReadAheadInputStream},
+   * and loops on short reads of the payload</p>
    */
   public static DataFrame read(InputStream in) throws IOException {
-    byte b = (byte)(in.read()); 
-    boolean fin = (b & 0x80) != 0;
-    boolean rsv1 = (b & 0x70) != 0;
-    boolean rsv2 = (b & 0x60) != 0;
-    boolean rsv3 = (b & 0x50) != 0;
-    Opcode opcode = Opcode.findByVal(b & 0x0F);
+    return read(in, Long.MAX_VALUE);
+  }
 
-    b = (byte)(in.read());
-    boolean mask = (0x80 & b) != 0;
-    int payloadLength = (byte)(0x7F & b);
-    int bytesToRead = 0;
-    if (payloadLength == 126) bytesToRead = 2;
-    if (payloadLength == 127) bytesToRead = 8;
-    if (bytesToRead != 0) {
-      byte[] bytes = in.readNBytes(bytesToRead);
-      payloadLength = 0; 
-      for (byte _b : bytes) {
-        payloadLength = (payloadLength << 8) + (_b & 0xFF);
-      }
-    };
-    byte[] maskingKey = null;
-    if (mask) {
-      maskingKey = new byte[4];
-      in.read(maskingKey, 0, 4);
+  /**
+   * Parses a DataFrame, refusing payloads above the limit before allocating them
+   * @param maxPayloadLength - The largest accepted payload
+   * @throws MessageTooLargeException if the payload is longer than the limit
+   */
+  static DataFrame read(InputStream in, long maxPayloadLength) throws IOException {
+    return readPayload(in, readHeader(in), maxPayloadLength);
+  }
+
+  /**
+   * Reads and decodes a frame header, leaving the stream at the start of the payload
+   */
+  static FrameHeader readHeader(InputStream in) throws IOException {
+    if (in instanceof ReadAheadInputStream) return readHeader((ReadAheadInputStream)in, new FrameHeader());
+    return readHeader(in, ByteBuffer.allocate(FrameCodec.MAX_HEADER_LENGTH), new FrameHeader());
+  }
+
+  /**
+   * Reads and decodes a frame header into existing objects, allocating nothing
+   * @param scratch - A heap buffer of at least {@link FrameCodec#MAX_HEADER_LENGTH} bytes to read the header into
+   * @param into - The header to fill in
+   * @return the filled in header
+   */
+  static FrameHeader readHeader(InputStream in, ByteBuffer scratch, FrameHeader into) throws IOException {
+    if (in instanceof ReadAheadInputStream) return readHeader((ReadAheadInputStream)in, into);
+    byte[] header = scratch.array();
+    if (in.readNBytes(header, 0, 2) < 2) throw new EOFException("Connection closed by peer");
+    int remaining = extendedHeaderLength(header[1]);
+    if (in.readNBytes(header, 2, remaining) < remaining) throw new EOFException("Connection closed by peer");
+    scratch.clear().limit(2 + remaining);
+    FrameCodec.decodeHeader(scratch, 0, into);
+    return into;
+  }
+
+  /**
+   * Decodes the header in place inside the stream's buffer, only reading from the connection if it is not buffered yet
+   */
+  private static FrameHeader readHeader(ReadAheadInputStream in, FrameHeader into) throws IOException {
+    ByteBuffer buf = in.getBuffer();
+    if (!in.fill(2)) throw new EOFException("Connection closed by peer");
+    if (!in.fill(2 + extendedHeaderLength(buf.get(buf.position() + 1)))) throw new EOFException("Connection closed by peer");
+    FrameCodec.decodeHeader(buf, into);
+    return into;
+  }
+
+  /**
+   * @param b1 - The second byte of the header
+   * @return the length of the extended payload length and masking key following the first two bytes
+   */
+  private static int extendedHeaderLength(byte b1) {
+    int length7 = b1 & 0x7F;
+    return (length7 == 126 ? 2 : length7 == 127 ? 8 : 0) + ((b1 & 0x80) != 0 ? 4 : 0);
+  }
+
+  /**
+   * Reads and unmasks the payload of a frame whose header was just read
+   */
+  static DataFrame readPayload(InputStream in, FrameHeader decoded, long maxPayloadLength) throws IOException {
+    if (decoded.getPayloadLength() > maxPayloadLength) throw new MessageTooLargeException("Message too big");
+    if (decoded.getPayloadLength() > DataReader.MAX_ARRAY_MESSAGE_SIZE) throw new MessageTooLargeException("Payload too large for an array");
+    int payloadLength = (int)decoded.getPayloadLength();
+    byte[] payload = readFully(in, payloadLength);
+    if (decoded.getMask()) FrameCodec.mask(payload, 0, payloadLength, decoded.getMaskingKey());
+    return from(decoded, payload);
+  }
+
+  /**
+   * Reads a payload straight into its array, looping on short reads
+   * <p>Arrays above {@link #MAX_UPFRONT_PAYLOAD} grow as the data arrives, so a header announcing a huge payload
+   * can not make the reader allocate it without the peer sending it</p>
+   */
+  private static byte[] readFully(InputStream in, int length) throws IOException {
+    byte[] payload = new byte[Math.min(length, MAX_UPFRONT_PAYLOAD)];
+    int read = 0;
+    while (true) {
+      read += in.readNBytes(payload, read, payload.length - read);
+      if (read < payload.length) throw new EOFException("Connection closed by peer");
+      if (read == length) return payload;
+      payload = Arrays.copyOf(payload, (int)Math.min((long)payload.length * 2, length));
     }
-    byte[] payload = new byte[payloadLength];
-    in.read(payload, 0, payloadLength);
+  }
+
+  /**
+   * Creates a frame from a decoded header and its already unmasked payload
+   */
+  static DataFrame from(FrameHeader header, byte[] payload) {
+    return from(header, payload, payload.length);
+  }
+
+  /**
+   * Creates a frame from a decoded header whose payload may not be held in memory
+   * @param payloadLength - The real length of the payload, the array is empty if it was spilled
+   */
+  static DataFrame from(FrameHeader header, byte[] payload, long payloadLength) {
+    byte[] maskingKey = null;
+    if (header.getMask()) maskingKey = ByteBuffer.allocate(4).putInt(header.getMaskingKey()).array();
+    return new DataFrame(
+      header.getFin(),
+      header.getRsv1(),
+      header.getRsv2(),
+      header.getRsv3(),
+      header.getOpcode(),
+      header.getMask(),
+      payloadLength,
+      maskingKey,
+      payload
+    );
+  }
+  
+  /**
+   * Turns this frame into the given one, reusing the masking key array
+   * <p>Lets a reader keep a single frame per connection instead of allocating one for every message</p>
+   * @param payloadLength - The length of the payload, the array may be longer
+   */
+  void set(FrameHeader header, byte[] payload, long payloadLength) {
+    fin = header.getFin();
+    rsv1 = header.getRsv1();
+    rsv2 = header.getRsv2();
+    rsv3 = header.getRsv3();
+    opcode = header.getOpcode();
+    mask = header.getMask();
     if (mask) {
-      for (int i = 0; i < payloadLength; i++) {
-        payload[i] = (byte)(payload[i] ^ maskingKey[i % 4]);
-      }
+      if (maskingKey == null) maskingKey = new byte[4];
+      int key = header.getMaskingKey();
+      maskingKey[0] = (byte)(key >>> 24);
+      maskingKey[1] = (byte)(key >>> 16);
+      maskingKey[2] = (byte)(key >>> 8);
+      maskingKey[3] = (byte)key;
     }
-    return new DataFrame(fin, rsv1, rsv2, rsv3, opcode, mask, payloadLength, maskingKey, payload);
-  };
-  
+    setPayload(payload, payloadLength);
+  }
+
+  void setPayload(byte[] payload, long payloadLength) {
+    this.payload = payload;
+    this.payloadLength = payloadLength;
+  }
+
   /**
    * Generates a random masking key
    */
   public static byte[] genMaskingKey() {
-    byte[] mask = new byte[4];
-    for (int i = 0; i < 4; i++) {
-      mask[i] = (byte)(Math.random() * 255);
-    }
-    return mask;
+    int key = FrameCodec.newMaskingKey();
+    return new byte[] { (byte)(key >>> 24), (byte)(key >>> 16), (byte)(key >>> 8), (byte)key };
   }
 
   public boolean getFin() { return fin; }
@@ -157,7 +227,7 @@ public class DataFrame {
   public boolean getRsv3() { return rsv3; }
   public Opcode getOpcode() { return opcode; }
   public boolean getMask() { return mask; }
-  public int getPayloadLength() { return payloadLength; }
+  public long getPayloadLength() { return payloadLength; }
   public byte[] getMaskingKey() { return maskingKey; }
   public byte[] getPayload() { return payload; }
 }
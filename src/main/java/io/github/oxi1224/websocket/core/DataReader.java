@@ -1,75 +1,503 @@
 package io.github.oxi1224.websocket.core;
 
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 
 import io.github.oxi1224.websocket.json.JSONException;
 import io.github.oxi1224.websocket.json.JSONObject;
 import io.github.oxi1224.websocket.json.JSONParser;
+import io.github.oxi1224.websocket.shared.exceptions.InvalidConfigurationError;
+import io.github.oxi1224.websocket.shared.exceptions.InvalidPayloadException;
+import io.github.oxi1224.websocket.shared.exceptions.MessageTooLargeException;
 import io.github.oxi1224.websocket.shared.exceptions.UnexpectedFrameException;
+import io.github.oxi1224.websocket.shared.exceptions.UsageError;
+import io.github.oxi1224.websocket.shared.util.ByteBufferInputStream;
 
 /**
  * A utility class which reads a stream until a DataFrame with fin=true is encountered
+ * <p>Fragmented messages are collected frame by frame and only joined into a single array when the payload
+ * is first asked for, {@link #getPayloadStream()} reads them without joining at all</p>
+ * <p>With a streaming threshold set, large or fragmented messages read from a blocking stream are not
+ * buffered at all but exposed through {@link #getMessageStream()} as they arrive</p>
+ * <p>With a spill threshold set, messages from a blocking stream growing past it are written to a temporary file
+ * and exposed through {@link #getSpilledMessage()}, which is the only way to handle messages above the array limit</p>
+ * <p>With permessage-deflate negotiated, compressed messages are inflated once complete. The frames
+ * returned by {@link #getFrameStream()} keep the compressed payload</p>
+ * <p>TEXT and JSON messages held in memory are validated and decoded as UTF-8 in a single pass once read,
+ * invalid ones fail {@link #read()} with an {@link InvalidPayloadException}. The decoded string is cached</p>
+ * <p>With frame reuse enabled, every message is read into the same frame, header, frame list and payload array,
+ * so reading small messages allocates nothing, see {@link #setReuseFrames(boolean)}</p>
  */
 public class DataReader {
+  /** The largest message that fits into a single array */
+  public static final long MAX_ARRAY_MESSAGE_SIZE = Integer.MAX_VALUE - 8;
+  /** Reused payload arrays grown past this are dropped once the next message is read */
+  private static final int MAX_RETAINED_PAYLOAD = 64 * 1024;
+
   /**
    * The collected data, gets reset evey read() call
+   * <p>Null for fragmented messages until materialized by {@link #getBytePayload()}</p>
    */
   private byte[] payload;
+  private long payloadLength;
 
   /**
    * All frames making up the payload, gets reset every read() call
    */
   private ArrayList<DataFrame> frameStream;
   private InputStream in;
+  private long maxMessageSize = MAX_ARRAY_MESSAGE_SIZE;
+  /** Negative if messages are always buffered */
+  private long streamingThreshold = -1;
+  private MessageInputStream.ControlFrameHandler controlFrameHandler;
+  /** The message being streamed, null if the last message was buffered */
+  private MessageInputStream stream;
+  /** Negative if messages are never spilled */
+  private long spillThreshold = -1;
+  /** Null for the default temporary directory */
+  private Path spillDirectory;
+  /** The file holding the last message, null if it was kept in memory */
+  private SpilledMessage spilled;
+  /** Null unless permessage-deflate was negotiated */
+  private PerMessageDeflate deflate;
+  /** Reused for every frame decoded from a buffer */
+  private final FrameHeader header = new FrameHeader();
+  private boolean reuseFrames = false;
+  /** The only frame of every message read with frame reuse, its payload is {@link #reusablePayload} */
+  private final DataFrame reusableFrame = new DataFrame();
+  private byte[] reusablePayload = new byte[0];
+  /** A view of {@link #reusablePayload}, recreated only when the array grows */
+  private ByteBuffer reusableView;
+  private final Utf8Decoder utf8 = new Utf8Decoder();
+  /** Whether {@link #utf8} holds the last message */
+  private boolean textDecoded = false;
+  /** The last message as a string, created on the first request */
+  private String text;
+  /** Holds the header bytes read from a blocking stream with frame reuse */
+  private final ByteBuffer headerScratch = ByteBuffer.allocate(FrameCodec.MAX_HEADER_LENGTH);
 
   public DataReader(InputStream in) {
     this.in = in;
   }
+
+  /**
+   * Sets the largest accepted message, checked against every frame header before its payload is read
+   * <p>Messages above {@link #MAX_ARRAY_MESSAGE_SIZE} are only accepted if they get spilled</p>
+   * @param bytes - The limit
+   */
+  public void setMaxMessageSize(long bytes) {
+    if (bytes <= 0) throw new InvalidConfigurationError("maxMessageSize must be positive");
+    maxMessageSize = bytes;
+  }
+
+  /**
+   * Writes data messages whose payload grows to at least the threshold into a temporary file instead of the heap
+   * <p>Only applies to blocking streams and uncompressed messages, see {@link SpilledMessage}</p>
+   * @param bytes - The threshold, negative to never spill
+   * @param directory - Where to create the files, null for the default temporary directory
+   */
+  public void setSpillThreshold(long bytes, Path directory) {
+    if (bytes > MAX_ARRAY_MESSAGE_SIZE) throw new InvalidConfigurationError("spillThreshold may not exceed " + MAX_ARRAY_MESSAGE_SIZE);
+    spillThreshold = bytes;
+    spillDirectory = directory;
+  }
   
+  /**
+   * Sets what handles the control frames received between the fragments of a message, buffered or streamed
+   * <p>Without a handler PINGs and PONGs in the middle of a message are skipped</p>
+   * @param onControlFrame - The handler, null to skip them
+   */
+  public void setControlFrameHandler(MessageInputStream.ControlFrameHandler onControlFrame) {
+    controlFrameHandler = onControlFrame;
+  }
+
+  /**
+   * Streams data messages whose first frame is not final or carries at least the threshold instead of buffering them
+   * <p>Only applies to blocking streams, buffered input is always complete before it is read</p>
+   * @param bytes - The threshold, negative to always buffer
+   * @param onControlFrame - Handles the control frames received between the fragments of a streamed message
+   * @see #getMessageStream()
+   */
+  public void setStreamingThreshold(long bytes, MessageInputStream.ControlFrameHandler onControlFrame) {
+    streamingThreshold = bytes;
+    controlFrameHandler = onControlFrame;
+  }
+
+  /**
+   * Reads every message into the same objects instead of allocating new ones
+   * <p>Fragments are joined while they are read, {@link #getFrameStream()} then holds a single frame carrying the
+   * flags of the first fragment and the whole payload. Its payload array is shared by all messages and may be longer
+   * than the message, only the first {@link #getPayloadLength()} bytes belong to it. Frames, the frame list and
+   * {@link #getPayloadBuffer()} are only valid until the next {@link #read()}, anything kept longer has to be copied,
+   * which {@link #getBytePayload()} and the string getters do</p>
+   * @param reuse - Whether to reuse frames, disabled by default
+   */
+  public void setReuseFrames(boolean reuse) {
+    reuseFrames = reuse;
+    if (reuse) frameStream = new ArrayList<DataFrame>(1);
+  }
+
+  /**
+   * Inflates messages received with RSV1 set
+   * @param deflate - The negotiated extension
+   */
+  public void setDeflate(PerMessageDeflate deflate) {
+    this.deflate = deflate;
+  }
+
   /**
    * Reads a stream of data until fin=1 is encountered
+   * <p>Control frames between the fragments are handled in place, see {@link #setControlFrameHandler}</p>
    * @exception UnexpectedFrameException when receiving an invalid frame order (no fin=1 frame before start of the next one)
+   * @exception MessageTooLargeException when the message exceeds the maximum message size
+   * @exception InvalidPayloadException when a TEXT or JSON message is not valid UTF-8
    */
   public void read() throws IOException, UnexpectedFrameException {
+    if (stream != null) {
+      stream.skipRemaining();
+      stream = null;
+    }
+    releaseMessage();
+    payload = null;
+    text = null;
+    textDecoded = false;
+    long inMemoryLimit = Math.min(maxMessageSize, MAX_ARRAY_MESSAGE_SIZE);
+    ByteBuffer buf = in instanceof ByteBufferInputStream ? ((ByteBufferInputStream)in).getBuffer() : null;
+    if (reuseFrames) {
+      readReusing(buf, inMemoryLimit);
+      inflate();
+      decodeText();
+      return;
+    }
     frameStream = new ArrayList<DataFrame>();
-    DataFrame frame = DataFrame.read(in);
+    DataFrame frame;
+    if (buf != null) {
+      frame = decodeFrame(buf, inMemoryLimit);
+    } else {
+      FrameHeader first = DataFrame.readHeader(in);
+      if (isStreamed(first)) {
+        stream = new MessageInputStream(in, first, controlFrameHandler);
+        // Stands in for the start frame so the opcode and flags are still known
+        frameStream.add(DataFrame.from(first, new byte[0]));
+        payload = new byte[0];
+        payloadLength = 0;
+        return;
+      }
+      if (isSpilled(first.getOpcode(), first.getRsv1(), first.getPayloadLength())) {
+        spill(first, 0);
+        return;
+      }
+      frame = DataFrame.readPayload(in, first, inMemoryLimit);
+    }
     frameStream.add(frame);
-    payload = frame.getPayload();
-    if (!frame.getFin()) readNext();
+    long total = frame.getPayloadLength();
+    while (!frame.getFin()) {
+      long remaining = inMemoryLimit - total;
+      FrameHeader next = buf != null ? nextHeader(buf) : DataFrame.readHeader(in);
+      if (next.getOpcode().isControl()) {
+        onControlFrame(next, buf);
+        continue;
+      }
+      if (next.getOpcode() != Opcode.CONTINUE) throw new UnexpectedFrameException("Expected to receive CONTINUE frame");
+      if (buf != null) {
+        frame = decodePayload(buf, next, remaining);
+      } else {
+        if (isSpilled(frameStream.get(0).getOpcode(), frameStream.get(0).getRsv1(), total + next.getPayloadLength())) {
+          spill(next, total);
+          return;
+        }
+        frame = DataFrame.readPayload(in, next, remaining);
+      }
+      frameStream.add(frame);
+      total += frame.getPayloadLength();
+    }
+    payloadLength = total;
+    if (frameStream.size() == 1) payload = frameStream.get(0).getPayload();
+    inflate();
+    decodeText();
   }
-  
+
+  private void inflate() throws IOException {
+    DataFrame start = frameStream.get(0);
+    if (spilled != null || stream != null) return;
+    if (deflate != null && start.getRsv1() && !start.getOpcode().isControl()) {
+      payload = deflate.decompress(getBytePayload(), maxMessageSize);
+      payloadLength = payload.length;
+    }
+  }
+
   /**
-   * Recursively reads frames one by one until finds one with fin=1
-   * @exception UnexpectedFrameException when receiving an invalid frame order (no fin=1 frame before start of the next one)
+   * Validates and decodes a complete TEXT or JSON message held in memory, fragment by fragment
+   */
+  private void decodeText() throws InvalidPayloadException {
+    if (spilled != null || stream != null) return;
+    Opcode opcode = frameStream.get(0).getOpcode();
+    if (opcode != Opcode.TEXT && opcode != Opcode.JSON) return;
+    utf8.reset();
+    if (payload != null) {
+      utf8.decode(payload, 0, (int)payloadLength);
+    } else {
+      // Indexed so reading with reused frames does not allocate an iterator
+      for (int i = 0; i < frameStream.size(); i++) {
+        DataFrame f = frameStream.get(i);
+        utf8.decode(f.getPayload(), 0, (int)f.getPayloadLength());
+      }
+    }
+    utf8.finish();
+    textDecoded = true;
+  }
+
+  /**
+   * Reads a message into {@link #reusableFrame}, joining fragments into {@link #reusablePayload} as they arrive
+   * @param buf - The buffer of a {@link ByteBufferInputStream}, null for blocking streams
    */
-  private void readNext() throws IOException, UnexpectedFrameException {
-    DataFrame frame = DataFrame.read(in);
-    if (frame.getOpcode() != Opcode.CONTINUE) throw new UnexpectedFrameException("Expected to receive CONTINUE frame");
-    byte[] framePayload = frame.getPayload();
-    byte[] newPayload = new byte[payload.length + framePayload.length];
-    System.arraycopy(payload, 0, newPayload, 0, payload.length);
-    System.arraycopy(framePayload, 0, newPayload, payload.length, framePayload.length);
-    payload = newPayload;
+  private void readReusing(ByteBuffer buf, long inMemoryLimit) throws IOException, UnexpectedFrameException {
+    frameStream.clear();
+    if (reusablePayload.length > MAX_RETAINED_PAYLOAD) {
+      reusablePayload = new byte[0];
+      reusableView = null;
+    }
+    FrameHeader next = nextHeader(buf);
+    if (buf == null && isStreamed(next)) {
+      stream = new MessageInputStream(in, next, controlFrameHandler);
+      frameStream.add(DataFrame.from(next, new byte[0]));
+      payload = new byte[0];
+      payloadLength = 0;
+      return;
+    }
+    reusableFrame.set(next, reusablePayload, 0);
+    frameStream.add(reusableFrame);
+    int total = 0;
+    while (true) {
+      if (buf == null && isSpilled(reusableFrame.getOpcode(), reusableFrame.getRsv1(), total + next.getPayloadLength())) {
+        reusableFrame.setPayload(reusablePayload, total);
+        spill(next, total);
+        return;
+      }
+      if (next.getPayloadLength() > inMemoryLimit - total) throw new MessageTooLargeException("Message too big");
+      int length = (int)next.getPayloadLength();
+      ensureCapacity(total + length);
+      if (buf != null) {
+        if (buf.remaining() < length) throw new EOFException("Incomplete frame");
+        buf.get(reusablePayload, total, length);
+      } else if (in.readNBytes(reusablePayload, total, length) < length) {
+        throw new EOFException("Connection closed by peer");
+      }
+      if (next.getMask()) FrameCodec.mask(reusablePayload, total, length, next.getMaskingKey());
+      total += length;
+      if (next.getFin()) break;
+      next = nextHeader(buf);
+      while (next.getOpcode().isControl()) {
+        onControlFrame(next, buf);
+        next = nextHeader(buf);
+      }
+      if (next.getOpcode() != Opcode.CONTINUE) throw new UnexpectedFrameException("Expected to receive CONTINUE frame");
+    }
+    reusableFrame.setPayload(reusablePayload, total);
+    payloadLength = total;
+  }
+
+  /**
+   * Handles a control frame received between the fragments of a message, the message is read on afterwards
+   * <p>The frame goes to the {@link MessageInputStream.ControlFrameHandler} if one is set</p>
+   * @param header - The decoded header, its payload was not read yet
+   * @param buf - The buffer of a {@link ByteBufferInputStream}, null for blocking streams
+   * @throws EOFException if the frame is a CLOSE, the rest of the message will not arrive
+   */
+  private void onControlFrame(FrameHeader header, ByteBuffer buf) throws IOException, UnexpectedFrameException {
+    if (!header.getFin() || header.getPayloadLength() > 125) throw new UnexpectedFrameException("Invalid control frame");
+    DataFrame frame = buf != null ? decodePayload(buf, header, 125) : DataFrame.readPayload(in, header, 125);
+    if (controlFrameHandler != null) controlFrameHandler.onControlFrame(frame);
+    if (frame.getOpcode() == Opcode.CLOSE) throw new EOFException("Connection closed in the middle of a message");
+  }
+
+  private FrameHeader nextHeader(ByteBuffer buf) throws IOException {
+    if (buf == null) return DataFrame.readHeader(in, headerScratch, header);
+    if (!FrameCodec.decodeHeader(buf, header)) throw new EOFException("Incomplete frame");
+    return header;
+  }
+
+  /**
+   * Grows the reused payload array, keeping the fragments already read into it
+   */
+  private void ensureCapacity(int length) {
+    if (length <= reusablePayload.length) return;
+    int grown = (int)Math.min(Math.max(length, (long)reusablePayload.length * 2), MAX_ARRAY_MESSAGE_SIZE);
+    reusablePayload = Arrays.copyOf(reusablePayload, grown);
+    reusableView = null;
+  }
+
+  private boolean isStreamed(FrameHeader first) {
+    if (streamingThreshold < 0) return false;
+    if (first.getOpcode().isControl() || first.getOpcode() == Opcode.CONTINUE) return false;
+    // Compressed messages can only be inflated as a whole
+    if (first.getRsv1()) return false;
+    return !first.getFin() || first.getPayloadLength() >= streamingThreshold;
+  }
+
+  /**
+   * @param opcode - The opcode of the first frame
+   * @param compressed - Whether the first frame has RSV1 set, compressed messages can only be inflated in memory
+   * @param total - The length of the message including the frame about to be read
+   */
+  private boolean isSpilled(Opcode opcode, boolean compressed, long total) {
+    if (spillThreshold < 0 || total < spillThreshold) return false;
+    return !opcode.isControl() && !compressed;
+  }
+
+  /**
+   * Moves the fragments read so far into a temporary file and copies the rest of the message straight into it
+   * @param header - The header of the frame that crossed the threshold, its payload was not read yet
+   * @param total - The length of the fragments read so far
+   */
+  private void spill(FrameHeader header, long total) throws IOException, UnexpectedFrameException {
+    spilled = new SpilledMessage(spillDirectory);
+    try {
+      // Stands in for the start frame so the opcode and flags are still known
+      DataFrame start = frameStream.isEmpty() ? DataFrame.from(header, new byte[0], header.getPayloadLength()) : frameStream.get(0);
+      for (DataFrame f : frameStream) spilled.append(f.getPayload(), (int)f.getPayloadLength());
+      while (true) {
+        if (header.getPayloadLength() > maxMessageSize - total) throw new MessageTooLargeException("Message too big");
+        spilled.append(in, header);
+        total += header.getPayloadLength();
+        if (header.getFin()) break;
+        header = DataFrame.readHeader(in);
+        while (header.getOpcode().isControl()) {
+          onControlFrame(header, null);
+          header = DataFrame.readHeader(in);
+        }
+        if (header.getOpcode() != Opcode.CONTINUE) throw new UnexpectedFrameException("Expected to receive CONTINUE frame");
+      }
+      frameStream = new ArrayList<DataFrame>();
+      frameStream.add(start);
+      payload = null;
+      payloadLength = total;
+    } catch (IOException | UnexpectedFrameException e) {
+      releaseMessage();
+      throw e;
+    }
+  }
+
+  /**
+   * Deletes the file of the last message if it was spilled, done by every {@link #read()}
+   */
+  public void releaseMessage() throws IOException {
+    if (spilled == null) return;
+    SpilledMessage s = spilled;
+    spilled = null;
+    s.close();
+  }
+
+  /**
+   * Decodes a single frame from the buffer of a {@link ByteBufferInputStream}, used to hand the frames
+   * of a streamed message over one by one
+   * @return the frame with its payload unmasked
+   */
+  public DataFrame readFrame() throws IOException {
+    text = null;
+    textDecoded = false;
+    frameStream = new ArrayList<DataFrame>();
+    DataFrame frame = decodeFrame(((ByteBufferInputStream)in).getBuffer(), maxMessageSize);
     frameStream.add(frame);
-    if (!frame.getFin()) readNext();
+    payload = frame.getPayload();
+    payloadLength = payload.length;
+    return frame;
+  }
+
+  /**
+   * Decodes a frame straight from the buffer of a {@link ByteBufferInputStream}, copying its payload out once
+   */
+  private DataFrame decodeFrame(ByteBuffer buf, long maxPayloadLength) throws IOException {
+    if (!FrameCodec.decodeHeader(buf, header)) throw new EOFException("Incomplete frame");
+    return decodePayload(buf, header, maxPayloadLength);
+  }
+
+  /**
+   * Copies the payload of a frame whose header was just decoded out of the buffer
+   */
+  private DataFrame decodePayload(ByteBuffer buf, FrameHeader header, long maxPayloadLength) throws IOException {
+    if (header.getPayloadLength() > maxPayloadLength) throw new MessageTooLargeException("Message too big");
+    ByteBuffer slice = FrameCodec.payload(buf, header);
+    if (slice == null) throw new EOFException("Incomplete frame");
+    byte[] bytes = new byte[slice.remaining()];
+    slice.get(bytes);
+    return DataFrame.from(header, bytes);
   }
   
   /**
-   * @return the colleted payload in bytes
+   * @return the colleted payload in bytes, fragments are joined on the first call
    */
   public byte[] getBytePayload() {
+    if (spilled != null) throw new UsageError("Message was spilled to a file, read it through getSpilledMessage()");
+    if (payload == null && frameStream != null) {
+      payload = new byte[(int)payloadLength];
+      int offset = 0;
+      for (DataFrame f : frameStream) {
+        System.arraycopy(f.getPayload(), 0, payload, offset, (int)f.getPayloadLength());
+        offset += (int)f.getPayloadLength();
+      }
+    }
     return payload;
   }
+
+  /**
+   * @return the collected payload without copying it, with frame reuse the view is only valid until the next {@link #read()}
+   */
+  public ByteBuffer getPayloadBuffer() {
+    if (!reuseFrames || payload != null || spilled != null) return ByteBuffer.wrap(getBytePayload());
+    if (reusableView == null) reusableView = ByteBuffer.wrap(reusablePayload);
+    reusableView.clear().limit((int)payloadLength);
+    return reusableView;
+  }
+
+  /**
+   * @return the collected payload as a stream reading the fragments in order without joining them
+   */
+  public InputStream getPayloadStream() {
+    if (spilled != null) return spilled.newInputStream();
+    if (payload != null) return new ByteArrayInputStream(payload);
+    ArrayList<InputStream> fragments = new ArrayList<>(frameStream.size());
+    for (DataFrame f : frameStream) fragments.add(new ByteArrayInputStream(f.getPayload(), 0, (int)f.getPayloadLength()));
+    return new SequenceInputStream(Collections.enumeration(fragments));
+  }
+
+  /**
+   * @return the message being streamed by the last {@link #read()}, null if it was buffered
+   */
+  public MessageInputStream getMessageStream() {
+    return stream;
+  }
+
+  /**
+   * @return the file holding the last message if it was spilled, null if it is held in memory
+   */
+  public SpilledMessage getSpilledMessage() {
+    return spilled;
+  }
+
+  /**
+   * @return the length of the collected payload
+   */
+  public long getPayloadLength() {
+    return payloadLength;
+  }
   
   /**
-   * @return the collected payload as a UTF-8 string
+   * @return the collected payload as a UTF-8 string, decoded once per message
    */
   public String getPayload() {
-    return new String(payload, StandardCharsets.UTF_8);
+    if (text == null) text = textDecoded ? utf8.decoded() : new String(getBytePayload(), StandardCharsets.UTF_8);
+    return text;
   }
   
   /**
@@ -77,7 +505,7 @@ public class DataReader {
    * @throws JSONException If the payload is not valid JSON
    */
   public JSONObject getJSONPayload() throws JSONException {
-    return JSONParser.parse(new String(payload, StandardCharsets.UTF_8));
+    return JSONParser.parse(getPayload());
   }
   
   /**
@@ -86,11 +514,14 @@ public class DataReader {
    * @see java.nio.charset.StandardCharsets
    */
   public String getPayload(Charset chrset) {
-    return new String(payload, chrset);
+    if (chrset.equals(StandardCharsets.UTF_8)) return getPayload();
+    // Decodes the reused array directly instead of copying it first
+    if (reuseFrames && payload == null && spilled == null) return new String(reusablePayload, 0, (int)payloadLength, chrset);
+    return new String(getBytePayload(), chrset);
   }
 
   public DataFrame getStartFrame() {
-    return frameStream.isEmpty() ? null : frameStream.iterator().next();
+    return frameStream.isEmpty() ? null : frameStream.get(0);
   }
   
   public ArrayList<DataFrame> getFrameStream() {
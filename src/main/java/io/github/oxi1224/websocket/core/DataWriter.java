@@ -1,17 +1,83 @@
 package io.github.oxi1224.websocket.core;
 
+import java.io.BufferedOutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantLock;
 
 import io.github.oxi1224.websocket.json.JSONObject;
+import io.github.oxi1224.websocket.shared.exceptions.InvalidConfigurationError;
+import io.github.oxi1224.websocket.shared.exceptions.SlowConsumerException;
+import io.github.oxi1224.websocket.shared.exceptions.UsageError;
 
 /**
  * Utility class containing multiple, valid overloads of write()
+ * <p>RSV2 marks messages carrying a message ID, RSV1 marks messages compressed by permessage-deflate</p>
+ * <p>Unmasked frames with larger payloads are written as an encoded header followed by the payload itself.
+ * Queued frames never copy the payload, on a blocking stream its first 16KiB are copied next to the header
+ * so the frame starts with a single write. When an {@link OutboundQueue} is used the write returns before the frame
+ * reaches the socket, so payload arrays and buffers must not be modified after being written</p>
+ * <p>While corked, frames are held back and written together on {@link #uncork()}, a burst of small messages then
+ * costs a single write. Control frames are never held back, they push out everything corked before them</p>
+ * <p>While a message is open (see {@link #openMessage(Opcode)}) data frames written by other threads wait for it
+ * to close, so they can not end up between its fragments</p>
  */
 public class DataWriter {
+  /** Payloads shorter than this are copied next to their header, one small write beats two */
+  private static final int GATHER_THRESHOLD = 1024;
+  /**
+   * Without a gathering channel this much of the payload is copied next to its header on blocking streams,
+   * so a frame up to this size costs a single write and its payload does not wait on the ACK of its header
+   */
+  private static final int MAX_HEAD_COPY = 16 * 1024;
+  /** Corked frames are written once this many bytes were collected, larger frames bypass the buffer */
+  private static final int COALESCE_BUFFER_SIZE = 64 * 1024;
+
   private OutputStream out;
   private boolean maskFrames = false;
+  /**
+   * Serializes frame writes from concurrent threads
+   * <p>A ReentrantLock rather than synchronized so virtual threads blocked on the socket do not pin their carrier</p>
+   */
+  private final ReentrantLock writeLock = new ReentrantLock();
+  /** When set frames are queued instead of written by the calling thread */
+  private OutboundQueue outboundQueue;
+  /** Notified after a frame got queued */
+  private Runnable onEnqueue;
+  /** Set when the queue is drained into the stream by tasks on an executor */
+  private Executor drainExecutor;
+  private final AtomicBoolean draining = new AtomicBoolean();
+  /** Small and masked frames are encoded into buffers from this pool */
+  private BufferPool bufferPool = BufferPool.shared();
+  /** The payload size of the frames written by a {@link MessageOutputStream} */
+  private int fragmentSize = 64 * 1024;
+  /** Null unless permessage-deflate was negotiated */
+  private PerMessageDeflate deflate;
+  /** Keeps messages compressed with context takeover in the order they were compressed in */
+  private final ReentrantLock deflateLock = new ReentrantLock();
+  /** The message currently being written in fragments, at most one at a time */
+  private final AtomicReference<MessageOutputStream> openMessage = new AtomicReference<>();
+  /**
+   * Taken by every data frame while it is written and by the open message until it is closed
+   * <p>A semaphore rather than a lock, the message may be closed by another thread than the one opening it</p>
+   */
+  private final Semaphore messageGate = new Semaphore(1);
+  /** The thread which opened the current message, it would wait on its own message */
+  private volatile Thread messageOwner;
+  /** The amount of {@link #cork()} calls not matched by {@link #uncork()} yet */
+  private final AtomicInteger corks = new AtomicInteger();
+  /** Set when a frame got queued while corked, the queue's consumer is notified once uncorked */
+  private final AtomicBoolean queuedWhileCorked = new AtomicBoolean();
+  /** Collects corked frames and drained queues into as few writes as possible, created on first use */
+  private BufferedOutputStream coalescer;
 
   public DataWriter(OutputStream out) {
     this.out = out;
@@ -25,6 +91,113 @@ public class DataWriter {
     maskFrames = mask;
   }
 
+  /**
+   * Sets the pool frames are encoded into, defaults to {@link BufferPool#shared()}
+   * @param pool - The pool to use
+   */
+  public void setBufferPool(BufferPool pool) {
+    bufferPool = pool;
+  }
+
+  /**
+   * Compresses whole data messages above the extension's minimum size, fragmented messages are sent uncompressed
+   * @param deflate - The negotiated extension
+   */
+  public void setDeflate(PerMessageDeflate deflate) {
+    this.deflate = deflate;
+    if (outboundQueue != null) outboundQueue.setCompressionContextTakeover(deflate != null && deflate.keepsContext());
+  }
+
+  /**
+   * Sets the payload size of the fragments written by {@link #openMessage(Opcode)}, defaults to 64KiB
+   * @param bytes - The fragment size
+   */
+  public void setFragmentSize(int bytes) {
+    if (bytes <= 0) throw new InvalidConfigurationError("fragmentSize must be positive");
+    fragmentSize = bytes;
+  }
+
+  /**
+   * Starts a message whose payload is written through the returned stream and sent in fragments
+   * <p>The length of the message does not have to be known up front, the message ends once the stream is closed.
+   * Control frames may still be written while it is open, data frames from other threads wait until it is closed</p>
+   * @param opcode - The opcode of the message, TEXT or BINARY
+   * @return the stream writing the payload
+   * @throws UsageError if another message is still open or the opcode is not a data opcode
+   */
+  public MessageOutputStream openMessage(Opcode opcode) {
+    if (opcode.isControl() || opcode == Opcode.CONTINUE) throw new UsageError("Messages can only be opened with a data opcode");
+    MessageOutputStream stream = new MessageOutputStream(this, opcode, fragmentSize);
+    if (!openMessage.compareAndSet(null, stream)) throw new UsageError("Another message is still being written");
+    // Data frames being written right now finish first, the rest waits for the message
+    messageGate.acquireUninterruptibly();
+    messageOwner = Thread.currentThread();
+    return stream;
+  }
+
+  void closeMessage(MessageOutputStream stream) {
+    if (!openMessage.compareAndSet(stream, null)) return;
+    messageOwner = null;
+    messageGate.release();
+  }
+
+  /**
+   * Writes a fragment of the open message, which does not wait for the message to close
+   */
+  void writeFragment(boolean fin, Opcode opcode, byte[] payload) throws IOException {
+    compressAndWrite(fin, false, opcode, payload);
+  }
+
+  /**
+   * Holds back the frames written from now on until {@link #uncork()}, calls may be nested
+   * <p>Applies to frames written by any thread. With an outbound queue the frames are still queued,
+   * only the queue's consumer is not woken up for them</p>
+   */
+  public void cork() {
+    corks.incrementAndGet();
+  }
+
+  /**
+   * Undoes one {@link #cork()}, the last one writes the frames held back in as few writes as possible
+   * @throws UsageError if the writer is not corked
+   */
+  public void uncork() throws IOException {
+    int remaining = corks.decrementAndGet();
+    if (remaining < 0) {
+      corks.incrementAndGet();
+      throw new UsageError("uncork() called without a matching cork()");
+    }
+    if (remaining == 0) push();
+  }
+
+  public boolean isCorked() { return corks.get() > 0; }
+
+  /**
+   * Routes every write through a bounded queue which is drained into the stream on the executor
+   * <p>Writing threads no longer block on the socket (unless the queue uses {@link SlowConsumerPolicy#BLOCK})
+   * and frames from concurrent writers can not interleave</p>
+   * @param queue - The queue to use
+   * @param executor - Runs the tasks draining the queue, at most one at a time per writer
+   */
+  public void useOutboundQueue(OutboundQueue queue, Executor executor) {
+    outboundQueue = queue;
+    queue.setCompressionContextTakeover(deflate != null && deflate.keepsContext());
+    drainExecutor = executor;
+    onEnqueue = this::scheduleDrain;
+  }
+
+  /**
+   * Routes every write through a queue drained by someone else, e.g. an event loop
+   * @param queue - The queue to use
+   * @param onEnqueue - Notified every time a frame was queued
+   */
+  protected void useOutboundQueue(OutboundQueue queue, Runnable onEnqueue) {
+    outboundQueue = queue;
+    queue.setCompressionContextTakeover(deflate != null && deflate.keepsContext());
+    drainExecutor = null;
+    this.onEnqueue = onEnqueue;
+  }
+
   public void write(DataFrame frame) throws IOException {
     writeInternal(frame);
   }
@@ -45,27 +218,51 @@ public class DataWriter {
   }
 
   public void write(boolean fin, Opcode opcode, byte[] payload) throws IOException {
-    byte[] maskingKey = null;
-    if (maskFrames) maskingKey = DataFrame.genMaskingKey();
-    write(fin, false, false, false, opcode, maskFrames, payload.length, maskingKey, payload);
+    writeFrame(fin, false, opcode, payload);
   }
 
   public void write(boolean fin, Opcode opcode, String payload) throws IOException {
-    byte[] maskingKey = null;
-    if (maskFrames) maskingKey = DataFrame.genMaskingKey();
-    byte[] payloadBytes = payload.getBytes(StandardCharsets.UTF_8);
-    write(fin, false, false, false, opcode, maskFrames, payloadBytes.length, maskingKey, payloadBytes);
+    writeFrame(fin, false, opcode, payload.getBytes(StandardCharsets.UTF_8));
+  }
+
+  /**
+   * Writes a single frame whose payload is the concatenation of the chunks
+   * <p>Unless the writer masks its frames the chunks are written as they are, the positions of the given
+   * buffers are left untouched</p>
+   * @param fin - Whether this is the final frame of the message
+   * @param opcode - The opcode of the frame
+   * @param payload - The chunks of the payload in order
+   */
+  public void write(boolean fin, Opcode opcode, ByteBuffer... payload) throws IOException {
+    long length = 0;
+    for (ByteBuffer chunk : payload) length += chunk.remaining();
+    boolean compress = deflate != null && length <= Integer.MAX_VALUE - 8 && deflate.shouldCompress(fin, opcode, (int)length);
+    if (!maskFrames && !compress && length >= GATHER_THRESHOLD) {
+      boolean gated = enterGate(opcode);
+      try {
+        writeGathered(fin, false, false, false, opcode, payload);
+      } finally {
+        if (gated) messageGate.release();
+      }
+      return;
+    }
+    if (length > Integer.MAX_VALUE - 8) throw new UsageError("Payload too large to be masked");
+    byte[] joined = new byte[(int)length];
+    int offset = 0;
+    for (ByteBuffer chunk : payload) {
+      int size = chunk.remaining();
+      chunk.duplicate().get(joined, offset, size);
+      offset += size;
+    }
+    writeFrame(fin, false, opcode, joined);
   }
   
   /**
    * Includes an additional messageID parameter when using message identification
    */
   public void write(boolean fin, Opcode opcode, String messageID, String payload) throws IOException {
-    byte[] maskingKey = null;
-    if (maskFrames) maskingKey = DataFrame.genMaskingKey();
     String fullPayload = messageID + " " + payload;
-    byte[] payloadBytes = fullPayload.getBytes(StandardCharsets.UTF_8);
-    write(fin, true, false, false, opcode, maskFrames, payloadBytes.length, maskingKey, payloadBytes);
+    writeFrame(fin, true, opcode, fullPayload.getBytes(StandardCharsets.UTF_8));
   }
 
   public void write(byte[] payload) throws IOException {
@@ -90,10 +287,356 @@ public class DataWriter {
     write(true, Opcode.TEXT, messageID, payload);
   }
 
-  public void flush() throws IOException { out.flush(); }
+  /**
+   * Writes a frame serialized ahead of time, the frame is not copied or encoded again
+   * <p>With permessage-deflate the frame's shared compressed copy is written instead, unless this writer keeps
+   * its compression context, in which case the payload is compressed for this connection alone</p>
+   * @param frame - The frame to write
+   * @throws UsageError if the writer masks its frames
+   */
+  public void write(PreparedFrame frame) throws IOException {
+    if (maskFrames) throw new UsageError("Prepared frames can not be written by a masking writer");
+    boolean gated = enterGate(frame.getOpcode());
+    try {
+      if (deflate != null && deflate.shouldCompress(frame.getFin(), frame.getOpcode(), frame.getPayloadLength())) {
+        if (deflate.keepsContext()) compressAndWrite(frame.getFin(), frame.getRsv2(), frame.getOpcode(), frame.getPayload());
+        else writeBytes(frame.getCompressedBytes());
+        return;
+      }
+      writeBytes(frame.getBytes());
+    } finally {
+      if (gated) messageGate.release();
+    }
+  }
+
+  /**
+   * Writes a frame serialized into a pooled buffer as is, taking over one reference
+   * <p>The reference is released once the frame was written or rejected. To write the same buffer
+   * to several writers {@link PooledBuffer#retain()} it once per additional writer</p>
+   * @param frame - The serialized frame in read mode
+   */
+  public void write(PooledBuffer frame) throws IOException {
+    boolean gated;
+    try {
+      gated = enterGate(Opcode.findByVal(frame.buffer().get(frame.buffer().position()) & 0x0F));
+    } catch (IOException | RuntimeException e) {
+      frame.release();
+      throw e;
+    }
+    try {
+      writePooled(frame);
+    } finally {
+      if (gated) messageGate.release();
+    }
+  }
+
+  private void writePooled(PooledBuffer frame) throws IOException {
+    if (outboundQueue != null) {
+      try {
+        if (outboundQueue.offer(frame)) notifyEnqueued();
+      } catch (SlowConsumerException e) {
+        onOutboundFailure(e);
+        throw e;
+      }
+      return;
+    }
+    writeLock.lock();
+    try {
+      writePart(frame.buffer().duplicate());
+    } finally {
+      writeLock.unlock();
+      frame.release();
+    }
+  }
+
+  /**
+   * Writes out the frames held back by {@link #cork()} without uncorking and flushes the stream
+   */
+  public void flush() throws IOException {
+    if (outboundQueue != null) {
+      push();
+      return;
+    }
+    writeLock.lock();
+    try {
+      if (coalescer != null) coalescer.flush();
+      out.flush();
+    } finally {
+      writeLock.unlock();
+    }
+  }
+
+  /**
+   * Writes bytes that are not a websocket frame (such as the HTTP handshake) through the same path as frames
+   * @param bytes - The bytes to write
+   */
+  protected void writeRaw(byte[] bytes) throws IOException {
+    if (outboundQueue == null) {
+      writeBytes(bytes);
+      return;
+    }
+    try {
+      outboundQueue.offerRaw(ByteBuffer.wrap(bytes));
+      notifyEnqueued();
+    } catch (SlowConsumerException e) {
+      onOutboundFailure(e);
+      throw e;
+    }
+  }
+
+  /**
+   * Synchronously writes everything waiting in the outbound queue or held back by {@link #cork()},
+   * used before closing the connection
+   * <p>Does nothing if the queue is not drained by this writer</p>
+   */
+  protected void flushOutbound() throws IOException {
+    if (outboundQueue == null) {
+      flush();
+      return;
+    }
+    if (drainExecutor == null) return;
+    writeLock.lock();
+    try {
+      // Drained into the buffer so the queued frames go out together
+      outboundQueue.drainTo(coalescer());
+    } finally {
+      writeLock.unlock();
+    }
+  }
+
+  /**
+   * Called when the outbound queue can no longer be written, closes the stream by default
+   * @param e - The cause
+   */
+  protected void onOutboundFailure(IOException e) {
+    outboundQueue.close();
+    try {
+      out.close();
+    } catch (IOException err) {}
+  }
 
   private void writeInternal(DataFrame frame) throws IOException {
-    byte[] serialized = frame.getBytes();
-    out.write(serialized, 0, serialized.length);
+    boolean gated = enterGate(frame.getOpcode());
+    try {
+      writeSerialized(frame);
+    } finally {
+      if (gated) messageGate.release();
+    }
+    if (frame.getOpcode().isControl() && isCorked()) push();
+  }
+
+  private void writeSerialized(DataFrame frame) throws IOException {
+    if (frame.getMask() || frame.getPayloadLength() < GATHER_THRESHOLD || frame.getPayloadLength() > frame.getPayload().length) {
+      writeBytes(frame.getBytes());
+    } else {
+      ByteBuffer payload = ByteBuffer.wrap(frame.getPayload(), 0, (int)frame.getPayloadLength());
+      writeGathered(frame.getFin(), frame.getRsv1(), frame.getRsv2(), frame.getRsv3(), frame.getOpcode(), payload);
+    }
+  }
+
+  /**
+   * @param rsv2 - Whether the payload starts with a message ID
+   */
+  private void writeFrame(boolean fin, boolean rsv2, Opcode opcode, byte[] payload) throws IOException {
+    boolean gated = enterGate(opcode);
+    try {
+      compressAndWrite(fin, rsv2, opcode, payload);
+    } finally {
+      if (gated) messageGate.release();
+    }
+  }
+
+  private void compressAndWrite(boolean fin, boolean rsv2, Opcode opcode, byte[] payload) throws IOException {
+    if (deflate == null || !deflate.shouldCompress(fin, opcode, payload.length)) {
+      writeEncoded(fin, false, rsv2, opcode, payload);
+      // A peer waiting for a PONG or CLOSE must not wait for the writer to be uncorked
+      if (opcode.isControl() && isCorked()) push();
+      return;
+    }
+    if (!deflate.keepsContext()) {
+      writeEncoded(fin, true, rsv2, opcode, deflate.compress(payload));
+      return;
+    }
+    deflateLock.lock();
+    try {
+      writeEncoded(fin, true, rsv2, opcode, deflate.compress(payload));
+    } finally {
+      deflateLock.unlock();
+    }
+  }
+
+  /**
+   * Waits until no message is open, unless the frame is a control frame
+   * @param opcode - The opcode of the frame about to be written
+   * @return whether the gate was taken and has to be released once the frame was written
+   * @throws UsageError if the calling thread has a message open itself
+   */
+  private boolean enterGate(Opcode opcode) throws IOException {
+    if (opcode.isControl()) return false;
+    if (messageOwner == Thread.currentThread()) {
+      throw new UsageError("Data frames can not be written while this thread has a message open");
+    }
+    try {
+      messageGate.acquire();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while waiting for the open message to close");
+    }
+    return true;
   }
+
+  private void writeEncoded(boolean fin, boolean rsv1, boolean rsv2, Opcode opcode, byte[] payload) throws IOException {
+    if (maskFrames || payload.length < GATHER_THRESHOLD) writePooled(FrameCodec.encode(bufferPool, fin, rsv1, rsv2, opcode, maskFrames, payload));
+    else writeGathered(fin, rsv1, rsv2, false, opcode, ByteBuffer.wrap(payload));
+  }
+
+  /**
+   * Writes an unmasked frame as a freshly encoded header followed by the payload chunks, which are not copied
+   */
+  private void writeGathered(
+    boolean fin,
+    boolean rsv1,
+    boolean rsv2,
+    boolean rsv3,
+    Opcode opcode,
+    ByteBuffer... payload
+  ) throws IOException {
+    long length = 0;
+    for (ByteBuffer chunk : payload) length += chunk.remaining();
+    ByteBuffer[] parts = new ByteBuffer[payload.length + 1];
+    parts[0] = ByteBuffer.allocate(FrameCodec.headerLength(length, false));
+    FrameCodec.encodeHeader(parts[0], fin, rsv1, rsv2, rsv3, opcode, false, length, 0);
+    parts[0].flip();
+    for (int i = 0; i < payload.length; i++) parts[i + 1] = payload[i].duplicate();
+    if (outboundQueue != null) {
+      enqueue(parts);
+      return;
+    }
+    writeLock.lock();
+    try {
+      writeWithHead(parts, length);
+    } finally {
+      writeLock.unlock();
+    }
+  }
+
+  /**
+   * Writes the header together with the start of the payload and the rest of the payload as it is,
+   * must hold the write lock
+   * @param parts - The encoded header followed by the payload chunks, their positions are moved
+   * @param length - The length of the payload
+   */
+  private void writeWithHead(ByteBuffer[] parts, long length) throws IOException {
+    PooledBuffer head = bufferPool.allocate((int)(parts[0].remaining() + Math.min(length, MAX_HEAD_COPY)));
+    try {
+      ByteBuffer buf = head.buffer();
+      buf.limit(parts[0].remaining() + (int)Math.min(length, MAX_HEAD_COPY));
+      int next = 0;
+      while (next < parts.length && buf.hasRemaining()) {
+        ByteBuffer part = parts[next];
+        int n = Math.min(part.remaining(), buf.remaining());
+        buf.put(buf.position(), part, part.position(), n);
+        buf.position(buf.position() + n);
+        part.position(part.position() + n);
+        if (!part.hasRemaining()) next++;
+      }
+      buf.flip();
+      writePart(buf);
+    } finally {
+      head.release();
+    }
+    for (int i = 0; i < parts.length; i++) {
+      if (parts[i].hasRemaining()) writePart(parts[i]);
+    }
+  }
+
+  private void writePart(ByteBuffer part) throws IOException {
+    if (part.hasArray()) {
+      emit(part.array(), part.arrayOffset() + part.position(), part.remaining());
+    } else {
+      byte[] copy = new byte[part.remaining()];
+      part.get(copy);
+      emit(copy, 0, copy.length);
+    }
+  }
+
+  private void writeBytes(byte[] serialized) throws IOException {
+    if (outboundQueue != null) {
+      enqueue(ByteBuffer.wrap(serialized));
+      return;
+    }
+    writeLock.lock();
+    try {
+      emit(serialized, 0, serialized.length);
+    } finally {
+      writeLock.unlock();
+    }
+  }
+
+  /**
+   * Writes to the stream or, while corked, into the coalescing buffer, must hold the write lock
+   */
+  private void emit(byte[] b, int off, int len) throws IOException {
+    if (isCorked()) {
+      coalescer().write(b, off, len);
+      return;
+    }
+    // Frames corked by a thread that is uncorking right now must not be overtaken
+    if (coalescer != null) coalescer.flush();
+    out.write(b, off, len);
+  }
+
+  private BufferedOutputStream coalescer() {
+    if (coalescer == null) coalescer = new BufferedOutputStream(out, COALESCE_BUFFER_SIZE);
+    return coalescer;
+  }
+
+  /**
+   * Writes out whatever was held back while corked, or wakes up the queue's consumer for it
+   */
+  private void push() throws IOException {
+    if (outboundQueue == null) {
+      flush();
+      return;
+    }
+    if (queuedWhileCorked.getAndSet(false)) onEnqueue.run();
+  }
+
+  private void enqueue(ByteBuffer... frame) throws IOException {
+    try {
+      if (outboundQueue.offer(frame)) notifyEnqueued();
+    } catch (SlowConsumerException e) {
+      onOutboundFailure(e);
+      throw e;
+    }
+  }
+
+  private void notifyEnqueued() {
+    if (isCorked()) {
+      queuedWhileCorked.set(true);
+      // An uncork() racing with this write may have checked the flag before it was set
+      if (isCorked() || !queuedWhileCorked.getAndSet(false)) return;
+    }
+    onEnqueue.run();
+  }
+
+  /**
+   * Starts a drain task unless one is already running
+   */
+  private void scheduleDrain() {
+    if (!draining.compareAndSet(false, true)) return;
+    drainExecutor.execute(() -> {
+      try {
+        flushOutbound();
+      } catch (IOException e) {
+        onOutboundFailure(e);
+      } finally {
+        draining.set(false);
+      }
+      // A frame queued after the last poll but before draining was reset has to be picked up
+      if (!outboundQueue.isEmpty()) scheduleDrain();
+    });
+  }
+
+  public OutboundQueue getOutboundQueue() { return outboundQueue; }
 }
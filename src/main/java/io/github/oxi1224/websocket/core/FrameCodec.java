@@ -0,0 +1,258 @@
+package io.github.oxi1224.websocket.core;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Encodes and decodes frames directly on {@link ByteBuffer}s
+ * <p>Unlike {@link DataFrame} nothing is copied: headers are decoded in place, payloads are exposed as slices
+ * of the buffer and headers are encoded into a buffer supplied by the caller</p>
+ */
+public final class FrameCodec {
+  /** 2 bytes of flags and length, 8 bytes of extended length and 4 bytes of masking key */
+  public static final int MAX_HEADER_LENGTH = 14;
+
+  private static final VarHandle LONG_ARRAY_VIEW = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
+  private static final VarHandle LONG_BUFFER_VIEW = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
+
+  private FrameCodec() {}
+
+  /**
+   * Decodes the header starting at an absolute index without moving the buffer's position
+   * @param buf - The buffer to read from
+   * @param index - The index the header starts at
+   * @param into - The header to fill in
+   * @return the length of the header or -1 if the buffer does not hold all of it yet
+   * @throws IOException if the header is invalid
+   */
+  public static int decodeHeader(ByteBuffer buf, int index, FrameHeader into) throws IOException {
+    int available = buf.limit() - index;
+    if (available < 2) return -1;
+    byte b0 = buf.get(index);
+    byte b1 = buf.get(index + 1);
+    boolean masked = (b1 & 0x80) != 0;
+    long payloadLength = b1 & 0x7F;
+    int headerLength = 2;
+    if (payloadLength == 126) {
+      if (available < 4) return -1;
+      payloadLength = buf.getShort(index + 2) & 0xFFFF;
+      headerLength = 4;
+    } else if (payloadLength == 127) {
+      if (available < 10) return -1;
+      payloadLength = buf.getLong(index + 2);
+      if (payloadLength < 0) throw new IOException("Invalid payload length");
+      headerLength = 10;
+    }
+    int maskingKey = 0;
+    if (masked) {
+      if (available < headerLength + 4) return -1;
+      maskingKey = buf.getInt(index + headerLength);
+      headerLength += 4;
+    }
+    into.set(
+      (b0 & 0x80) != 0,
+      (b0 & 0x40) != 0,
+      (b0 & 0x20) != 0,
+      (b0 & 0x10) != 0,
+      Opcode.findByVal(b0 & 0x0F),
+      masked,
+      payloadLength,
+      maskingKey,
+      headerLength
+    );
+    return headerLength;
+  }
+
+  /**
+   * Decodes the header at the buffer's position, moving the position past it
+   * @param buf - The buffer to read from
+   * @param into - The header to fill in
+   * @return false if the buffer does not hold the whole header yet, the position is left untouched
+   * @throws IOException if the header is invalid
+   */
+  public static boolean decodeHeader(ByteBuffer buf, FrameHeader into) throws IOException {
+    int headerLength = decodeHeader(buf, buf.position(), into);
+    if (headerLength == -1) return false;
+    buf.position(buf.position() + headerLength);
+    return true;
+  }
+
+  /**
+   * Slices the payload of a frame whose header was just decoded, moving the position past it
+   * <p>The payload is unmasked in place, the returned buffer shares its content with the given one</p>
+   * @param buf - The buffer positioned at the start of the payload
+   * @param header - The decoded header
+   * @return the payload or null if the buffer does not hold all of it yet
+   */
+  public static ByteBuffer payload(ByteBuffer buf, FrameHeader header) {
+    long length = header.getPayloadLength();
+    if (buf.remaining() < length) return null;
+    ByteBuffer payload = buf.slice();
+    payload.limit((int)length);
+    buf.position(buf.position() + (int)length);
+    if (header.getMask()) mask(payload, header.getMaskingKey());
+    return payload;
+  }
+
+  /**
+   * @param payloadLength - The length of the payload
+   * @param masked - Whether the frame carries a masking key
+   * @return the amount of bytes the header of such a frame takes up
+   */
+  public static int headerLength(long payloadLength, boolean masked) {
+    int length = payloadLength <= 125 ? 2 : payloadLength <= 65535 ? 4 : 10;
+    return masked ? length + 4 : length;
+  }
+
+  /**
+   * Encodes a header into the buffer at its position, moving the position past it
+   * @param dst - The buffer to write to, must have at least {@link #headerLength(long, boolean)} bytes remaining
+   * @param maskingKey - The masking key, ignored unless mask is set
+   * @return the amount of bytes written
+   */
+  public static int encodeHeader(
+    ByteBuffer dst,
+    boolean fin,
+    boolean rsv1,
+    boolean rsv2,
+    boolean rsv3,
+    Opcode opcode,
+    boolean mask,
+    long payloadLength,
+    int maskingKey
+  ) {
+    int start = dst.position();
+    int b0 = opcode.getValue() & 0x0F;
+    if (fin) b0 |= 0x80;
+    if (rsv1) b0 |= 0x40;
+    if (rsv2) b0 |= 0x20;
+    if (rsv3) b0 |= 0x10;
+    dst.put((byte)b0);
+    int maskBit = mask ? 0x80 : 0;
+    if (payloadLength <= 125) {
+      dst.put((byte)(maskBit | payloadLength));
+    } else if (payloadLength <= 65535) {
+      dst.put((byte)(maskBit | 126));
+      dst.putShort((short)payloadLength);
+    } else {
+      dst.put((byte)(maskBit | 127));
+      dst.putLong(payloadLength);
+    }
+    if (mask) dst.putInt(maskingKey);
+    return dst.position() - start;
+  }
+
+  /**
+   * Serializes a whole frame into a buffer from the pool
+   * @param pool - The pool to allocate from
+   * @param mask - Whether to mask the frame with a fresh masking key
+   * @return the frame in read mode, holding a single reference
+   */
+  public static PooledBuffer encode(BufferPool pool, boolean fin, boolean rsv1, Opcode opcode, boolean mask, byte[] payload) {
+    return encode(pool, fin, rsv1, false, opcode, mask, payload);
+  }
+
+  /**
+   * Serializes a whole frame into a buffer from the pool
+   * @param pool - The pool to allocate from
+   * @param mask - Whether to mask the frame with a fresh masking key
+   * @return the frame in read mode, holding a single reference
+   */
+  public static PooledBuffer encode(
+    BufferPool pool,
+    boolean fin,
+    boolean rsv1,
+    boolean rsv2,
+    Opcode opcode,
+    boolean mask,
+    byte[] payload
+  ) {
+    int headerLength = headerLength(payload.length, mask);
+    PooledBuffer frame = pool.allocate(headerLength + payload.length);
+    ByteBuffer buf = frame.buffer();
+    int maskingKey = mask ? newMaskingKey() : 0;
+    encodeHeader(buf, fin, rsv1, rsv2, false, opcode, mask, payload.length, maskingKey);
+    buf.put(payload);
+    buf.flip();
+    if (mask) {
+      buf.position(headerLength);
+      mask(buf, maskingKey);
+      buf.position(0);
+    }
+    return frame;
+  }
+
+  /**
+   * XORs the remaining bytes of the buffer with the masking key in place, masking and unmasking are the same operation
+   * <p>The first remaining byte is treated as the first byte of the payload</p>
+   * @param payload - The payload, its position is left untouched
+   * @param maskingKey - The masking key with the first key byte as the most significant byte
+   */
+  public static void mask(ByteBuffer payload, int maskingKey) {
+    if (payload.hasArray()) {
+      mask(payload.array(), payload.arrayOffset() + payload.position(), payload.remaining(), maskingKey);
+      return;
+    }
+    int start = payload.position();
+    int end = payload.limit();
+    long wideKey = wideKey(maskingKey);
+    int i = start;
+    // 8 bytes at a time, every chunk starts at a multiple of 4 so the key lines up
+    for (; i + 8 <= end; i += 8) {
+      LONG_BUFFER_VIEW.set(payload, i, (long)LONG_BUFFER_VIEW.get(payload, i) ^ wideKey);
+    }
+    for (; i < end; i++) {
+      payload.put(i, (byte)(payload.get(i) ^ (maskingKey >>> (24 - ((i - start) & 3) * 8))));
+    }
+  }
+
+  /**
+   * XORs a range of the array with the masking key in place, masking and unmasking are the same operation
+   * @param payload - The array holding the payload
+   * @param offset - The index of the first payload byte
+   * @param length - The length of the payload
+   * @param maskingKey - The masking key with the first key byte as the most significant byte
+   */
+  public static void mask(byte[] payload, int offset, int length, int maskingKey) {
+    int end = offset + length;
+    long wideKey = wideKey(maskingKey);
+    int i = offset;
+    for (; i + 8 <= end; i += 8) {
+      LONG_ARRAY_VIEW.set(payload, i, (long)LONG_ARRAY_VIEW.get(payload, i) ^ wideKey);
+    }
+    for (; i < end; i++) {
+      payload[i] ^= (byte)(maskingKey >>> (24 - ((i - offset) & 3) * 8));
+    }
+  }
+
+  /**
+   * The key repeated twice, XORed against 8 payload bytes read in big endian order
+   */
+  private static long wideKey(int maskingKey) {
+    long key = maskingKey & 0xFFFFFFFFL;
+    return (key << 32) | key;
+  }
+
+  /**
+   * Generates a masking key
+   * <p>Uses {@link ThreadLocalRandom}, which is fast and contention free but not cryptographically strong.
+   * The key only has to keep intermediaries from recognizing the payload, not resist a determined attacker</p>
+   * @return the masking key with the first key byte as the most significant byte
+   */
+  public static int newMaskingKey() {
+    return ThreadLocalRandom.current().nextInt();
+  }
+
+  /**
+   * @param maskingKey - A 4 byte masking key
+   * @return the key as an int with the first key byte as the most significant byte
+   */
+  public static int maskingKey(byte[] maskingKey) {
+    return ((maskingKey[0] & 0xFF) << 24) | ((maskingKey[1] & 0xFF) << 16)
+      | ((maskingKey[2] & 0xFF) << 8) | (maskingKey[3] & 0xFF);
+  }
+}
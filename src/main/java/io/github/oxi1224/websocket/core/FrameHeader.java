@@ -0,0 +1,59 @@
+package io.github.oxi1224.websocket.core;
+
+/**
+ * The decoded header of a frame, filled in by {@link FrameCodec#decodeHeader(java.nio.ByteBuffer, FrameHeader)}
+ * <p>Mutable so a single instance can be reused for every frame read from a connection</p>
+ */
+public class FrameHeader {
+  private boolean fin;
+  private boolean rsv1;
+  private boolean rsv2;
+  private boolean rsv3;
+  private Opcode opcode;
+  private boolean masked;
+  private long payloadLength;
+  private int maskingKey;
+  private int headerLength;
+
+  void set(
+    boolean fin,
+    boolean rsv1,
+    boolean rsv2,
+    boolean rsv3,
+    Opcode opcode,
+    boolean masked,
+    long payloadLength,
+    int maskingKey,
+    int headerLength
+  ) {
+    this.fin = fin;
+    this.rsv1 = rsv1;
+    this.rsv2 = rsv2;
+    this.rsv3 = rsv3;
+    this.opcode = opcode;
+    this.masked = masked;
+    this.payloadLength = payloadLength;
+    this.maskingKey = maskingKey;
+    this.headerLength = headerLength;
+  }
+
+  public boolean getFin() { return fin; }
+  public boolean getRsv1() { return rsv1; }
+  public boolean getRsv2() { return rsv2; }
+  public boolean getRsv3() { return rsv3; }
+  public Opcode getOpcode() { return opcode; }
+  public boolean getMask() { return masked; }
+  public long getPayloadLength() { return payloadLength; }
+  /**
+   * @return the masking key with the first key byte as the most significant byte, 0 if not masked
+   */
+  public int getMaskingKey() { return maskingKey; }
+  /**
+   * @return the amount of bytes the header takes up, including the extended length and masking key
+   */
+  public int getHeaderLength() { return headerLength; }
+  /**
+   * @return the amount of bytes the whole frame takes up
+   */
+  public long getFrameLength() { return headerLength + payloadLength; }
+}
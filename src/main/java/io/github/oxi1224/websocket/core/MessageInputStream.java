@@ -0,0 +1,133 @@
+package io.github.oxi1224.websocket.core;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads the payload of a message straight from the connection while its frames are still arriving
+ * <p>Payloads are unmasked as they are read and continuation frames are followed transparently.
+ * Control frames sent between the fragments are handed to a {@link ControlFrameHandler},
+ * a CLOSE frame ends the stream with an {@link EOFException}</p>
+ * <p>Only one message can be read at a time, {@link DataReader#read()} skips whatever is left of it</p>
+ */
+public class MessageInputStream extends InputStream {
+  /**
+   * Handles the control frames received in the middle of a message
+   */
+  @FunctionalInterface
+  public interface ControlFrameHandler {
+    void onControlFrame(DataFrame frame) throws IOException;
+  }
+
+  private final InputStream in;
+  private final ControlFrameHandler onControlFrame;
+  private final Opcode opcode;
+  /** Bytes of the current frame not read yet */
+  private long remaining;
+  /** Bytes of the current frame read so far, the masking key repeats every 4 of them */
+  private long frameOffset;
+  private boolean masked;
+  private int maskingKey;
+  private boolean fin;
+  private boolean closed = false;
+
+  /**
+   * @param in - The connection, positioned at the start of the first frame's payload
+   * @param first - The already decoded header of the first frame
+   * @param onControlFrame - Handles control frames between the fragments
+   */
+  MessageInputStream(InputStream in, FrameHeader first, ControlFrameHandler onControlFrame) {
+    this.in = in;
+    this.onControlFrame = onControlFrame;
+    this.opcode = first.getOpcode();
+    startFrame(first);
+  }
+
+  private void startFrame(FrameHeader header) {
+    remaining = header.getPayloadLength();
+    frameOffset = 0;
+    masked = header.getMask();
+    maskingKey = header.getMaskingKey();
+    fin = header.getFin();
+  }
+
+  /**
+   * Reads headers until the next continuation frame, handling the control frames in between
+   * @return false if the message is complete
+   */
+  private boolean nextFrame() throws IOException {
+    while (remaining == 0) {
+      if (fin || closed) return false;
+      FrameHeader header = DataFrame.readHeader(in);
+      if (header.getOpcode().isControl()) {
+        DataFrame frame = DataFrame.readPayload(in, header, 125);
+        if (frame.getOpcode() == Opcode.CLOSE) closed = true;
+        onControlFrame.onControlFrame(frame);
+        if (closed) throw new EOFException("Connection closed in the middle of a message");
+        continue;
+      }
+      if (header.getOpcode() != Opcode.CONTINUE) throw new IOException("Expected to receive CONTINUE frame");
+      startFrame(header);
+    }
+    return true;
+  }
+
+  @Override
+  public int read() throws IOException {
+    byte[] b = new byte[1];
+    return read(b, 0, 1) == -1 ? -1 : b[0] & 0xFF;
+  }
+
+  @Override
+  public int read(byte[] b, int off, int len) throws IOException {
+    if (len == 0) return 0;
+    if (!nextFrame()) return -1;
+    int n = in.read(b, off, (int)Math.min(len, remaining));
+    if (n == -1) throw new EOFException("Connection closed by peer");
+    if (masked) {
+      // Continue the key where the previous read of this frame stopped
+      FrameCodec.mask(b, off, n, Integer.rotateLeft(maskingKey, (int)(frameOffset & 3) * 8));
+    }
+    frameOffset += n;
+    remaining -= n;
+    return n;
+  }
+
+  @Override
+  public long skip(long n) throws IOException {
+    long skipped = 0;
+    while (skipped < n && nextFrame()) {
+      long step = in.skip(Math.min(n - skipped, remaining));
+      if (step <= 0) {
+        if (in.read() == -1) throw new EOFException("Connection closed by peer");
+        step = 1;
+      }
+      frameOffset += step;
+      remaining -= step;
+      skipped += step;
+    }
+    return skipped;
+  }
+
+  @Override
+  public int available() throws IOException {
+    return (int)Math.min(remaining, in.available());
+  }
+
+  /**
+   * Skips the rest of the message so the next one can be read
+   */
+  void skipRemaining() throws IOException {
+    while (skip(Long.MAX_VALUE) > 0);
+  }
+
+  /**
+   * @return whether the whole message was read or the connection got closed
+   */
+  public boolean isFinished() { return closed || (fin && remaining == 0); }
+  /**
+   * @return the opcode of the first frame
+   */
+  public Opcode getOpcode() { return opcode; }
+}
@@ -0,0 +1,108 @@
+package io.github.oxi1224.websocket.core;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+
+/**
+ * Writes a single message of unknown length as a sequence of fragments
+ * <p>Data is collected until a fragment is full, which is then written as its own frame: the first with the
+ * message's opcode, the following ones as CONTINUE frames. {@link #close()} writes the final frame.
+ * Every fragment takes the writer's lock on its own, so control frames written by other threads
+ * (PING, PONG, CLOSE) go out between the fragments instead of waiting for the whole message</p>
+ * <p>Data frames written by other threads wait until the stream is closed, they would end up inside the message.
+ * The thread which opened the message must not write any itself</p>
+ * @see DataWriter#openMessage(Opcode)
+ */
+public class MessageOutputStream extends OutputStream implements WritableByteChannel {
+  private final DataWriter writer;
+  private final int fragmentSize;
+  private Opcode opcode;
+  /** A fresh array per fragment, queued frames keep referencing the written ones */
+  private byte[] fragment;
+  private int count = 0;
+  private boolean open = true;
+
+  MessageOutputStream(DataWriter writer, Opcode opcode, int fragmentSize) {
+    this.writer = writer;
+    this.opcode = opcode;
+    this.fragmentSize = fragmentSize;
+    this.fragment = new byte[fragmentSize];
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    ensureOpen();
+    if (count == fragmentSize) writeFragment(false);
+    fragment[count++] = (byte)b;
+  }
+
+  @Override
+  public void write(byte[] b, int off, int len) throws IOException {
+    ensureOpen();
+    while (len > 0) {
+      // The last fragment is only written once more data or close() shows whether it is final
+      if (count == fragmentSize) writeFragment(false);
+      int n = Math.min(len, fragmentSize - count);
+      System.arraycopy(b, off, fragment, count, n);
+      count += n;
+      off += n;
+      len -= n;
+    }
+  }
+
+  @Override
+  public int write(ByteBuffer src) throws IOException {
+    if (!open) throw new ClosedChannelException();
+    int written = src.remaining();
+    while (src.hasRemaining()) {
+      if (count == fragmentSize) writeFragment(false);
+      int n = Math.min(src.remaining(), fragmentSize - count);
+      src.get(fragment, count, n);
+      count += n;
+    }
+    return written;
+  }
+
+  /**
+   * Writes the collected data as a fragment right away, without waiting for the fragment to fill up
+   */
+  @Override
+  public void flush() throws IOException {
+    ensureOpen();
+    if (count > 0) writeFragment(false);
+    writer.flush();
+  }
+
+  /**
+   * Writes the final fragment, which may be empty, ending the message
+   */
+  @Override
+  public void close() throws IOException {
+    if (!open) return;
+    open = false;
+    try {
+      writeFragment(true);
+    } finally {
+      writer.closeMessage(this);
+    }
+  }
+
+  private void writeFragment(boolean fin) throws IOException {
+    byte[] payload = count == fragmentSize ? fragment : Arrays.copyOf(fragment, count);
+    writer.writeFragment(fin, opcode, payload);
+    opcode = Opcode.CONTINUE;
+    fragment = fin ? null : new byte[fragmentSize];
+    count = 0;
+  }
+
+  private void ensureOpen() throws IOException {
+    if (!open) throw new IOException("Message already closed");
+  }
+
+  @Override
+  public boolean isOpen() { return open; }
+}
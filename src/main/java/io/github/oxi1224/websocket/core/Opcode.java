@@ -1,5 +1,7 @@
 package io.github.oxi1224.websocket.core;
 
+import java.util.Arrays;
+
 public enum Opcode {
   CONTINUE(0x0),
   TEXT(0x1),
@@ -10,14 +12,23 @@ public enum Opcode {
   PONG(0xA),
   UNUSED(0xF);
 
+  /** Indexed by the 4 bit opcode, values() clones its array on every call */
+  private static final Opcode[] BY_VALUE = new Opcode[16];
+  static {
+    Arrays.fill(BY_VALUE, UNUSED);
+    for (Opcode c : values()) BY_VALUE[c.code] = c;
+  }
+
   public static Opcode findByVal(int value) {
-    for (Opcode c : values()) {
-      if (c.getValue() == value) return c;
-    }
-    return Opcode.UNUSED;
+    if (value < 0 || value >= BY_VALUE.length) return Opcode.UNUSED;
+    return BY_VALUE[value];
   }
   private final byte code;
   Opcode(int code) { this.code = (byte)(code); }
   public byte getValue() { return code; }
+  /**
+   * @return whether this is a control frame opcode (CLOSE, PING, PONG), which may appear between fragments
+   */
+  public boolean isControl() { return (code & 0x8) != 0; }
 }
 
@@ -0,0 +1,346 @@
+package io.github.oxi1224.websocket.core;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import io.github.oxi1224.websocket.shared.exceptions.SlowConsumerException;
+
+/**
+ * A bounded multi-producer single-consumer queue of serialized frames waiting to be written to a connection
+ * <p>Any thread may {@link #offer(ByteBuffer...)} frames, only the connection's I/O thread drains them.
+ * Once the queued bytes exceed the high watermark the {@link SlowConsumerPolicy} decides what happens,
+ * the queue counts as writable again after draining to the low watermark</p>
+ * <p>A frame may be made of several buffers (e.g. an encoded header followed by the caller's payload),
+ * they are handed to the channel together so the payload never has to be copied next to its header</p>
+ * <p>Frames held in a {@link PooledBuffer} are released once written, dropped or discarded</p>
+ * <p>The drop policies only ever drop whole single-frame data messages that were not started yet,
+ * fragments, control frames, raw bytes such as the handshake response and messages compressed with context takeover
+ * are always kept as dropping them would corrupt the stream</p>
+ */
+public class OutboundQueue {
+  /** Maximum amount of buffers handed to a single gathering write */
+  private static final int MAX_BATCH = 64;
+
+  private final long highWatermark;
+  private final long lowWatermark;
+  private final SlowConsumerPolicy policy;
+  private final ConcurrentLinkedQueue<Frame> queue = new ConcurrentLinkedQueue<>();
+  private final AtomicLong queuedBytes = new AtomicLong();
+  private final AtomicInteger queuedFrames = new AtomicInteger();
+  private final AtomicLong droppedFrames = new AtomicLong();
+  private volatile boolean writable = true;
+  private volatile boolean closed = false;
+  /** Set when RSV1 frames belong to a compression context the peer keeps */
+  private volatile boolean compressionContextTakeover = false;
+  /** Only used by producers waiting under {@link SlowConsumerPolicy#BLOCK} */
+  private final ReentrantLock blockLock = new ReentrantLock();
+  private final Condition drained = blockLock.newCondition();
+
+  /** Frames taken off the shared queue by the consumer but not fully written yet */
+  private final ArrayDeque<Frame> inFlight = new ArrayDeque<>();
+  private final ByteBuffer[] batch = new ByteBuffer[MAX_BATCH];
+
+  private static final class Frame {
+    final ByteBuffer[] parts;
+    /** Released once the frame leaves the queue, null if the frame is not pooled */
+    final PooledBuffer owner;
+    /** Whether the frame is a whole TEXT or BINARY message the drop policies may drop */
+    final boolean droppable;
+
+    Frame(ByteBuffer[] parts, PooledBuffer owner, boolean droppable) {
+      this.parts = parts;
+      this.owner = owner;
+      this.droppable = droppable;
+    }
+
+    long remaining() {
+      long size = 0;
+      for (ByteBuffer part : parts) size += part.remaining();
+      return size;
+    }
+
+    void release() {
+      if (owner != null) owner.release();
+    }
+  }
+
+  /**
+   * @param highWatermark - Amount of queued bytes past which the policy applies
+   * @param lowWatermark - Amount of queued bytes the queue has to drain to before counting as writable again
+   * @param policy - What to do with frames exceeding the high watermark
+   */
+  public OutboundQueue(long highWatermark, long lowWatermark, SlowConsumerPolicy policy) {
+    if (lowWatermark > highWatermark) throw new IllegalArgumentException("lowWatermark may not exceed highWatermark");
+    this.highWatermark = highWatermark;
+    this.lowWatermark = lowWatermark;
+    this.policy = policy;
+  }
+
+  /**
+   * Queues a serialized frame, the buffers are not copied and must not be modified afterwards
+   * <p>A frame is always accepted into an empty queue, even if it is larger than the high watermark</p>
+   * @param frame - The parts of the frame in the order they are written
+   * @return false if the frame was dropped
+   * @throws SlowConsumerException if the policy is {@link SlowConsumerPolicy#DISCONNECT} and the queue is full
+   */
+  public boolean offer(ByteBuffer... frame) throws IOException {
+    return offer(new Frame(frame, null, isDroppable(frame)));
+  }
+
+  /**
+   * Queues bytes that are not a websocket frame (such as the HTTP handshake), they are never dropped
+   * @param bytes - The bytes to write, not copied
+   * @throws SlowConsumerException if the policy is {@link SlowConsumerPolicy#DISCONNECT} and the queue is full
+   */
+  public void offerRaw(ByteBuffer bytes) throws IOException {
+    offer(new Frame(new ByteBuffer[] { bytes }, null, false));
+  }
+
+  /**
+   * Queues a frame held in a pooled buffer, taking over one reference which is released once the frame
+   * leaves the queue, even if the frame gets rejected
+   * <p>The frame is read through a duplicate, the same buffer can be queued to several connections</p>
+   * @param frame - The serialized frame in read mode
+   * @return false if the frame was dropped
+   * @throws SlowConsumerException if the policy is {@link SlowConsumerPolicy#DISCONNECT} and the queue is full
+   */
+  public boolean offer(PooledBuffer frame) throws IOException {
+    ByteBuffer[] parts = { frame.buffer().duplicate() };
+    return offer(new Frame(parts, frame, isDroppable(parts)));
+  }
+
+  /**
+   * Marks messages compressed by the writer as part of its compression context, they are then never dropped
+   * <p>The peer inflates every message with the window left by the ones before it,
+   * dropping one would break every message after it</p>
+   * @param contextTakeover - Whether the writer keeps its compression context between messages
+   */
+  public void setCompressionContextTakeover(boolean contextTakeover) {
+    compressionContextTakeover = contextTakeover;
+  }
+
+  /**
+   * @return whether the serialized frame is a whole TEXT or BINARY message that can be dropped without the peer noticing
+   */
+  private boolean isDroppable(ByteBuffer[] parts) {
+    for (ByteBuffer part : parts) {
+      if (!part.hasRemaining()) continue;
+      int first = part.get(part.position());
+      int opcode = first & 0x0F;
+      if (compressionContextTakeover && (first & 0x40) != 0) return false;
+      return (first & 0x80) != 0 && (opcode == Opcode.TEXT.getValue() || opcode == Opcode.BINARY.getValue());
+    }
+    return false;
+  }
+
+  private boolean offer(Frame frame) throws IOException {
+    if (closed) {
+      frame.release();
+      throw new IOException("Socket closed");
+    }
+    long size = frame.remaining();
+    long current = queuedBytes.get();
+    if (current > 0 && current + size > highWatermark) {
+      writable = false;
+      switch (policy) {
+        case BLOCK:
+          awaitWritable(frame);
+          break;
+        case DROP_OLDEST:
+          dropOldest(size);
+          break;
+        case DROP_NEWEST:
+          if (!frame.droppable) break;
+          droppedFrames.incrementAndGet();
+          frame.release();
+          return false;
+        case DISCONNECT:
+          frame.release();
+          throw new SlowConsumerException("Outbound queue exceeded " + highWatermark + " bytes");
+      }
+    }
+    queuedBytes.addAndGet(size);
+    queuedFrames.incrementAndGet();
+    queue.add(frame);
+    return true;
+  }
+
+  /**
+   * Drops the oldest droppable frames until the new one fits, the rest of the queue keeps its order
+   */
+  private void dropOldest(long size) {
+    Iterator<Frame> frames = queue.iterator();
+    while (frames.hasNext() && queuedBytes.get() > 0 && queuedBytes.get() + size > highWatermark) {
+      Frame oldest = frames.next();
+      // Fails if the consumer took the frame in the meantime
+      if (!oldest.droppable || !queue.remove(oldest)) continue;
+      removed(oldest.remaining(), 1);
+      oldest.release();
+      droppedFrames.incrementAndGet();
+    }
+  }
+
+  private void awaitWritable(Frame frame) throws IOException {
+    blockLock.lock();
+    try {
+      // Marked again under the lock, the consumer may have drained the queue before it was first marked
+      // and then had nobody to wake up
+      writable = false;
+      while (!closed) {
+        if (queuedBytes.get() <= lowWatermark) {
+          writable = true;
+          break;
+        }
+        if (writable) break;
+        drained.await();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      frame.release();
+      throw new InterruptedIOException("Interrupted while waiting for the outbound queue to drain");
+    } finally {
+      blockLock.unlock();
+    }
+    if (closed) {
+      frame.release();
+      throw new IOException("Socket closed");
+    }
+  }
+
+  /**
+   * Accounts for frames leaving the queue and wakes blocked producers once below the low watermark
+   */
+  private void removed(long bytes, int frames) {
+    long remaining = queuedBytes.addAndGet(-bytes);
+    queuedFrames.addAndGet(-frames);
+    if (!writable && remaining <= lowWatermark) {
+      writable = true;
+      if (policy == SlowConsumerPolicy.BLOCK) {
+        blockLock.lock();
+        try {
+          drained.signalAll();
+        } finally {
+          blockLock.unlock();
+        }
+      }
+    }
+  }
+
+  /**
+   * Writes as many queued frames as the channel accepts using gathering writes
+   * <p>Must only be called by the consumer thread</p>
+   * @return whether the queue was fully drained
+   */
+  public boolean drainTo(GatheringByteChannel channel) throws IOException {
+    if (closed) {
+      discardInFlight();
+      return true;
+    }
+    while (true) {
+      Frame next;
+      while (inFlight.size() < MAX_BATCH && (next = queue.poll()) != null) inFlight.add(next);
+      if (inFlight.isEmpty()) return true;
+      int n = 0;
+      long requested = 0;
+      batching:
+      for (Frame frame : inFlight) {
+        for (ByteBuffer part : frame.parts) {
+          if (!part.hasRemaining()) continue;
+          if (n == MAX_BATCH) break batching;
+          batch[n++] = part;
+          requested += part.remaining();
+        }
+      }
+      long written = n == 0 ? 0 : channel.write(batch, 0, n);
+      for (int i = 0; i < n; i++) batch[i] = null;
+      int completed = 0;
+      while (!inFlight.isEmpty() && inFlight.peek().remaining() == 0) {
+        inFlight.poll().release();
+        completed++;
+      }
+      removed(written, completed);
+      if (written < requested) return false;
+    }
+  }
+
+  /**
+   * Writes every queued frame to a blocking stream
+   * <p>Must only be called by the consumer thread</p>
+   */
+  public void drainTo(OutputStream out) throws IOException {
+    Frame frame;
+    while ((frame = queue.poll()) != null) {
+      long size = 0;
+      try {
+        for (ByteBuffer part : frame.parts) size += write(part, out);
+      } finally {
+        frame.release();
+      }
+      removed(size, 1);
+    }
+    out.flush();
+  }
+
+  private static int write(ByteBuffer part, OutputStream out) throws IOException {
+    int size = part.remaining();
+    if (part.hasArray()) {
+      out.write(part.array(), part.arrayOffset() + part.position(), size);
+      part.position(part.limit());
+    } else {
+      byte[] copy = new byte[size];
+      part.get(copy);
+      out.write(copy, 0, size);
+    }
+    return size;
+  }
+
+  /**
+   * Discards all queued frames, releasing the pooled ones, and wakes every blocked producer, further offers fail
+   */
+  public void close() {
+    closed = true;
+    Frame frame;
+    while ((frame = queue.poll()) != null) frame.release();
+    // The consumer may still be writing the in-flight frames, it releases them through discardInFlight
+    queuedBytes.set(0);
+    queuedFrames.set(0);
+    blockLock.lock();
+    try {
+      drained.signalAll();
+    } finally {
+      blockLock.unlock();
+    }
+  }
+
+  /**
+   * Releases the frames the consumer was writing when the queue got closed
+   * <p>Must only be called by the consumer thread, does nothing while the queue is open</p>
+   */
+  public void discardInFlight() {
+    if (!closed) return;
+    Frame frame;
+    while ((frame = inFlight.poll()) != null) frame.release();
+  }
+
+  public boolean isEmpty() { return queuedFrames.get() == 0; }
+  /**
+   * @return false while the queue is above its high watermark and has not drained to the low watermark yet
+   */
+  public boolean isWritable() { return writable; }
+  public long getQueuedBytes() { return queuedBytes.get(); }
+  public int getQueuedFrames() { return queuedFrames.get(); }
+  public long getDroppedFrames() { return droppedFrames.get(); }
+  public long getHighWatermark() { return highWatermark; }
+  public long getLowWatermark() { return lowWatermark; }
+  public SlowConsumerPolicy getPolicy() { return policy; }
+}
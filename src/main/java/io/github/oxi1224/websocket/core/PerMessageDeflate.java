@@ -0,0 +1,301 @@
+package io.github.oxi1224.websocket.core;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import io.github.oxi1224.websocket.shared.exceptions.MessageTooLargeException;
+
+/**
+ * The permessage-deflate extension negotiated for a single connection
+ * @see <a href="https://www.rfc-editor.org/rfc/rfc7692">RFC 7692</a>
+ * <p>Compressed messages are marked with RSV1 on their first frame. A side without context takeover resets
+ * its compressor after every message, which lets it borrow a {@link Deflater} or {@link Inflater} from a pool shared
+ * by all connections for just that message instead of keeping one (and its 32KiB window) per connection</p>
+ * <p>{@link Deflater} always uses a 15 bit window, so offers asking this side to compress with a smaller one are declined.
+ * Inflating accepts any window size the peer compresses with</p>
+ */
+public class PerMessageDeflate {
+  public static final String EXTENSION_NAME = "permessage-deflate";
+  /** Every message compressed with a sync flush ends with these bytes, they are left out on the wire */
+  private static final byte[] TAIL = { 0, 0, (byte)0xFF, (byte)0xFF };
+  private static final int MAX_POOLED = 64;
+
+  private static final Queue<Deflater> deflaterPool = new ConcurrentLinkedQueue<>();
+  private static final Queue<Inflater> inflaterPool = new ConcurrentLinkedQueue<>();
+  private static final AtomicInteger deflaterCount = new AtomicInteger();
+  private static final AtomicInteger inflaterCount = new AtomicInteger();
+
+  private final int minSize;
+  /** Whether this side keeps its compression context between messages */
+  private final boolean compressContextTakeover;
+  /** Whether the peer keeps its compression context between messages */
+  private final boolean decompressContextTakeover;
+  private final String response;
+  /** Only used with context takeover, created by the first message that needs them */
+  private Deflater deflater;
+  private Inflater inflater;
+
+  private PerMessageDeflate(int minSize, boolean compressContextTakeover, boolean decompressContextTakeover, String response) {
+    this.minSize = minSize;
+    this.compressContextTakeover = compressContextTakeover;
+    this.decompressContextTakeover = decompressContextTakeover;
+    this.response = response;
+  }
+
+  /**
+   * Builds the extension offer a client sends
+   * @param contextTakeover - Whether both sides may keep their compression context between messages
+   * @return the value of the Sec-WebSocket-Extensions header
+   */
+  public static String offer(boolean contextTakeover) {
+    if (contextTakeover) return EXTENSION_NAME;
+    return EXTENSION_NAME + "; client_no_context_takeover; server_no_context_takeover";
+  }
+
+  /**
+   * Picks the first acceptable permessage-deflate offer of a client
+   * @param offers - The values of the Sec-WebSocket-Extensions headers, may be null
+   * @param minSize - Messages shorter than this are sent uncompressed
+   * @param contextTakeover - Whether the server wants to keep compression contexts between messages,
+   * without it both sides are asked to reset them
+   * @return the negotiated extension or null if no offer can be accepted
+   */
+  public static PerMessageDeflate accept(List<String> offers, int minSize, boolean contextTakeover) {
+    if (offers == null) return null;
+    for (List<String[]> params : parse(offers)) {
+      boolean serverContext = contextTakeover;
+      boolean clientContext = contextTakeover;
+      boolean serverWindowBits = false;
+      boolean valid = true;
+      Set<String> names = new HashSet<>();
+      for (String[] param : params) {
+        // RFC 7692 section 7 requires declining an offer that repeats a parameter
+        if (!names.add(param[0])) {
+          valid = false;
+          break;
+        }
+        switch (param[0]) {
+          case "server_no_context_takeover":
+            serverContext = false;
+            break;
+          case "client_no_context_takeover":
+            clientContext = false;
+            break;
+          case "server_max_window_bits":
+            // Deflater can not compress with a smaller window
+            valid &= param[1] != null && param[1].equals("15");
+            serverWindowBits = true;
+            break;
+          case "client_max_window_bits":
+            // Only allows the server to limit the client's window, which it does not need
+            break;
+          default:
+            valid = false;
+        }
+      }
+      if (!valid) continue;
+      String response = EXTENSION_NAME;
+      if (!serverContext) response += "; server_no_context_takeover";
+      if (!clientContext) response += "; client_no_context_takeover";
+      // Accepting the parameter means including it in the response
+      if (serverWindowBits) response += "; server_max_window_bits=15";
+      return new PerMessageDeflate(minSize, serverContext, clientContext, response);
+    }
+    return null;
+  }
+
+  /**
+   * Applies the extension the server agreed to
+   * @param responses - The values of the Sec-WebSocket-Extensions headers of the server's response, may be null
+   * @param minSize - Messages shorter than this are sent uncompressed
+   * @param contextTakeover - The value the offer was built with
+   * @return the negotiated extension or null if the server did not accept it
+   * @throws IOException if the response is not valid for the offer
+   */
+  public static PerMessageDeflate fromResponse(List<String> responses, int minSize, boolean contextTakeover) throws IOException {
+    if (responses == null) return null;
+    List<List<String[]>> extensions = parse(responses);
+    if (extensions.isEmpty()) return null;
+    if (extensions.size() > 1) throw new IOException("Server accepted more than one extension");
+    boolean serverContext = contextTakeover;
+    boolean clientContext = contextTakeover;
+    for (String[] param : extensions.get(0)) {
+      switch (param[0]) {
+        case "server_no_context_takeover":
+          serverContext = false;
+          break;
+        case "client_no_context_takeover":
+          clientContext = false;
+          break;
+        case "server_max_window_bits":
+          break;
+        default:
+          throw new IOException("Unsupported permessage-deflate parameter " + param[0]);
+      }
+    }
+    return new PerMessageDeflate(minSize, clientContext, serverContext, null);
+  }
+
+  /**
+   * Splits header values into permessage-deflate offers made of name and value pairs, other extensions are skipped
+   */
+  private static List<List<String[]>> parse(List<String> values) {
+    List<List<String[]>> extensions = new ArrayList<>();
+    for (String value : values) {
+      for (String extension : value.split(",")) {
+        String[] parts = extension.split(";");
+        if (!parts[0].trim().equalsIgnoreCase(EXTENSION_NAME)) continue;
+        List<String[]> params = new ArrayList<>();
+        for (int i = 1; i < parts.length; i++) {
+          String[] pair = parts[i].split("=", 2);
+          String paramValue = pair.length == 2 ? pair[1].trim().replace("\"", "") : null;
+          params.add(new String[] { pair[0].trim().toLowerCase(), paramValue });
+        }
+        extensions.add(params);
+      }
+    }
+    return extensions;
+  }
+
+  /**
+   * @return whether a message should be compressed, only whole data messages of at least the minimum size are
+   */
+  public boolean shouldCompress(boolean fin, Opcode opcode, int length) {
+    return fin && !opcode.isControl() && opcode != Opcode.CONTINUE && length >= minSize;
+  }
+
+  /**
+   * Compresses a whole message
+   * <p>With context takeover messages have to be sent in the order they were compressed in</p>
+   * @param payload - The uncompressed payload
+   * @return the payload to send with RSV1 set
+   */
+  public byte[] compress(byte[] payload) {
+    if (!compressContextTakeover) return compressWithoutContext(payload);
+    return deflate(ownDeflater(), payload);
+  }
+
+  /**
+   * Compresses a message with a pooled compressor, the result can be sent on any connection without context takeover
+   * @param payload - The uncompressed payload
+   * @return the payload to send with RSV1 set
+   */
+  public static byte[] compressWithoutContext(byte[] payload) {
+    Deflater d = borrowDeflater();
+    try {
+      return deflate(d, payload);
+    } finally {
+      giveBack(d);
+    }
+  }
+
+  private static byte[] deflate(Deflater d, byte[] payload) {
+    d.setInput(payload);
+    byte[] out = new byte[payload.length / 2 + 64];
+    int length = 0;
+    while (true) {
+      length += d.deflate(out, length, out.length - length, Deflater.SYNC_FLUSH);
+      if (length < out.length) break;
+      out = Arrays.copyOf(out, out.length * 2);
+    }
+    return Arrays.copyOf(out, length - TAIL.length);
+  }
+
+  /**
+   * Decompresses a whole message, refusing to inflate it past the limit
+   * @param payload - The payload of a message received with RSV1 set
+   * @param maxSize - The largest accepted message
+   * @return the uncompressed payload
+   * @throws MessageTooLargeException if the message inflates to more than the limit
+   */
+  public byte[] decompress(byte[] payload, long maxSize) throws IOException {
+    Inflater i = decompressContextTakeover ? ownInflater() : borrowInflater();
+    try {
+      byte[] input = Arrays.copyOf(payload, payload.length + TAIL.length);
+      System.arraycopy(TAIL, 0, input, payload.length, TAIL.length);
+      i.setInput(input);
+      long limit = Math.min(maxSize, DataReader.MAX_ARRAY_MESSAGE_SIZE);
+      byte[] out = new byte[(int)Math.min((long)payload.length * 4 + 64, limit + 1)];
+      int length = 0;
+      while (true) {
+        if (length == out.length) {
+          if (length > limit) throw new MessageTooLargeException("Message too big");
+          out = Arrays.copyOf(out, (int)Math.min((long)out.length * 2, limit + 1));
+        }
+        length += i.inflate(out, length, out.length - length);
+        // The inflater only stops with space left once it ran out of input
+        if (length < out.length) break;
+      }
+      if (length > limit) throw new MessageTooLargeException("Message too big");
+      return Arrays.copyOf(out, length);
+    } catch (DataFormatException e) {
+      throw new IOException("Invalid compressed payload", e);
+    } finally {
+      if (!decompressContextTakeover) giveBack(i);
+    }
+  }
+
+  private Deflater ownDeflater() {
+    if (deflater == null) deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+    return deflater;
+  }
+
+  private Inflater ownInflater() {
+    if (inflater == null) inflater = new Inflater(true);
+    return inflater;
+  }
+
+  private static Deflater borrowDeflater() {
+    Deflater d = deflaterPool.poll();
+    if (d == null) return new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+    deflaterCount.decrementAndGet();
+    return d;
+  }
+
+  private static Inflater borrowInflater() {
+    Inflater i = inflaterPool.poll();
+    if (i == null) return new Inflater(true);
+    inflaterCount.decrementAndGet();
+    return i;
+  }
+
+  private static void giveBack(Deflater d) {
+    d.reset();
+    if (deflaterCount.incrementAndGet() <= MAX_POOLED) {
+      deflaterPool.add(d);
+    } else {
+      deflaterCount.decrementAndGet();
+      d.end();
+    }
+  }
+
+  private static void giveBack(Inflater i) {
+    i.reset();
+    if (inflaterCount.incrementAndGet() <= MAX_POOLED) {
+      inflaterPool.add(i);
+    } else {
+      inflaterCount.decrementAndGet();
+      i.end();
+    }
+  }
+
+  /**
+   * @return the value of the Sec-WebSocket-Extensions header accepting the offer, null on the client side
+   */
+  public String getResponse() { return response; }
+  /**
+   * @return whether compression has to be serialized with sending, true with context takeover
+   */
+  public boolean keepsContext() { return compressContextTakeover; }
+  public int getMinSize() { return minSize; }
+}
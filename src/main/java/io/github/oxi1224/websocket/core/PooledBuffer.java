@@ -0,0 +1,58 @@
+package io.github.oxi1224.websocket.core;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A reference counted buffer handed out by a {@link BufferPool}
+ * <p>The buffer starts with a single reference and goes back to the pool once every reference was released.
+ * To share it (e.g. write the same frame to several connections) {@link #retain()} it once per additional owner,
+ * every owner reads through its own {@link ByteBuffer#duplicate()} and releases its reference when done</p>
+ * <p>The buffer must not be touched after the last release, it may already be in use elsewhere</p>
+ */
+public final class PooledBuffer {
+  private final ByteBuffer buffer;
+  /** Null for buffers too large to be pooled */
+  private final BufferPool pool;
+  private final AtomicInteger refCnt = new AtomicInteger(1);
+
+  PooledBuffer(ByteBuffer buffer, BufferPool pool) {
+    this.buffer = buffer;
+    this.pool = pool;
+  }
+
+  /**
+   * Adds a reference
+   * @return this buffer
+   * @throws IllegalStateException if the buffer was already released
+   */
+  public PooledBuffer retain() {
+    while (true) {
+      int current = refCnt.get();
+      if (current <= 0) throw new IllegalStateException("Buffer was already released");
+      if (refCnt.compareAndSet(current, current + 1)) return this;
+    }
+  }
+
+  /**
+   * Drops a reference, the buffer goes back to the pool once none are left
+   * @return whether this was the last reference
+   * @throws IllegalStateException if the buffer was already released
+   */
+  public boolean release() {
+    int remaining = refCnt.decrementAndGet();
+    if (remaining < 0) {
+      refCnt.incrementAndGet();
+      throw new IllegalStateException("Buffer was already released");
+    }
+    if (remaining > 0) return false;
+    if (pool != null) pool.recycle(buffer);
+    return true;
+  }
+
+  /**
+   * @return the underlying buffer, only valid while holding a reference
+   */
+  public ByteBuffer buffer() { return buffer; }
+  public int refCnt() { return refCnt.get(); }
+}
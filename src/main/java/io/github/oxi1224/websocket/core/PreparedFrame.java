@@ -0,0 +1,100 @@
+package io.github.oxi1224.websocket.core;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import io.github.oxi1224.websocket.json.JSONObject;
+
+/**
+ * A frame serialized once so it can be written to any amount of connections without encoding it again
+ * <p>Prepared frames are never masked and can therefore only be sent by servers</p>
+ * <p>Connections using permessage-deflate without context takeover all share a single compressed copy of the frame,
+ * deflated by the first of them. Connections keeping their context have to compress the payload themselves</p>
+ */
+public class PreparedFrame {
+  private final byte[] bytes;
+  private final Opcode opcode;
+  private final boolean fin;
+  private final boolean rsv2;
+  private final int headerLength;
+  /** The frame with a compressed payload and RSV1 set, created on first use */
+  private volatile byte[] compressedBytes;
+
+  private PreparedFrame(DataFrame frame) {
+    if (frame.getMask()) throw new IllegalArgumentException("Prepared frames may not be masked");
+    this.bytes = frame.getBytes();
+    this.opcode = frame.getOpcode();
+    this.fin = frame.getFin();
+    this.rsv2 = frame.getRsv2();
+    this.headerLength = bytes.length - (int)frame.getPayloadLength();
+  }
+
+  public static PreparedFrame of(DataFrame frame) {
+    return new PreparedFrame(frame);
+  }
+
+  public static PreparedFrame of(boolean fin, Opcode opcode, byte[] payload) {
+    return new PreparedFrame(new DataFrame(fin, false, false, false, opcode, false, payload.length, null, payload));
+  }
+
+  public static PreparedFrame of(byte[] payload) {
+    return of(true, Opcode.BINARY, payload);
+  }
+
+  public static PreparedFrame of(String payload) {
+    return of(true, Opcode.TEXT, payload.getBytes(StandardCharsets.UTF_8));
+  }
+
+  /**
+   * Includes an additional messageID parameter when using message identification
+   */
+  public static PreparedFrame of(String messageID, String payload) {
+    byte[] payloadBytes = (messageID + " " + payload).getBytes(StandardCharsets.UTF_8);
+    return new PreparedFrame(new DataFrame(true, false, true, false, Opcode.TEXT, false, payloadBytes.length, null, payloadBytes));
+  }
+
+  public static PreparedFrame of(String messageID, JSONObject payload) {
+    JSONObject obj = new JSONObject();
+    obj.set("messageID", messageID);
+    obj.set("__data", payload);
+    return of(true, Opcode.JSON, obj.toString().getBytes(StandardCharsets.UTF_8));
+  }
+
+  /**
+   * @return the serialized frame, shared by every writer
+   */
+  byte[] getBytes() { return bytes; }
+
+  /**
+   * @return the frame compressed without context takeover, shared by every writer
+   */
+  byte[] getCompressedBytes() {
+    byte[] compressed = compressedBytes;
+    if (compressed == null) {
+      // Racing writers may both compress, they produce the same bytes
+      byte[] payload = PerMessageDeflate.compressWithoutContext(getPayload());
+      compressed = new byte[FrameCodec.headerLength(payload.length, false) + payload.length];
+      ByteBuffer buf = ByteBuffer.wrap(compressed);
+      FrameCodec.encodeHeader(buf, fin, true, rsv2, false, opcode, false, payload.length, 0);
+      buf.put(payload);
+      compressedBytes = compressed;
+    }
+    return compressed;
+  }
+
+  /**
+   * @return a copy of the uncompressed payload
+   */
+  byte[] getPayload() { return Arrays.copyOfRange(bytes, headerLength, bytes.length); }
+  int getPayloadLength() { return bytes.length - headerLength; }
+  boolean getFin() { return fin; }
+  boolean getRsv2() { return rsv2; }
+
+  /**
+   * @return a read-only view of the serialized frame
+   */
+  public ByteBuffer asReadOnlyBuffer() { return ByteBuffer.wrap(bytes).asReadOnlyBuffer(); }
+  public Opcode getOpcode() { return opcode; }
+  public int getLength() { return bytes.length; }
+}
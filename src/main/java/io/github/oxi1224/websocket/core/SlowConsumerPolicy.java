@@ -0,0 +1,15 @@
+package io.github.oxi1224.websocket.core;
+
+/**
+ * What an {@link OutboundQueue} does with a frame that would take it past its high watermark
+ */
+public enum SlowConsumerPolicy {
+  /** Block the writing thread until the queue drains below the low watermark */
+  BLOCK,
+  /** Discard the oldest queued frames to make room */
+  DROP_OLDEST,
+  /** Discard the frame being written */
+  DROP_NEWEST,
+  /** Fail the write and close the connection */
+  DISCONNECT
+}
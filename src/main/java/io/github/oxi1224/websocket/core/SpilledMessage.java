@@ -0,0 +1,129 @@
+package io.github.oxi1224.websocket.core;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import io.github.oxi1224.websocket.shared.exceptions.UsageError;
+
+/**
+ * The payload of a message written to a temporary file instead of the heap
+ * <p>The file is deleted once the message is closed, which {@link DataReader} does when reading the next message.
+ * The payload therefore has to be consumed (or copied elsewhere) before that</p>
+ * @see DataReader#setSpillThreshold(long, Path)
+ */
+public class SpilledMessage implements AutoCloseable {
+  private static final int COPY_BUFFER_SIZE = 64 * 1024;
+
+  private final FileChannel channel;
+  private final Path path;
+  private long length = 0;
+
+  SpilledMessage(Path directory) throws IOException {
+    path = directory == null ? Files.createTempFile("websocket-", ".spill") : Files.createTempFile(directory, "websocket-", ".spill");
+    channel = FileChannel.open(
+      path,
+      StandardOpenOption.READ,
+      StandardOpenOption.WRITE,
+      StandardOpenOption.DELETE_ON_CLOSE
+    );
+  }
+
+  /**
+   * Appends an already unmasked payload
+   */
+  void append(byte[] payload, int length) throws IOException {
+    ByteBuffer buf = ByteBuffer.wrap(payload, 0, length);
+    while (buf.hasRemaining()) this.length += channel.write(buf, this.length);
+  }
+
+  /**
+   * Copies the payload of a frame whose header was just read from the stream into the file, unmasking it on the way
+   */
+  void append(InputStream in, FrameHeader header) throws IOException {
+    byte[] chunk = new byte[(int)Math.min(COPY_BUFFER_SIZE, Math.max(header.getPayloadLength(), 1))];
+    long remaining = header.getPayloadLength();
+    long frameOffset = 0;
+    while (remaining > 0) {
+      int n = in.read(chunk, 0, (int)Math.min(chunk.length, remaining));
+      if (n == -1) throw new EOFException("Connection closed by peer");
+      if (header.getMask()) {
+        FrameCodec.mask(chunk, 0, n, Integer.rotateLeft(header.getMaskingKey(), (int)(frameOffset & 3) * 8));
+      }
+      append(chunk, n);
+      frameOffset += n;
+      remaining -= n;
+    }
+  }
+
+  /**
+   * Maps the whole payload into memory, the pages are loaded on demand and do not count against the heap
+   * @return a read-only buffer over the payload
+   * @throws UsageError if the payload is larger than a single buffer can address, use {@link #map(long, long)}
+   */
+  public MappedByteBuffer map() throws IOException {
+    if (length > Integer.MAX_VALUE) throw new UsageError("Payload too large to be mapped at once, map it in parts");
+    return map(0, length);
+  }
+
+  /**
+   * Maps a part of the payload into memory
+   * @param position - The offset of the first mapped byte
+   * @param size - The amount of mapped bytes, at most {@link Integer#MAX_VALUE}
+   * @return a read-only buffer over that part of the payload
+   */
+  public MappedByteBuffer map(long position, long size) throws IOException {
+    return channel.map(FileChannel.MapMode.READ_ONLY, position, size);
+  }
+
+  /**
+   * @return a stream reading the payload from the start, independent of other streams and mappings
+   */
+  public InputStream newInputStream() {
+    return Channels.newInputStream(new ReadOnlyView());
+  }
+
+  /**
+   * Deletes the file, mapped buffers stay readable until they are garbage collected
+   */
+  @Override
+  public void close() throws IOException {
+    channel.close();
+  }
+
+  /**
+   * @return the channel over the file, reading it moves the channel's position
+   */
+  public FileChannel getChannel() { return channel; }
+  public long getLength() { return length; }
+  public Path getPath() { return path; }
+
+  /**
+   * Reads the file through positional reads so every stream has its own position
+   */
+  private class ReadOnlyView implements ReadableByteChannel {
+    private long position = 0;
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+      // The file ends with the payload, reading past it returns -1
+      int n = channel.read(dst, position);
+      if (n > 0) position += n;
+      return n;
+    }
+
+    @Override
+    public boolean isOpen() { return channel.isOpen(); }
+
+    @Override
+    public void close() {}
+  }
+}
@@ -1,5 +1,7 @@
 package io.github.oxi1224.websocket.core;
 
+import java.nio.charset.StandardCharsets;
+
 public enum StatusCode {
   S_1000(1000, new byte[]{(byte)0x03, (byte)0xE8}), 
   S_1001(1001, new byte[]{(byte)0x03, (byte)0xE9}), 
@@ -21,6 +23,18 @@ public enum StatusCode {
     this.bytes = bytes;
   }
 
+  /**
+   * @param reason - The reason for closure
+   * @return the payload of a CLOSE frame carrying this code and the reason
+   */
+  public byte[] toClosePayload(String reason) {
+    byte[] reasonBytes = reason.getBytes(StandardCharsets.UTF_8);
+    byte[] payload = new byte[2 + reasonBytes.length];
+    System.arraycopy(bytes, 0, payload, 0, 2);
+    System.arraycopy(reasonBytes, 0, payload, 2, reasonBytes.length);
+    return payload;
+  }
+
   public int getCode() { return code; }
   public byte[] getBytes() { return bytes; }
 }
@@ -0,0 +1,119 @@
+package io.github.oxi1224.websocket.core;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+
+import io.github.oxi1224.websocket.shared.exceptions.InvalidPayloadException;
+
+/**
+ * Validates and decodes UTF-8 in a single pass, fed one fragment at a time
+ * <p>Sequences may be split across fragments. Overlong encodings, surrogates and code points above U+10FFFF
+ * are rejected as required by RFC 6455, where the JDK's decoder would replace them.
+ * The decoded characters are kept in an array reused for every message</p>
+ */
+final class Utf8Decoder {
+  private static final VarHandle LONG_ARRAY_VIEW = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
+  private static final long NON_ASCII = 0x8080808080808080L;
+  /** Character arrays grown past this are dropped on the next reset */
+  private static final int MAX_RETAINED_CHARS = 64 * 1024;
+
+  private char[] chars = new char[64];
+  private int length = 0;
+  /** Continuation bytes still missing from the current sequence */
+  private int needed = 0;
+  private int codePoint = 0;
+  /** The range the next continuation byte has to be in, narrower than usual right after some lead bytes */
+  private int lower = 0x80;
+  private int upper = 0xBF;
+
+  /**
+   * Forgets the previous message
+   */
+  void reset() {
+    if (chars.length > MAX_RETAINED_CHARS) chars = new char[64];
+    length = 0;
+    needed = 0;
+  }
+
+  /**
+   * Decodes the next part of the message
+   * @throws InvalidPayloadException if the bytes are not valid UTF-8
+   */
+  void decode(byte[] b, int off, int len) throws InvalidPayloadException {
+    // Every byte decodes to at most one char, except the last byte of a 4 byte sequence which adds two
+    ensureCapacity(length + len + 1);
+    char[] out = chars;
+    int n = length;
+    int end = off + len;
+    int i = off;
+    while (i < end) {
+      if (needed == 0) {
+        // ASCII fast path, 8 bytes at a time
+        while (i + 8 <= end && ((long)LONG_ARRAY_VIEW.get(b, i) & NON_ASCII) == 0) {
+          for (int k = 0; k < 8; k++) out[n + k] = (char)b[i + k];
+          i += 8;
+          n += 8;
+        }
+        if (i == end) break;
+        int lead = b[i++] & 0xFF;
+        if (lead < 0x80) {
+          out[n++] = (char)lead;
+        } else if (lead >= 0xC2 && lead <= 0xDF) {
+          start(1, lead & 0x1F, 0x80, 0xBF);
+        } else if (lead >= 0xE0 && lead <= 0xEF) {
+          // E0 would be overlong below A0, ED would encode a surrogate from A0 on
+          start(2, lead & 0x0F, lead == 0xE0 ? 0xA0 : 0x80, lead == 0xED ? 0x9F : 0xBF);
+        } else if (lead >= 0xF0 && lead <= 0xF4) {
+          // F0 would be overlong below 90, F4 would go past U+10FFFF from 90 on
+          start(3, lead & 0x07, lead == 0xF0 ? 0x90 : 0x80, lead == 0xF4 ? 0x8F : 0xBF);
+        } else {
+          throw new InvalidPayloadException("Invalid UTF-8");
+        }
+        continue;
+      }
+      int next = b[i++] & 0xFF;
+      if (next < lower || next > upper) throw new InvalidPayloadException("Invalid UTF-8");
+      lower = 0x80;
+      upper = 0xBF;
+      codePoint = (codePoint << 6) | (next & 0x3F);
+      if (--needed > 0) continue;
+      if (codePoint < 0x10000) {
+        out[n++] = (char)codePoint;
+      } else {
+        out[n++] = Character.highSurrogate(codePoint);
+        out[n++] = Character.lowSurrogate(codePoint);
+      }
+    }
+    length = n;
+  }
+
+  private void start(int needed, int bits, int lower, int upper) {
+    this.needed = needed;
+    this.codePoint = bits;
+    this.lower = lower;
+    this.upper = upper;
+  }
+
+  /**
+   * Ends the message
+   * @throws InvalidPayloadException if it ends in the middle of a sequence
+   */
+  void finish() throws InvalidPayloadException {
+    if (needed != 0) throw new InvalidPayloadException("Invalid UTF-8");
+  }
+
+  private void ensureCapacity(long capacity) {
+    if (capacity <= chars.length) return;
+    char[] grown = new char[(int)Math.min(Math.max(capacity, (long)chars.length * 2), Integer.MAX_VALUE - 8)];
+    System.arraycopy(chars, 0, grown, 0, length);
+    chars = grown;
+  }
+
+  /**
+   * @return the message decoded so far
+   */
+  String decoded() {
+    return new String(chars, 0, length);
+  }
+}
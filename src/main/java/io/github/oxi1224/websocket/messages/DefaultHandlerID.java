@@ -11,4 +11,15 @@ public final class DefaultHandlerID {
   public final static String PING = "ping";
   public final static String PONG = "pong";
   public final static String CLOSE = "close";
+  /** Handled by the server's {@code TopicRegistry} unless a handler with this ID exists */
+  public final static String SUBSCRIBE = "subscribe";
+  /** Handled by the server's {@code TopicRegistry} unless a handler with this ID exists */
+  public final static String UNSUBSCRIBE = "unsubscribe";
+  /**
+   * Receives the messages streamed once the server has a streaming threshold set
+   * <p>With {@code WebSocketServer} the handler is invoked once per message and reads it from
+   * {@code ClientSocket.getMessageStream()} while it arrives. With {@code NioWebSocketServer} it is invoked for
+   * every frame of the message, the frame is {@code ClientSocket.getPayloadStartFrame()} and the last one has FIN set</p>
+   */
+  public final static String STREAM = "stream";
 }
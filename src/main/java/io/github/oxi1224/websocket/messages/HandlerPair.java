@@ -2,18 +2,44 @@ package io.github.oxi1224.websocket.messages;
 
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.util.List;
+import java.util.Map;
 
+import io.github.oxi1224.websocket.shared.exceptions.InvalidHandlerError;
+import io.github.oxi1224.websocket.shared.util.ClassScanner;
 import io.github.oxi1224.websocket.shared.util.Pair;
 
 /**
  * Utility class for easy invoking of Method
+ * <p>Handlers implementing {@link MessageHandler} are bound once and called through the interface,
+ * so invoking them costs a plain virtual call instead of a reflective one allocating its argument array</p>
  */
 public class HandlerPair extends Pair<Object, Method> {
+  /** Null if the method is not the handler's onMessage, it is then invoked reflectively */
+  private final MessageHandler<Object> direct;
+
+  @SuppressWarnings("unchecked")
   public HandlerPair(Object object, Method method) {
     super(object, method);
+    boolean bindable = object instanceof MessageHandler && method.getName().equals("onMessage") && method.getParameterCount() == 1;
+    direct = bindable ? (MessageHandler<Object>)object : null;
   }
 
   public <T> void invoke(T data) {
+    if (direct == null) {
+      invokeReflectively(data);
+      return;
+    }
+    try {
+      direct.onMessage(data);
+    } catch (Throwable e) {
+      // Same as the reflective path, where anything thrown arrives wrapped in InvocationTargetException
+      System.out.println("Encountered exception when invoking message handler");
+      e.printStackTrace();
+    }
+  }
+
+  private void invokeReflectively(Object data) {
     try {
       getValue().invoke(getKey(), data);
     } catch (InvocationTargetException | IllegalAccessException e) {
@@ -21,4 +47,39 @@ public class HandlerPair extends Pair<Object, Method> {
       e.printStackTrace();
     }
   }
+
+  /**
+   * Collects all handlers extending MessageHandler with @Handler annotation
+   * <p>The onMessage method is looked up once here so a handler for the wrong data type is refused
+   * before it is ever invoked</p>
+   * @param packageName - The package to scan
+   * @param dataType - The type the handlers' onMessage has to accept
+   * @param handlers - The map to put the found handlers into
+   */
+  public static void collect(String packageName, Class<?> dataType, Map<String, HandlerPair> handlers) {
+    List<Class<?>> found = ClassScanner.findAllWithAnnotation(Handler.class, packageName);
+    for (Class<?> c : found) {
+      if (!MessageHandler.class.isAssignableFrom(c)) throw new InvalidHandlerError(
+        String.format("Class %s uses @Handler annotation but does not implement MessageHandler interface", c.getName())
+      );
+      String msgID = c.getAnnotation(Handler.class).id();
+      if (handlers.containsKey(msgID)) throw new InvalidHandlerError("Duplicate handler ID " + msgID);
+      Method method;
+      try {
+        method = c.getMethod("onMessage", dataType);
+      } catch (NoSuchMethodException e) {
+        throw new InvalidHandlerError("Failed to find onMessage method on class %s" + c.getName());
+      }
+      try {
+        Object classInstance = c.getDeclaredConstructor().newInstance();
+        handlers.put(msgID, new HandlerPair(classInstance, method));
+      } catch (
+        InvocationTargetException | IllegalAccessException |
+        InstantiationException | NoSuchMethodException e
+      ) {
+        System.out.println("Exception when instantiating handler " + c.getName());
+        e.printStackTrace();
+      }
+    }
+  }
 }
@@ -0,0 +1,71 @@
+package io.github.oxi1224.websocket.server;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import io.github.oxi1224.websocket.core.PooledBuffer;
+import io.github.oxi1224.websocket.core.PreparedFrame;
+
+/**
+ * The outcome of a broadcast, a failing recipient does not stop the broadcast
+ */
+public class BroadcastResult {
+  private int sent = 0;
+  private final Map<ClientSocket, IOException> failures = new LinkedHashMap<>();
+
+  /**
+   * Writes the frame to every client, failing to write to a client does not stop the others
+   */
+  static BroadcastResult writeAll(Iterable<ClientSocket> clients, PreparedFrame frame) {
+    BroadcastResult result = new BroadcastResult();
+    for (ClientSocket client : clients) {
+      try {
+        client.write(frame);
+        result.success();
+      } catch (IOException e) {
+        result.failure(client, e);
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Writes a pooled frame to every client, each write takes its own reference and the caller's one is released at the end
+   */
+  static BroadcastResult writeAll(Iterable<ClientSocket> clients, PooledBuffer frame) {
+    BroadcastResult result = new BroadcastResult();
+    try {
+      for (ClientSocket client : clients) {
+        try {
+          client.write(frame.retain());
+          result.success();
+        } catch (IOException e) {
+          result.failure(client, e);
+        }
+      }
+    } finally {
+      frame.release();
+    }
+    return result;
+  }
+
+  void success() {
+    sent++;
+  }
+
+  void failure(ClientSocket client, IOException e) {
+    failures.put(client, e);
+  }
+
+  /**
+   * @return the amount of clients the message was written to
+   */
+  public int getSentCount() { return sent; }
+  /**
+   * @return the clients the message could not be written to along with the cause
+   */
+  public Map<ClientSocket, IOException> getFailures() { return Collections.unmodifiableMap(failures); }
+  public boolean hasFailures() { return !failures.isEmpty(); }
+}
@@ -0,0 +1,91 @@
+package io.github.oxi1224.websocket.server;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import io.github.oxi1224.websocket.core.PreparedFrame;
+
+/**
+ * The connected clients of a server, addressable by {@link ClientSocket#getId()}
+ * <p>Adding, removing and looking up a client does not lock. Iterating does not lock either and
+ * reflects the clients connected at some point during the iteration, so a broadcast never blocks a connecting client</p>
+ */
+public class ClientRegistry implements Iterable<ClientSocket> {
+  private final Map<Long, ClientSocket> clients = new ConcurrentHashMap<>();
+
+  void add(ClientSocket client) {
+    clients.put(client.getId(), client);
+  }
+
+  /**
+   * @return whether the client was still registered
+   */
+  boolean remove(ClientSocket client) {
+    return clients.remove(client.getId(), client);
+  }
+
+  /**
+   * @param id - The id of the client
+   * @return the client or null if no client with the id is connected
+   */
+  public ClientSocket get(long id) {
+    return clients.get(id);
+  }
+
+  public boolean contains(ClientSocket client) {
+    return clients.get(client.getId()) == client;
+  }
+
+  public int size() { return clients.size(); }
+  public boolean isEmpty() { return clients.isEmpty(); }
+
+  /**
+   * Iterates the connected clients without locking, the iterator does not support removal
+   */
+  @Override
+  public Iterator<ClientSocket> iterator() {
+    return Collections.unmodifiableCollection(clients.values()).iterator();
+  }
+
+  /**
+   * @return a copy of the connected clients
+   */
+  public List<ClientSocket> snapshot() {
+    return new ArrayList<>(clients.values());
+  }
+
+  /**
+   * Writes a frame to a single client
+   * @param id - The id of the client
+   * @param frame - The frame to send
+   * @return false if no client with the id is connected
+   */
+  public boolean send(long id, PreparedFrame frame) throws IOException {
+    ClientSocket client = clients.get(id);
+    if (client == null) return false;
+    client.write(frame);
+    return true;
+  }
+
+  /**
+   * Writes a frame to every connected client among the ids
+   * <p>Ids without a connected client are skipped and not reported as failures</p>
+   * @param ids - The ids of the clients
+   * @param frame - The frame to send
+   * @return the amount of recipients and the ones that failed
+   */
+  public BroadcastResult send(Collection<Long> ids, PreparedFrame frame) {
+    List<ClientSocket> recipients = new ArrayList<>(ids.size());
+    for (long id : ids) {
+      ClientSocket client = clients.get(id);
+      if (client != null) recipients.add(client);
+    }
+    return BroadcastResult.writeAll(recipients, frame);
+  }
+}
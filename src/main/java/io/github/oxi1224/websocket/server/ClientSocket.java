@@ -4,49 +4,102 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
 import java.security.MessageDigest;
 import java.nio.charset.StandardCharsets;
 import java.security.NoSuchAlgorithmException;
 import java.nio.charset.Charset;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Consumer;
 
 import io.github.oxi1224.websocket.core.DataFrame;
 import io.github.oxi1224.websocket.core.DataReader;
 import io.github.oxi1224.websocket.core.DataWriter;
+import io.github.oxi1224.websocket.core.MessageInputStream;
 import io.github.oxi1224.websocket.core.Opcode;
+import io.github.oxi1224.websocket.core.OutboundQueue;
+import io.github.oxi1224.websocket.core.PerMessageDeflate;
+import io.github.oxi1224.websocket.core.SpilledMessage;
 import io.github.oxi1224.websocket.core.StatusCode;
 import io.github.oxi1224.websocket.json.JSONException;
 import io.github.oxi1224.websocket.json.JSONObject;
 import io.github.oxi1224.websocket.shared.Constants;
+import io.github.oxi1224.websocket.shared.exceptions.InvalidPayloadException;
+import io.github.oxi1224.websocket.shared.exceptions.MessageTooLargeException;
 import io.github.oxi1224.websocket.shared.exceptions.UnexpectedFrameException;
 import io.github.oxi1224.websocket.shared.exceptions.UsageError;
 import io.github.oxi1224.websocket.shared.http.HeaderMap;
 import io.github.oxi1224.websocket.shared.http.HttpRequest;
 import io.github.oxi1224.websocket.shared.http.HttpResponse;
+import io.github.oxi1224.websocket.shared.util.ByteBufferInputStream;
+import io.github.oxi1224.websocket.shared.util.HashedWheelTimer;
+import io.github.oxi1224.websocket.shared.util.ReadAheadInputStream;
 
 import java.util.ArrayList;
 import java.util.Base64;
 import java.util.List;
 
 public class ClientSocket extends DataWriter {
+  private static final AtomicLong NEXT_ID = new AtomicLong();
+  /** Unique for the lifetime of the process, used to address the client in a {@link ClientRegistry} */
+  private final long id = NEXT_ID.incrementAndGet();
   private final Socket socket;
   private final InputStream in;
-  private final OutputStream out;
   private final DataReader reader;
   /** Whether or not to use regular websockets (no message identification) */
   private boolean normalWebsocket = false;
   private boolean jsonProtocol = true;
-  private Timer timer;
+  /** Whether the socket is driven by an {@link EventLoop} and may not block on reads */
+  private final boolean nonBlocking;
+  /** The event loop state of the connection, null when not driven by an event loop */
+  private final EventLoop.Connection connection;
+  /** Set when a non-blocking close() is awaiting the peer's CLOSE frame */
+  private volatile boolean closing = false;
+  private HashedWheelTimer timer = HashedWheelTimer.shared();
+  /** The pending close/ping timeout, null if none was started */
+  private volatile HashedWheelTimer.Timeout timeout;
+  /** System.nanoTime() of the last frame other than a PONG */
+  private volatile long lastActivity = System.nanoTime();
+  /** System.nanoTime() of the unanswered ping sent by {@link #sendPing()}, 0 if none */
+  private volatile long pingSentAt = 0;
   private Consumer<ClientSocket> onCloseCallback;
+  /** Set once the connection is closed, an event loop may still be flushing the channel */
+  private volatile boolean closed = false;
+  /** Negative unless permessage-deflate is accepted during the handshake */
+  private int compressionMinSize = -1;
+  private boolean compressionContextTakeover;
  
   public ClientSocket(Socket sock) throws IOException {
     super(sock.getOutputStream());
     socket = sock;
-    in = sock.getInputStream();
-    out = sock.getOutputStream();
+    // Buffered so the handshake can be parsed byte by byte without reading into the first frame,
+    // frame headers are then parsed straight out of the buffer
+    in = new ReadAheadInputStream(sock.getInputStream());
     reader = new DataReader(in);
+    reader.setControlFrameHandler(this::onInterleavedControlFrame);
+    nonBlocking = false;
+    connection = null;
+  }
+
+  /**
+   * Creates a socket driven by an {@link EventLoop}
+   * @param channel - The non-blocking channel of the connection
+   * @param in - The stream the event loop feeds complete messages into
+   * @param queue - The queue the event loop writes to the channel
+   * @param connection - The event loop state of the connection
+   */
+  ClientSocket(SocketChannel channel, ByteBufferInputStream in, OutboundQueue queue, EventLoop.Connection connection) {
+    super(OutputStream.nullOutputStream());
+    socket = channel.socket();
+    this.in = in;
+    reader = new DataReader(in);
+    reader.setControlFrameHandler(this::onInterleavedControlFrame);
+    nonBlocking = true;
+    this.connection = connection;
+    useOutboundQueue(queue, connection::requestFlush);
   }
   
   /**
@@ -70,18 +123,14 @@ public class ClientSocket extends DataWriter {
    * Handles the incoming handshake from a client
    */
   public void sendHandshake() throws IOException {
-    // Read entire HTTP request before parsing
-    while (in.available() == 0) {
-      try {
-        Thread.sleep(100);
-      } catch (InterruptedException e) {
-        System.out.println("ClientSocket thread had been interrupted during handshake");
-        e.printStackTrace();
-        socket.close();
-        System.exit(1);
-      }
-    }
-    HttpRequest req = HttpRequest.parse(in);
+    completeHandshake(HttpRequest.parse(in));
+  }
+
+  /**
+   * Responds to an already parsed handshake request
+   * @param req - The HTTP upgrade request sent by the client
+   */
+  void completeHandshake(HttpRequest req) throws IOException {
     HeaderMap headers = new HeaderMap();
     
     // Verify that the incoming request is the standard websocket one
@@ -138,9 +187,18 @@ public class ClientSocket extends DataWriter {
     if (selectedProtocol != null) {
       headers.put(new HeaderMap.HeaderPair("Sec-WebSocket-Protocol", selectedProtocol));
     }
+    if (compressionMinSize >= 0) {
+      List<String> offers = req.getHeader("Sec-WebSocket-Extensions");
+      PerMessageDeflate deflate = PerMessageDeflate.accept(offers, compressionMinSize, compressionContextTakeover);
+      if (deflate != null) {
+        headers.put(new HeaderMap.HeaderPair("Sec-WebSocket-Extensions", deflate.getResponse()));
+        reader.setDeflate(deflate);
+        setDeflate(deflate);
+      }
+    }
     HttpResponse res = new HttpResponse("1.1", 101, "Switching Protocols", headers, "");
     byte[] outbuf = res.getBytes();
-    out.write(outbuf, 0, outbuf.length);
+    writeRaw(outbuf);
   }
   
   /**
@@ -149,9 +207,9 @@ public class ClientSocket extends DataWriter {
    */
   private void httpClose(HttpResponse res) throws IOException {
     byte[] outbuf = res.getBytes();
-    out.write(outbuf, 0, outbuf.length);
-    this.socket.close();
-    if (onCloseCallback != null) onCloseCallback.accept(this);
+    writeRaw(outbuf);
+    closeSocket();
+    notifyClosed();
   }
 
   /**
@@ -165,25 +223,61 @@ public class ClientSocket extends DataWriter {
       e.printStackTrace();
       close();
       return;
+    } catch (MessageTooLargeException e) {
+      // The rest of the message is still on the wire, waiting for the peer's CLOSE is pointless
+      closeWithoutWait(StatusCode.S_1009, "Message too big");
+      throw e;
+    } catch (InvalidPayloadException e) {
+      closeWithoutWait(StatusCode.S_1007, "Invalid UTF-8");
+      throw e;
     }
     DataFrame refFrame = reader.getStartFrame();
     Opcode opcode = refFrame.getOpcode();
+    // Any frame proves the peer is alive, only the ones that are not a PONG count as activity
+    pingSentAt = 0;
+    if (opcode != Opcode.PONG) lastActivity = System.nanoTime();
     if (opcode == Opcode.PING) pong(reader.getBytePayload());
-    if (opcode == Opcode.CLOSE) closeWithoutWait();
+    if (opcode == Opcode.CLOSE) {
+      if (closing) finishClose();
+      else closeWithoutWait();
+    }
   }
   
+  /**
+   * Reads a single frame of a message streamed by an event loop, the frame replaces the last read message
+   */
+  void readStreamFrame() throws IOException {
+    reader.readFrame();
+    pingSentAt = 0;
+    lastActivity = System.nanoTime();
+  }
+
+  /**
+   * Handles a control frame received in the middle of a fragmented message
+   */
+  private void onInterleavedControlFrame(DataFrame frame) throws IOException {
+    pingSentAt = 0;
+    if (frame.getOpcode() == Opcode.PING) pong(frame.getPayload());
+    if (frame.getOpcode() == Opcode.CLOSE) {
+      if (closing) finishClose();
+      else closeWithoutWait();
+    }
+  }
+
   /**
    * Sends a ping frame to the server, waits 10s before timing out
    * and closing the connection
+   * <p>When driven by an event loop the PONG is received by the loop instead</p>
    */
   public void ping() throws IOException {
     write(true, Opcode.PING, new byte[0]);
+    if (nonBlocking) return;
     startTimeoutTimer(10000);
     try {
       reader.read();
       Opcode resOpcode = reader.getStartFrame().getOpcode();
-      if (resOpcode != Opcode.PONG) socket.close();
-      else timer.cancel();
+      if (resOpcode != Opcode.PONG) closeSocket();
+      else timeout.cancel();
     } catch (IOException e) {} // Ignore error, timeoutTimer closed connection while trying to read
     catch (UnexpectedFrameException e) { 
       e.printStackTrace();
@@ -191,6 +285,19 @@ public class ClientSocket extends DataWriter {
     }
   }
   
+  /**
+   * Sends a ping frame without waiting for the PONG, which is picked up by {@link #read()}
+   * <p>Unlike {@link #ping()} it can be used while another thread reads from the connection</p>
+   * @return false if a previous ping is still unanswered, in which case nothing is sent
+   */
+  public boolean sendPing() throws IOException {
+    if (pingSentAt != 0) return false;
+    long now = System.nanoTime();
+    pingSentAt = now == 0 ? 1 : now;
+    write(true, Opcode.PING, new byte[0]);
+    return true;
+  }
+
   /**
    * Sends a pong frame to the server
    * <p>Pongs are handled automatically</p>
@@ -205,18 +312,22 @@ public class ClientSocket extends DataWriter {
   public void close() throws IOException {
     write(true, Opcode.CLOSE, new byte[0]);
     startTimeoutTimer(10000);
+    if (nonBlocking) {
+      closing = true;
+      return;
+    }
     try {
       reader.read();
-      socket.close();
-      if (onCloseCallback != null) onCloseCallback.accept(this);
+      closeSocket();
+      notifyClosed();
     } catch (IOException e) {} // Ignore error, timeoutTimer closed connection while trying to read
     catch (UnexpectedFrameException e) {
       e.printStackTrace();
-      timer.cancel();
+      timeout.cancel();
       closeWithoutWait();
       return;
     }
-    timer.cancel();
+    timeout.cancel();
   }
   
   /**
@@ -232,45 +343,114 @@ public class ClientSocket extends DataWriter {
     System.arraycopy(stringBytes, 0, payload, 2, stringBytes.length);
     write(true, Opcode.CLOSE, payload);
     startTimeoutTimer(10000);
+    if (nonBlocking) {
+      closing = true;
+      return;
+    }
     try {
       reader.read();
-      socket.close();
-      if (onCloseCallback != null) onCloseCallback.accept(this);
+      closeSocket();
+      notifyClosed();
     } catch (IOException e) {} // Ignore error, timeoutTimer closed connection while trying to read
     catch (UnexpectedFrameException e) {
       e.printStackTrace();
-      timer.cancel();
+      timeout.cancel();
       closeWithoutWait();
       return;
     }
-    timer.cancel();
+    timeout.cancel();
   }
   
+  /**
+   * Finishes a non-blocking close() after the peer's CLOSE frame arrived
+   */
+  private void finishClose() throws IOException {
+    timeout.cancel();
+    closeSocket();
+    notifyClosed();
+  }
+
+  /**
+   * Closes the socket without sending a CLOSE frame, used when the peer is already gone
+   */
+  void terminate() {
+    try {
+      socket.close();
+    } catch (IOException e) {}
+    if (getOutboundQueue() != null) getOutboundQueue().close();
+    if (timeout != null) timeout.cancel();
+    notifyClosed();
+  }
+
+  /**
+   * Marks the client closed before running the close callback, so cleanup sees the final state
+   */
+  private void notifyClosed() {
+    closed = true;
+    if (onCloseCallback != null) onCloseCallback.accept(this);
+  }
+
   /**
    * Closes the connection without waiting for acknowledgment
    */
   private void closeWithoutWait() throws IOException {
     write(true, Opcode.CLOSE, new byte[0]);
-    socket.close();
-    if (onCloseCallback != null) onCloseCallback.accept(this);
+    closeSocket();
+    notifyClosed();
+  }
+
+  /**
+   * Sends a CLOSE frame with the status code and closes the connection without waiting for acknowledgment,
+   * used when the connection can not continue (e.g. a protocol violation)
+   * @param statusCode - A status code from {@link StatusCode}
+   * @param reason - The reason for closure
+   */
+  void closeWithoutWait(StatusCode statusCode, String reason) throws IOException {
+    try {
+      write(true, Opcode.CLOSE, statusCode.toClosePayload(reason));
+    } finally {
+      closeSocket();
+      if (timeout != null) timeout.cancel();
+      notifyClosed();
+    }
   }
   
+  /**
+   * Closes the socket once the queued frames were written
+   * <p>When driven by an event loop the socket is closed by the loop</p>
+   */
+  private void closeSocket() throws IOException {
+    if (connection != null) {
+      connection.closeAfterFlush();
+      return;
+    }
+    try {
+      flushOutbound();
+    } finally {
+      socket.close();
+    }
+  }
+
+  /**
+   * Closes the connection once its outbound queue fails, e.g. a slow consumer exceeding its limits
+   */
+  @Override
+  protected void onOutboundFailure(IOException e) {
+    terminate();
+  }
+
   /**
    * Starts the timeout timer which will close the connection after delay
    */
   private void startTimeoutTimer(long delay) {
-    timer = new Timer();
-    timer.schedule(new TimerTask() {
-      @Override
-      public void run() {
-        try {
-          closeWithoutWait();
-        } catch (IOException err) {
-          System.out.println("Exception while calling closeWithoutWait()");
-          err.printStackTrace();
-        }
+    timeout = timer.schedule(() -> {
+      try {
+        closeWithoutWait();
+      } catch (IOException err) {
+        System.out.println("Exception while calling closeWithoutWait()");
+        err.printStackTrace();
       }
-    }, delay); 
+    }, delay, TimeUnit.MILLISECONDS);
   }
 
   public byte[] getBytePayload() {
@@ -278,6 +458,15 @@ public class ClientSocket extends DataWriter {
     return this.reader.getBytePayload();
   }
 
+  /**
+   * @return the payload without copying it, with frame reuse it is only valid until the next message is read
+   * @see #setReuseFrames(boolean)
+   */
+  public ByteBuffer getPayloadBuffer() {
+    if (!normalWebsocket) throw new UsageError("Current server configuration does not support reading as bytes");
+    return this.reader.getPayloadBuffer();
+  }
+
   public String getPayload() {
     if (jsonProtocol) throw new UsageError("Current server configuration does not support reading as a string");
     return this.reader.getPayload();
@@ -302,4 +491,100 @@ public class ClientSocket extends DataWriter {
   public DataFrame getPayloadStartFrame() { return this.reader.getStartFrame(); }
   public ArrayList<DataFrame> getPayloadFrames() { return this.reader.getFrameStream(); }
   public Socket getSocket() { return this.socket; }
+  /**
+   * @return whether the connection was closed, by either side
+   */
+  public boolean isClosed() { return closed || socket.isClosed(); }
+  public long getId() { return this.id; }
+  /**
+   * @return the System.nanoTime() of the last received frame that was not a PONG
+   */
+  public long getLastActivity() { return this.lastActivity; }
+  /**
+   * @return the System.nanoTime() the unanswered ping was sent at or 0 if there is none
+   */
+  public long getPingSentAt() { return this.pingSentAt; }
+
+  /**
+   * Accepts permessage-deflate if the client offers it during the handshake
+   * @param minSize - Messages shorter than this are sent uncompressed
+   * @param contextTakeover - Whether compression contexts are kept between messages
+   * @see PerMessageDeflate
+   */
+  public void enableCompression(int minSize, boolean contextTakeover) {
+    compressionMinSize = minSize;
+    compressionContextTakeover = contextTakeover;
+  }
+
+  /**
+   * Streams large and fragmented messages instead of buffering them, see {@link DataReader#setStreamingThreshold}
+   * <p>PINGs and CLOSEs arriving between the fragments are answered while the message is read</p>
+   * @param bytes - The threshold, negative to always buffer
+   */
+  public void setStreamingThreshold(long bytes) {
+    reader.setStreamingThreshold(bytes, this::onInterleavedControlFrame);
+  }
+
+  /**
+   * Reads every message into the same frame and payload array instead of allocating new ones
+   * <p>Frames and {@link #getPayloadBuffer()} are then only valid until the next message is read</p>
+   * @param reuse - Whether to reuse frames
+   * @see DataReader#setReuseFrames(boolean)
+   */
+  public void setReuseFrames(boolean reuse) {
+    reader.setReuseFrames(reuse);
+  }
+
+  /**
+   * Writes messages growing to at least the threshold into temporary files instead of the heap
+   * @param bytes - The threshold, negative to never spill
+   * @param directory - Where to create the files, null for the default temporary directory
+   * @see DataReader#setSpillThreshold(long, Path)
+   */
+  public void setSpillThreshold(long bytes, Path directory) {
+    reader.setSpillThreshold(bytes, directory);
+  }
+
+  /**
+   * @return the file holding the last message if it was spilled, null otherwise
+   * <p>Only valid until the next message is read</p>
+   */
+  public SpilledMessage getSpilledMessage() {
+    return reader.getSpilledMessage();
+  }
+
+  /**
+   * Deletes the file of the last message if it was spilled, called once the connection stops reading
+   */
+  void releaseMessage() {
+    try {
+      reader.releaseMessage();
+    } catch (IOException e) {}
+  }
+
+  /**
+   * @return the message being received when it is streamed rather than buffered, null otherwise
+   */
+  public MessageInputStream getMessageStream() {
+    return reader.getMessageStream();
+  }
+
+  /**
+   * Sets the largest message accepted from the client, bigger messages close the connection with 1009
+   * @param bytes - The limit
+   * @see DataReader#setMaxMessageSize(long)
+   */
+  public void setMaxMessageSize(long bytes) {
+    reader.setMaxMessageSize(bytes);
+  }
+
+  /**
+   * Sets the timer used for the close and ping timeouts, defaults to {@link HashedWheelTimer#shared()}
+   * @param timer - The timer to use
+   */
+  public void setTimer(HashedWheelTimer timer) {
+    this.timer = timer;
+  }
+
+  HashedWheelTimer getTimer() { return timer; }
 }
@@ -0,0 +1,128 @@
+package io.github.oxi1224.websocket.server;
+
+import java.io.IOException;
+import java.util.Map;
+
+import io.github.oxi1224.websocket.core.DataFrame;
+import io.github.oxi1224.websocket.core.Opcode;
+import io.github.oxi1224.websocket.json.JSONException;
+import io.github.oxi1224.websocket.json.JSONObject;
+import io.github.oxi1224.websocket.messages.DefaultHandlerID;
+import io.github.oxi1224.websocket.messages.HandlerPair;
+import io.github.oxi1224.websocket.shared.exceptions.UsageError;
+
+/**
+ * Routes a message read by a {@link ClientSocket} to the matching handler
+ * <p>Shared by {@link WebSocketServer} and {@link NioWebSocketServer}</p>
+ */
+class Dispatcher {
+  private final Map<String, HandlerPair> handlers;
+  private final boolean normalWebsocket;
+  private final TopicRegistry topics;
+
+  Dispatcher(Map<String, HandlerPair> handlers, boolean normalWebsocket, TopicRegistry topics) {
+    this.handlers = handlers;
+    this.normalWebsocket = normalWebsocket;
+    this.topics = topics;
+  }
+
+  /**
+   * Invokes the handler for the message last read by the client
+   * @return false if the connection was closed and should no longer be read from
+   */
+  boolean dispatch(ClientSocket client) throws IOException {
+    if (client.getMessageStream() != null) {
+      dispatchStream(client);
+      return true;
+    }
+    DataFrame refFrame = client.getPayloadStartFrame();
+    Opcode opcode = refFrame.getOpcode();
+    switch (opcode) {
+      case PING: {
+        HandlerPair p = handlers.get(DefaultHandlerID.PING);
+        if (p != null) p.invoke(client);
+        break;
+      }
+      case CLOSE: {
+        HandlerPair p = handlers.get(DefaultHandlerID.CLOSE);
+        if (p != null) p.invoke(client);
+        break;
+      }
+      case PONG:
+        break;
+      default: {
+        // Spilled messages may not fit into memory, the message ID can not be read from them
+        if (normalWebsocket || refFrame.getRsv2() || client.getSpilledMessage() != null) {
+          HandlerPair p = handlers.get(DefaultHandlerID.DEFAULT);
+          if (p != null) p.invoke(client);
+        } else {
+          String messageID;
+          String topic = null;
+          if (opcode == Opcode.JSON) {
+            try {
+              JSONObject payload = client.getFullJSONPayload();
+              messageID = payload.get("messageID", String.class);
+              if (isTopicMessage(messageID)) {
+                topic = payload.get("topic") == null ? "" : payload.get("topic", String.class);
+              }
+            } catch (JSONException e) {
+              System.out.println("Payload did not parse to JSON or did not have messageID");
+              client.close();
+              return false;
+            }
+          } else {
+            String payload = client.getPayload();
+            messageID = payload.substring(0, payload.indexOf(" "));
+            if (isTopicMessage(messageID)) topic = payload.substring(messageID.length() + 1).trim();
+          }
+          if (topic != null && !handlers.containsKey(messageID)) {
+            handleTopicMessage(client, messageID, topic);
+            break;
+          }
+          HandlerPair p = handlers.get(handlers.containsKey(messageID) ? messageID : DefaultHandlerID.DEFAULT);
+          if (p != null) p.invoke(client);
+        }
+        break;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Invokes the {@link DefaultHandlerID#STREAM} handler for a streamed message or one frame of it
+   */
+  void dispatchStream(ClientSocket client) {
+    HandlerPair p = handlers.get(DefaultHandlerID.STREAM);
+    if (p != null) p.invoke(client);
+  }
+
+  boolean hasStreamHandler() {
+    return handlers.containsKey(DefaultHandlerID.STREAM);
+  }
+
+  private static boolean isTopicMessage(String messageID) {
+    return DefaultHandlerID.SUBSCRIBE.equals(messageID) || DefaultHandlerID.UNSUBSCRIBE.equals(messageID);
+  }
+
+  /**
+   * Built-in handling of subscribe/unsubscribe messages
+   * <p>The topic is the rest of a text payload or the "topic" key of a JSON payload</p>
+   */
+  private void handleTopicMessage(ClientSocket client, String messageID, String topic) {
+    try {
+      if (DefaultHandlerID.SUBSCRIBE.equals(messageID)) topics.subscribe(client, topic);
+      else topics.unsubscribe(client, topic);
+    } catch (UsageError e) {
+      System.out.println("Ignoring " + messageID + " with invalid topic: " + e.getMessage());
+    }
+  }
+
+  /**
+   * Collects all handlers extending MessageHandler with @Handler annotation
+   * @param packageName - The package to scan
+   * @param handlers - The map to put the found handlers into
+   */
+  static void collectHandlers(String packageName, Map<String, HandlerPair> handlers) {
+    HandlerPair.collect(packageName, ClientSocket.class, handlers);
+  }
+}
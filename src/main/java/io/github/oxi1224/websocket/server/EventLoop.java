@@ -0,0 +1,384 @@
+package io.github.oxi1224.websocket.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import io.github.oxi1224.websocket.core.BufferPool;
+import io.github.oxi1224.websocket.core.FrameCodec;
+import io.github.oxi1224.websocket.core.FrameHeader;
+import io.github.oxi1224.websocket.core.Opcode;
+import io.github.oxi1224.websocket.core.OutboundQueue;
+import io.github.oxi1224.websocket.core.PooledBuffer;
+import io.github.oxi1224.websocket.core.StatusCode;
+import io.github.oxi1224.websocket.messages.DefaultHandlerID;
+import io.github.oxi1224.websocket.shared.exceptions.InvalidPayloadException;
+import io.github.oxi1224.websocket.shared.exceptions.MessageTooLargeException;
+import io.github.oxi1224.websocket.shared.http.HttpParser;
+import io.github.oxi1224.websocket.shared.util.ByteBufferInputStream;
+import io.github.oxi1224.websocket.shared.util.HashedWheelTimer;
+
+/**
+ * A single selector thread driving the handshake, frame decoding and handler dispatch
+ * of every connection registered to it
+ * @see NioWebSocketServer
+ */
+class EventLoop implements Runnable {
+  private static final int INITIAL_BUFFER_SIZE = 8192;
+  /** Room for frame headers and interleaved control frames on top of the payload of a buffered message */
+  private static final int MAX_FRAMING_OVERHEAD = 64 * 1024;
+  /** The largest buffer a ByteBuffer can be allocated with */
+  private static final int MAX_BUFFER_SIZE = Integer.MAX_VALUE - 8;
+  private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+  private final NioWebSocketServer server;
+  private final Dispatcher dispatcher;
+  private final BufferPool bufferPool;
+  private final long maxMessageSize;
+  /** The inbound buffer of a connection is not grown past this */
+  private final int maxBufferSize;
+  /** Negative unless the server streams messages to a {@link DefaultHandlerID#STREAM} handler */
+  private final long streamingThreshold;
+  private final Selector selector;
+  private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+  private final AtomicInteger connectionCount = new AtomicInteger();
+  private volatile boolean running = true;
+
+  /** Connections with queued frames to write at the end of the current iteration */
+  private final ArrayList<Connection> pendingFlush = new ArrayList<>();
+  private Thread thread;
+  /** Reused for decoding headers, only touched by the loop thread */
+  private final FrameHeader header = new FrameHeader();
+
+  /**
+   * Per-connection state kept as the selection key attachment
+   */
+  class Connection {
+    private final SocketChannel channel;
+    private final ClientSocket client;
+    private final OutboundQueue queue;
+    private final ByteBufferInputStream in;
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    private final AtomicBoolean closed = new AtomicBoolean();
+    /** Holds partially received data, taken from the pool on demand and given back once empty */
+    private PooledBuffer inbound;
+    /** Parses the upgrade request, null once the handshake is done */
+    private HttpParser handshake = HttpParser.request();
+    private HashedWheelTimer.Timeout handshakeTimeout;
+    /** Whether the frames of a streamed message are being handed over */
+    private boolean streaming = false;
+    private SelectionKey key;
+
+    private Connection(SocketChannel channel, OutboundQueue queue) {
+      this.channel = channel;
+      this.queue = queue;
+      this.in = new ByteBufferInputStream();
+      this.client = new ClientSocket(channel, in, queue, this);
+    }
+
+    /**
+     * Makes the loop write the queued frames, called whenever a frame gets queued
+     * <p>Frames queued on the loop thread are written together at the end of the iteration</p>
+     */
+    void requestFlush() {
+      if (!flushScheduled.compareAndSet(false, true)) return;
+      if (Thread.currentThread() == thread) {
+        pendingFlush.add(this);
+        return;
+      }
+      tasks.add(() -> pendingFlush.add(this));
+      selector.wakeup();
+    }
+
+    /**
+     * Gives the inbound buffer back to the pool, must run on the loop thread outside of {@link #handleRead}
+     */
+    private void releaseInbound() {
+      if (inbound == null) return;
+      inbound.release();
+      inbound = null;
+    }
+
+    /**
+     * Writes what the channel accepts of the queued frames and closes the channel
+     * <p>Invoking the close callback is left to the caller</p>
+     */
+    void closeAfterFlush() {
+      if (Thread.currentThread() != thread) {
+        tasks.add(this::closeAfterFlush);
+        selector.wakeup();
+        return;
+      }
+      try {
+        queue.drainTo(channel);
+      } catch (IOException e) {}
+      queue.close();
+      queue.discardInFlight();
+      try {
+        channel.close();
+      } catch (IOException e) {}
+    }
+  }
+
+  EventLoop(NioWebSocketServer server, Dispatcher dispatcher) throws IOException {
+    this.server = server;
+    this.dispatcher = dispatcher;
+    this.bufferPool = server.getBufferPool();
+    this.maxMessageSize = server.getMaxMessageSize();
+    this.maxBufferSize = (int)Math.min(maxMessageSize + MAX_FRAMING_OVERHEAD, MAX_BUFFER_SIZE);
+    this.streamingThreshold = dispatcher.hasStreamHandler() ? server.getStreamingThreshold() : -1;
+    this.selector = Selector.open();
+  }
+
+  /**
+   * Hands an accepted channel over to this loop
+   * @param channel - The accepted channel, must be in non-blocking mode
+   */
+  void register(SocketChannel channel) {
+    connectionCount.incrementAndGet();
+    tasks.add(() -> {
+      Connection conn = new Connection(channel, server.createOutboundQueue());
+      try {
+        conn.key = channel.register(selector, SelectionKey.OP_READ, conn);
+      } catch (IOException e) {
+        connectionCount.decrementAndGet();
+        try {
+          channel.close();
+        } catch (IOException err) {}
+        return;
+      }
+      conn.client.onClose((c) -> {
+        server.cleanupSocket(c);
+        // Not in the registry yet if the handshake did not complete, so the registry can not tell whether it was counted
+        if (conn.closed.compareAndSet(false, true)) connectionCount.decrementAndGet();
+        // The close may happen in the middle of reading or writing, the buffers are only safe to release afterwards
+        tasks.add(() -> {
+          conn.releaseInbound();
+          conn.queue.discardInFlight();
+        });
+        selector.wakeup();
+      });
+      server.initClient(conn.client);
+      conn.handshakeTimeout = conn.client.getTimer().schedule(() -> {
+        tasks.add(() -> {
+          if (conn.handshake != null) conn.client.terminate();
+        });
+        selector.wakeup();
+      }, server.getHandshakeTimeout(), TimeUnit.MILLISECONDS);
+    });
+    selector.wakeup();
+  }
+
+  @Override
+  public void run() {
+    thread = Thread.currentThread();
+    while (running) {
+      try {
+        selector.select();
+      } catch (IOException e) {
+        break;
+      }
+      Runnable task;
+      while ((task = tasks.poll()) != null) task.run();
+      Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+      while (keys.hasNext()) {
+        SelectionKey key = keys.next();
+        keys.remove();
+        Connection conn = (Connection)key.attachment();
+        try {
+          if (key.isValid() && key.isWritable()) flush(conn);
+          if (key.isValid() && key.isReadable()) handleRead(conn);
+        } catch (IOException e) {
+          conn.client.terminate();
+        } catch (RuntimeException e) {
+          // A misbehaving connection must not take the whole loop down
+          e.printStackTrace();
+          conn.client.terminate();
+        }
+      }
+      for (int i = 0; i < pendingFlush.size(); i++) {
+        Connection conn = pendingFlush.get(i);
+        try {
+          flush(conn);
+        } catch (IOException e) {
+          conn.client.terminate();
+        }
+      }
+      pendingFlush.clear();
+    }
+    for (SelectionKey key : new ArrayList<>(selector.keys())) ((Connection)key.attachment()).client.terminate();
+    try {
+      selector.close();
+    } catch (IOException e) {}
+  }
+
+  /**
+   * Writes what the channel accepts of the queued frames, waiting for write readiness if anything is left
+   */
+  private void flush(Connection conn) throws IOException {
+    conn.flushScheduled.set(false);
+    if (!conn.key.isValid()) return;
+    if (conn.queue.drainTo(conn.channel)) {
+      conn.key.interestOpsAnd(~SelectionKey.OP_WRITE);
+    } else {
+      conn.key.interestOpsOr(SelectionKey.OP_WRITE);
+    }
+  }
+
+  /**
+   * Reads whatever the channel has and processes every complete message
+   */
+  private void handleRead(Connection conn) throws IOException {
+    if (conn.inbound == null) {
+      conn.inbound = bufferPool.allocate(INITIAL_BUFFER_SIZE);
+    } else if (!conn.inbound.buffer().hasRemaining()) {
+      try {
+        grow(conn);
+      } catch (MessageTooLargeException e) {
+        conn.client.closeWithoutWait(StatusCode.S_1009, "Message too big");
+        return;
+      }
+    }
+    ByteBuffer buf = conn.inbound.buffer();
+    int read = conn.channel.read(buf);
+    if (read == -1) {
+      conn.client.terminate();
+      return;
+    }
+    buf.flip();
+    try {
+      if (conn.handshake != null) {
+        // Throws once the request exceeds the header size limit
+        if (!conn.handshake.parse(buf)) return;
+        conn.handshakeTimeout.cancel();
+        conn.client.completeHandshake(conn.handshake.getRequest());
+        conn.handshake = null;
+        if (!conn.channel.isOpen()) return;
+        server.clientConnected(conn.client);
+        // Closed by the CONNECT handler or before it got registered, the close callback may not have found it
+        if (!conn.channel.isOpen()) {
+          server.cleanupSocket(conn.client);
+          return;
+        }
+      }
+      while (conn.channel.isOpen()) {
+        if (FrameCodec.decodeHeader(buf, buf.position(), header) == -1) break;
+        boolean streamed = isStreamed(conn, header);
+        boolean fin = header.getFin();
+        int length;
+        try {
+          length = streamed ? frameLength(buf) : completeMessageLength(buf);
+        } catch (MessageTooLargeException e) {
+          conn.client.closeWithoutWait(StatusCode.S_1009, "Message too big");
+          break;
+        }
+        if (length == -1) break;
+        // Limiting the buffer to the message instead of slicing it keeps reading free of allocations
+        int end = buf.position() + length;
+        int limit = buf.limit();
+        buf.limit(end);
+        conn.in.setBuffer(buf);
+        try {
+          // Frames of a streamed message are handed over one by one as soon as each is complete
+          if (streamed) conn.client.readStreamFrame();
+          else conn.client.read();
+        } catch (InvalidPayloadException e) {
+          // The client already queued its CLOSE, the loop closes the channel once it is written
+          break;
+        } finally {
+          buf.limit(limit);
+          buf.position(end);
+        }
+        if (streamed) {
+          conn.streaming = !fin;
+          dispatcher.dispatchStream(conn.client);
+          continue;
+        }
+        if (!dispatcher.dispatch(conn.client)) break;
+      }
+    } finally {
+      buf.compact();
+      conn.in.setBuffer(EMPTY);
+      // Idle connections do not hold on to a buffer
+      if (buf.position() == 0) conn.releaseInbound();
+    }
+  }
+
+  /**
+   * Doubles the inbound buffer of a connection, up to the maximum message size and its framing
+   * <p>The pool may round the size up, the buffer is only refused to grow once it holds that much</p>
+   * @throws MessageTooLargeException if the buffer already is at that size
+   */
+  private void grow(Connection conn) throws MessageTooLargeException {
+    ByteBuffer old = conn.inbound.buffer();
+    if (old.capacity() >= maxBufferSize) throw new MessageTooLargeException("Message too big");
+    long capacity = Math.min((long)old.capacity() * 2, maxBufferSize);
+    PooledBuffer grown = bufferPool.allocate((int)capacity);
+    old.flip();
+    grown.buffer().put(old);
+    conn.inbound.release();
+    conn.inbound = grown;
+  }
+
+  /**
+   * @return whether the frame whose header was just decoded belongs to a streamed message
+   */
+  private boolean isStreamed(Connection conn, FrameHeader header) {
+    if (streamingThreshold < 0 || header.getOpcode().isControl()) return false;
+    if (conn.streaming) return true;
+    if (header.getOpcode() == Opcode.CONTINUE || header.getRsv1()) return false;
+    return !header.getFin() || header.getPayloadLength() >= streamingThreshold;
+  }
+
+  /**
+   * @return the length of the frame whose header was just decoded or -1 if it is not fully buffered yet
+   * @throws MessageTooLargeException if the frame alone exceeds the maximum message size
+   */
+  private int frameLength(ByteBuffer buf) throws IOException {
+    if (header.getPayloadLength() > maxMessageSize) throw new MessageTooLargeException("Message too big");
+    long frameEnd = buf.position() + header.getFrameLength();
+    return frameEnd > buf.limit() ? -1 : (int)header.getFrameLength();
+  }
+
+  /**
+   * Walks the frame headers in the buffer without consuming them
+   * @return the amount of bytes making up the first message (up to and including the FIN frame)
+   * or -1 if the message is not fully buffered yet
+   * @throws MessageTooLargeException as soon as the headers announce more than the maximum message size
+   */
+  private int completeMessageLength(ByteBuffer buf) throws IOException {
+    int start = buf.position();
+    int idx = start;
+    long total = 0;
+    while (true) {
+      if (FrameCodec.decodeHeader(buf, idx, header) == -1) return -1;
+      // Control frames between the fragments are read along with the message but are not part of its payload
+      boolean interleaved = idx != start && header.getOpcode().isControl();
+      if (!interleaved) total += header.getPayloadLength();
+      if (total > maxMessageSize) throw new MessageTooLargeException("Message too big");
+      long frameEnd = idx + header.getFrameLength();
+      if (frameEnd > buf.limit()) return -1;
+      idx = (int)frameEnd;
+      if (header.getFin() && !interleaved) return idx - start;
+    }
+  }
+
+  /**
+   * Stops the loop, the loop closes its connections before exiting
+   */
+  void shutdown() {
+    running = false;
+    selector.wakeup();
+  }
+
+  int getConnectionCount() { return connectionCount.get(); }
+}
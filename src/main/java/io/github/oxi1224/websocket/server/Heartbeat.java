@@ -0,0 +1,95 @@
+package io.github.oxi1224.websocket.server;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import io.github.oxi1224.websocket.shared.util.HashedWheelTimer;
+
+/**
+ * Periodically sweeps the connected clients, pinging the quiet ones and closing the dead or idle ones
+ * <p>A client is dead when the ping sent by the previous sweep is still unanswered, which detects half-open
+ * connections that would otherwise never be closed. A client is idle when it sent nothing but PONGs
+ * for the idle timeout</p>
+ */
+class Heartbeat {
+  private final ClientRegistry clients;
+  private final HashedWheelTimer timer;
+  private final long intervalNanos;
+  private final long idleTimeoutNanos;
+  /** Sends the pings, null to send them on the timer thread */
+  private final Executor pingExecutor;
+  private volatile boolean stopped = false;
+  private volatile HashedWheelTimer.Timeout next;
+
+  /**
+   * @param clients - The clients to sweep
+   * @param timer - The timer scheduling the sweeps
+   * @param intervalMillis - Time between sweeps, also the time a client has to answer a ping
+   * @param idleTimeoutMillis - Time after which a client without activity is closed, 0 to disable
+   * @param pingExecutor - Sends the pings, null if writing never blocks
+   */
+  Heartbeat(
+    ClientRegistry clients,
+    HashedWheelTimer timer,
+    long intervalMillis,
+    long idleTimeoutMillis,
+    Executor pingExecutor
+  ) {
+    this.clients = clients;
+    this.timer = timer;
+    this.intervalNanos = TimeUnit.MILLISECONDS.toNanos(intervalMillis);
+    this.idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(idleTimeoutMillis);
+    this.pingExecutor = pingExecutor;
+  }
+
+  void start() {
+    next = timer.schedule(this::sweep, intervalNanos, TimeUnit.NANOSECONDS);
+  }
+
+  void stop() {
+    stopped = true;
+    HashedWheelTimer.Timeout timeout = next;
+    if (timeout != null) timeout.cancel();
+  }
+
+  /**
+   * Closes the dead and idle clients and pings the ones quiet for a whole interval
+   * <p>Closing does not write to the socket so a dead peer can not stall the sweep</p>
+   */
+  private void sweep() {
+    if (stopped) return;
+    long now = System.nanoTime();
+    List<ClientSocket> quiet = new ArrayList<>();
+    for (ClientSocket client : clients) {
+      long pingSentAt = client.getPingSentAt();
+      if (pingSentAt != 0 && now - pingSentAt >= intervalNanos) {
+        client.terminate();
+        continue;
+      }
+      long idle = now - client.getLastActivity();
+      if (idleTimeoutNanos > 0 && idle >= idleTimeoutNanos) {
+        client.terminate();
+        continue;
+      }
+      if (pingSentAt == 0 && idle >= intervalNanos) quiet.add(client);
+    }
+    if (!quiet.isEmpty()) {
+      if (pingExecutor == null) ping(quiet);
+      else pingExecutor.execute(() -> ping(quiet));
+    }
+    if (!stopped) start();
+  }
+
+  private static void ping(List<ClientSocket> quiet) {
+    for (ClientSocket client : quiet) {
+      try {
+        client.sendPing();
+      } catch (IOException e) {
+        client.terminate();
+      }
+    }
+  }
+}
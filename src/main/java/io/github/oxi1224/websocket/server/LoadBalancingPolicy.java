@@ -0,0 +1,36 @@
+package io.github.oxi1224.websocket.server;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Decides which event loop of a {@link NioWebSocketServer} receives a newly accepted connection
+ * <p>Implementations may be called from multiple acceptor threads at once</p>
+ */
+public interface LoadBalancingPolicy {
+  /**
+   * @param connectionCounts - The current amount of connections of every event loop
+   * @return the index of the event loop to use
+   */
+  public int select(int[] connectionCounts);
+
+  /**
+   * @return a policy cycling through the event loops
+   */
+  public static LoadBalancingPolicy roundRobin() {
+    AtomicInteger next = new AtomicInteger();
+    return (counts) -> Math.floorMod(next.getAndIncrement(), counts.length);
+  }
+
+  /**
+   * @return a policy picking the event loop with the fewest connections
+   */
+  public static LoadBalancingPolicy leastConnections() {
+    return (counts) -> {
+      int best = 0;
+      for (int i = 1; i < counts.length; i++) {
+        if (counts[i] < counts[best]) best = i;
+      }
+      return best;
+    };
+  }
+}
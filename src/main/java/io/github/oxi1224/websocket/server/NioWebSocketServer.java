@@ -0,0 +1,470 @@
+package io.github.oxi1224.websocket.server;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.HashMap;
+import java.util.Map;
+
+import io.github.oxi1224.websocket.core.BufferPool;
+import io.github.oxi1224.websocket.core.DataReader;
+import io.github.oxi1224.websocket.core.OutboundQueue;
+import io.github.oxi1224.websocket.core.PooledBuffer;
+import io.github.oxi1224.websocket.core.PreparedFrame;
+import io.github.oxi1224.websocket.core.SlowConsumerPolicy;
+import io.github.oxi1224.websocket.messages.DefaultHandlerID;
+import io.github.oxi1224.websocket.messages.Handler;
+import io.github.oxi1224.websocket.messages.HandlerPair;
+import io.github.oxi1224.websocket.messages.MessageHandler;
+import io.github.oxi1224.websocket.shared.exceptions.InvalidConfigurationError;
+import io.github.oxi1224.websocket.shared.util.HashedWheelTimer;
+
+/**
+ * A non-blocking alternative to {@link WebSocketServer}
+ * <p>Connections are served by a fixed amount of {@link EventLoop} threads instead of a thread per connection.
+ * Handlers are invoked on the event loop thread and should therefore not block</p>
+ */
+public class NioWebSocketServer {
+  public Map<String, HandlerPair> handlers = new HashMap<>();
+  private final ServerSocketChannel channel;
+  private final ClientRegistry clients = new ClientRegistry();
+  private final TopicRegistry topics = new TopicRegistry();
+  private String handlersPackageName;
+  /** Whether to use regular websockets (no message identification) */
+  private boolean normalWebsocket = false;
+  private boolean jsonProtocol = true;
+  private int eventLoopThreads = Runtime.getRuntime().availableProcessors();
+  private int acceptorThreads = 1;
+  private LoadBalancingPolicy loadBalancingPolicy = LoadBalancingPolicy.roundRobin();
+  private long outboundHighWatermark = 16 * 1024 * 1024;
+  private long outboundLowWatermark = 8 * 1024 * 1024;
+  private SlowConsumerPolicy slowConsumerPolicy = SlowConsumerPolicy.DISCONNECT;
+  private HashedWheelTimer timer = HashedWheelTimer.shared();
+  private BufferPool bufferPool = BufferPool.shared();
+  private long handshakeTimeout = 10000;
+  /** Time between heartbeat sweeps, 0 if disabled */
+  private long heartbeatInterval = 0;
+  private long idleTimeout = 0;
+  private long maxMessageSize = DataReader.MAX_ARRAY_MESSAGE_SIZE;
+  /** Negative if messages are always buffered */
+  private long streamingThreshold = -1;
+  private boolean reuseFrames = false;
+  private boolean tcpNoDelay = false;
+  /** Negative if permessage-deflate is not offered to clients */
+  private int compressionMinSize = -1;
+  private boolean compressionContextTakeover;
+  private Heartbeat heartbeat;
+  private EventLoop[] eventLoops;
+
+  public NioWebSocketServer(int port) throws IOException {
+    this(port, 50);
+  }
+
+  public NioWebSocketServer(int port, int backlog) throws IOException {
+    this(port, backlog, null);
+  }
+
+  public NioWebSocketServer(int port, int backlog, InetAddress bindAddr) throws IOException {
+    channel = ServerSocketChannel.open();
+    channel.bind(new InetSocketAddress(bindAddr, port), backlog);
+  }
+
+  /**
+   * Sets the package name where all message handlers are located
+   * The handlers must have an @Handler annotation and must extend MessageHandler
+   * @see MessageHandler
+   * @see Handler
+   */
+  public void setHandlersPackageName(String name) {
+    handlersPackageName = name;
+  }
+
+  /**
+   * Forces the server into using standard WebSocket
+   * <p>Disables JSON communication and message identification</p>
+   */
+  public void useNormalWebsocket() {
+    normalWebsocket = true;
+    jsonProtocol = false;
+  }
+
+  /**
+   * Forces the server to use plain text/binary
+   * <p>Does not disable message identification</p>
+   */
+  public void disableJSON() {
+    jsonProtocol = false;
+  }
+
+  /**
+   * Sets the amount of event loop threads, defaults to the amount of available processors
+   * @param threads - The amount of threads
+   */
+  public void setEventLoopThreads(int threads) {
+    if (threads < 1) throw new InvalidConfigurationError("At least one event loop thread is required");
+    eventLoopThreads = threads;
+  }
+
+  /**
+   * Sets the amount of threads accepting connections, defaults to 1
+   * <p>The calling thread of {@link #start()} is one of them</p>
+   * @param threads - The amount of threads
+   */
+  public void setAcceptorThreads(int threads) {
+    if (threads < 1) throw new InvalidConfigurationError("At least one acceptor thread is required");
+    acceptorThreads = threads;
+  }
+
+  /**
+   * Sets how accepted connections are distributed across the event loops, defaults to round robin
+   * @param policy - The policy to use
+   * @see LoadBalancingPolicy
+   */
+  public void setLoadBalancingPolicy(LoadBalancingPolicy policy) {
+    loadBalancingPolicy = policy;
+  }
+
+  /**
+   * Configures the outbound queue of every connection, defaults to 16MiB/8MiB and {@link SlowConsumerPolicy#DISCONNECT}
+   * @param highWatermark - Amount of queued bytes past which the policy applies
+   * @param lowWatermark - Amount of queued bytes the queue has to drain to before counting as writable again
+   * @param policy - What to do with frames exceeding the high watermark, may not be {@link SlowConsumerPolicy#BLOCK}
+   * as it would block the event loop draining the queue
+   * @see OutboundQueue
+   */
+  public void setOutboundQueue(long highWatermark, long lowWatermark, SlowConsumerPolicy policy) {
+    if (policy == SlowConsumerPolicy.BLOCK) throw new InvalidConfigurationError("BLOCK can not be used with event loops");
+    if (lowWatermark > highWatermark) throw new InvalidConfigurationError("lowWatermark may not exceed highWatermark");
+    outboundHighWatermark = highWatermark;
+    outboundLowWatermark = lowWatermark;
+    slowConsumerPolicy = policy;
+  }
+
+  /**
+   * Sets the largest message accepted from a client, bigger messages close the connection with 1009
+   * <p>Checked against the frame headers before the payload is buffered, defaults to the largest array</p>
+   * @param bytes - The limit
+   */
+  public void setMaxMessageSize(long bytes) {
+    if (bytes <= 0 || bytes > DataReader.MAX_ARRAY_MESSAGE_SIZE) {
+      throw new InvalidConfigurationError("maxMessageSize must be between 1 and " + DataReader.MAX_ARRAY_MESSAGE_SIZE);
+    }
+    maxMessageSize = bytes;
+  }
+
+  /**
+   * Accepts permessage-deflate from clients offering it, disabled by default
+   * <p>Without context takeover both sides reset their compression context after every message, which compresses
+   * worse but lets connections borrow pooled compressors per message instead of keeping their own.
+   * Broadcasts and publishes are then compressed once and shared by all such connections</p>
+   * @param minSize - Messages shorter than this are sent uncompressed
+   * @param contextTakeover - Whether compression contexts are kept between messages
+   */
+  public void enableCompression(int minSize, boolean contextTakeover) {
+    if (minSize < 0) throw new InvalidConfigurationError("minSize may not be negative");
+    compressionMinSize = minSize;
+    compressionContextTakeover = contextTakeover;
+  }
+
+  /**
+   * Hands data messages whose first frame is not final or carries at least this many bytes to the
+   * {@link DefaultHandlerID#STREAM} handler while they arrive instead of buffering them
+   * <p>Disabled by default and ignored unless such a handler exists</p>
+   * @param bytes - The threshold, 0 to stream every data message
+   */
+  public void setStreamingThreshold(long bytes) {
+    if (bytes < 0) throw new InvalidConfigurationError("streamingThreshold may not be negative");
+    streamingThreshold = bytes;
+  }
+
+  /**
+   * Reads the messages of every connection into a frame and payload array kept per connection
+   * <p>Receiving small messages then allocates nothing besides what handlers ask for. Handlers may only use
+   * {@link ClientSocket#getPayloadFrames()} and {@link ClientSocket#getPayloadBuffer()} until they return,
+   * anything kept longer has to be copied. Disabled by default</p>
+   * @param reuse - Whether to reuse frames
+   */
+  public void setReuseFrames(boolean reuse) {
+    reuseFrames = reuse;
+  }
+
+  /**
+   * Sets TCP_NODELAY on accepted sockets, which sends small writes without waiting for outstanding acknowledgements
+   * <p>Disabled by default. Frames written on an event loop are already coalesced: everything queued
+   * while the loop handles its ready connections goes out in one gathering write per connection</p>
+   * @param noDelay - Whether to disable Nagle's algorithm
+   */
+  public void setTcpNoDelay(boolean noDelay) {
+    tcpNoDelay = noDelay;
+  }
+
+  /**
+   * Sets how long a connection may take to complete the handshake before it is closed, defaults to 10s
+   * @param millis - The timeout in milliseconds
+   */
+  public void setHandshakeTimeout(long millis) {
+    if (millis <= 0) throw new InvalidConfigurationError("handshakeTimeout must be positive");
+    handshakeTimeout = millis;
+  }
+
+  /**
+   * Enables the heartbeat, disabled by default
+   * <p>Every interval the clients that sent nothing during the last interval get pinged, clients not answering
+   * by the next sweep are considered dead and closed. Clients that sent nothing but PONGs for the idle timeout
+   * are closed as well</p>
+   * @param intervalMillis - Time between sweeps
+   * @param idleTimeoutMillis - Time after which a client without activity is closed, 0 to only close dead clients
+   */
+  public void setHeartbeat(long intervalMillis, long idleTimeoutMillis) {
+    if (intervalMillis <= 0) throw new InvalidConfigurationError("Heartbeat interval must be positive");
+    if (idleTimeoutMillis < 0) throw new InvalidConfigurationError("idleTimeout may not be negative");
+    heartbeatInterval = intervalMillis;
+    idleTimeout = idleTimeoutMillis;
+  }
+
+  /**
+   * Sets the timer used for the handshake, close and ping timeouts of every client,
+   * defaults to {@link HashedWheelTimer#shared()}
+   * @param timer - The timer to use
+   */
+  public void setTimer(HashedWheelTimer timer) {
+    this.timer = timer;
+  }
+
+  /**
+   * Sets the pool outgoing frames and the buffers connections read into are taken from, defaults to {@link BufferPool#shared()}
+   * @param pool - The pool to use
+   */
+  public void setBufferPool(BufferPool pool) {
+    bufferPool = pool;
+  }
+
+  /**
+   * Collects the handlers, starts the event loops and the acceptor threads
+   * <p>Blocks, running one of the accept loops on the calling thread</p>
+   */
+  public void start() throws IOException {
+    if (handlersPackageName == null || handlersPackageName.isBlank()) {
+      throw new InvalidConfigurationError("handlersPackageName is blank, set it via setHandlersPackageName");
+    }
+    Dispatcher.collectHandlers(handlersPackageName, handlers);
+    Dispatcher dispatcher = new Dispatcher(handlers, normalWebsocket, topics);
+    eventLoops = new EventLoop[eventLoopThreads];
+    for (int i = 0; i < eventLoopThreads; i++) {
+      eventLoops[i] = new EventLoop(this, dispatcher);
+      Thread t = new Thread(eventLoops[i], "websocket-event-loop-" + i);
+      t.setDaemon(true);
+      t.start();
+    }
+    for (int i = 1; i < acceptorThreads; i++) {
+      Thread t = new Thread(this::acceptLoop, "websocket-acceptor-" + i);
+      t.setDaemon(true);
+      t.start();
+    }
+    if (heartbeatInterval > 0) {
+      // Pings only get queued, sending them on the timer thread never blocks
+      heartbeat = new Heartbeat(clients, timer, heartbeatInterval, idleTimeout, null);
+      heartbeat.start();
+    }
+    acceptLoop();
+    for (EventLoop loop : eventLoops) loop.shutdown();
+  }
+
+  /**
+   * Accepts connections and hands them over to an event loop until the server is closed
+   * <p>Only accepting happens here, the handshake is done by the event loop</p>
+   */
+  private void acceptLoop() {
+    int[] counts = new int[eventLoops.length];
+    while (channel.isOpen()) {
+      SocketChannel accepted;
+      try {
+        accepted = channel.accept();
+      } catch (ClosedChannelException e) {
+        break;
+      } catch (IOException e) {
+        // Usually running out of file descriptors, keep accepting
+        e.printStackTrace();
+        continue;
+      }
+      try {
+        accepted.configureBlocking(false);
+        accepted.setOption(StandardSocketOptions.TCP_NODELAY, tcpNoDelay);
+      } catch (IOException e) {
+        try {
+          accepted.close();
+        } catch (IOException err) {}
+        continue;
+      }
+      for (int i = 0; i < eventLoops.length; i++) counts[i] = eventLoops[i].getConnectionCount();
+      eventLoops[loadBalancingPolicy.select(counts)].register(accepted);
+    }
+  }
+
+  long getHandshakeTimeout() { return handshakeTimeout; }
+  BufferPool getBufferPool() { return bufferPool; }
+  long getMaxMessageSize() { return maxMessageSize; }
+  long getStreamingThreshold() { return streamingThreshold; }
+
+  OutboundQueue createOutboundQueue() {
+    return new OutboundQueue(outboundHighWatermark, outboundLowWatermark, slowConsumerPolicy);
+  }
+
+  /**
+   * Applies the server configuration to a freshly accepted client
+   * <p>Called on the event loop thread the client got registered to</p>
+   */
+  void initClient(ClientSocket client) {
+    if (normalWebsocket) client.useNormalWebsocket();
+    else if (!jsonProtocol) client.disableJSON();
+    client.setTimer(timer);
+    client.setBufferPool(bufferPool);
+    client.setMaxMessageSize(maxMessageSize);
+    if (reuseFrames) client.setReuseFrames(true);
+    if (compressionMinSize >= 0) client.enableCompression(compressionMinSize, compressionContextTakeover);
+  }
+
+  /**
+   * Adds a client to the registry once its handshake succeeded and runs the CONNECT handler
+   * <p>Before that broadcasts, publishes and pings could queue frames ahead of the handshake response</p>
+   */
+  void clientConnected(ClientSocket client) {
+    clients.add(client);
+    HandlerPair connectHandler = handlers.get(DefaultHandlerID.CONNECT);
+    if (connectHandler != null) connectHandler.invoke(client);
+  }
+
+  /**
+   * Sends a message to every connected client
+   * <p>The frame is encoded once and the same bytes are written to every client. With compression enabled
+   * it is also compressed once for every client that negotiated it without context takeover</p>
+   * @param payload - The payload to send
+   * @return the amount of recipients and the ones that failed
+   */
+  public BroadcastResult broadcast(byte[] payload) throws IOException {
+    return broadcast(PreparedFrame.of(payload));
+  }
+  
+  /**
+   * Sends a message to every connected client
+   * <p>The frame is encoded once and the same bytes are written to every client. With compression enabled
+   * it is also compressed once for every client that negotiated it without context takeover</p>
+   * @param payload - The payload to send
+   * @return the amount of recipients and the ones that failed
+   */
+  public BroadcastResult broadcast(String payload) throws IOException {
+    return broadcast(PreparedFrame.of(payload));
+  }
+  
+  /**
+   * Sends a message to every connected client
+   * <p>The frame is encoded once and the same bytes are written to every client. With compression enabled
+   * it is also compressed once for every client that negotiated it without context takeover</p>
+   * @param messageID - The message ID
+   * @param payload - The payload to send
+   * @return the amount of recipients and the ones that failed
+   */
+  public BroadcastResult broadcast(String messageID, String payload) throws IOException {
+    return broadcast(PreparedFrame.of(messageID, payload));
+  }
+
+  /**
+   * Sends an already serialized frame to every connected client
+   * <p>Failing to write to a client does not stop the broadcast, the failures are reported in the result</p>
+   * @param frame - The frame to send
+   * @return the amount of recipients and the ones that failed
+   */
+  public BroadcastResult broadcast(PreparedFrame frame) {
+    return BroadcastResult.writeAll(clients, frame);
+  }
+
+  /**
+   * Sends a frame serialized into a pooled buffer to every connected client, taking over one reference
+   * <p>Every client holds its own reference while the frame waits to be written,
+   * the buffer goes back to the pool once the last client is done with it</p>
+   * @param frame - The frame to send, in read mode
+   * @return the amount of recipients and the ones that failed
+   */
+  public BroadcastResult broadcast(PooledBuffer frame) {
+    return BroadcastResult.writeAll(clients, frame);
+  }
+
+  /**
+   * Sends a message to every client subscribed to the topic
+   * <p>The frame is encoded and, for subscribers without context takeover, compressed once</p>
+   * @param topic - The topic to publish to
+   * @param payload - The payload to send
+   * @return the amount of recipients and the ones that failed
+   * @see TopicRegistry
+   */
+  public BroadcastResult publish(String topic, String payload) throws IOException {
+    return topics.publish(topic, PreparedFrame.of(payload));
+  }
+
+  /**
+   * Sends a message to every client subscribed to the topic
+   * <p>The frame is encoded and, for subscribers without context takeover, compressed once</p>
+   * @param topic - The topic to publish to
+   * @param messageID - The message ID
+   * @param payload - The payload to send
+   * @return the amount of recipients and the ones that failed
+   * @see TopicRegistry
+   */
+  public BroadcastResult publish(String topic, String messageID, String payload) throws IOException {
+    return topics.publish(topic, PreparedFrame.of(messageID, payload));
+  }
+
+  /**
+   * Sends an already serialized frame to every client subscribed to the topic
+   * @param topic - The topic to publish to
+   * @param frame - The frame to send
+   * @return the amount of recipients and the ones that failed
+   * @see TopicRegistry
+   */
+  public BroadcastResult publish(String topic, PreparedFrame frame) {
+    return topics.publish(topic, frame);
+  }
+
+  /**
+   * Sends a frame serialized into a pooled buffer to every client subscribed to the topic, taking over one reference
+   * @param topic - The topic to publish to
+   * @param frame - The frame to send, in read mode
+   * @return the amount of recipients and the ones that failed
+   * @see #broadcast(PooledBuffer)
+   */
+  public BroadcastResult publish(String topic, PooledBuffer frame) {
+    return topics.publish(topic, frame);
+  }
+
+  /**
+   * Stops accepting connections and shuts the event loops down
+   */
+  public void close() throws IOException {
+    if (heartbeat != null) heartbeat.stop();
+    channel.close();
+  }
+
+  /**
+   * Cleans-up the resources left by a closed socket
+   * @return whether the socket was still registered
+   */
+  boolean cleanupSocket(ClientSocket socket) {
+    topics.unsubscribeAll(socket);
+    return clients.remove(socket);
+  }
+
+  /**
+   * @return the connected clients
+   */
+  public ClientRegistry getClients() { return clients; }
+  public int getLocalPort() { return channel.socket().getLocalPort(); }
+  /**
+   * @return the subscriptions of the connected clients, clients subscribe with
+   * the {@link DefaultHandlerID#SUBSCRIBE} message or through {@link TopicRegistry#subscribe(ClientSocket, String)}
+   */
+  public TopicRegistry getTopics() { return topics; }
+}
@@ -0,0 +1,170 @@
+package io.github.oxi1224.websocket.server;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+import io.github.oxi1224.websocket.core.PooledBuffer;
+import io.github.oxi1224.websocket.core.PreparedFrame;
+import io.github.oxi1224.websocket.shared.exceptions.UsageError;
+
+/**
+ * Index of topic subscriptions used for publish/subscribe
+ * <p>Topics are dot separated segments such as {@code market.btc.trades}. A subscription may use {@code *}
+ * in place of a segment to match any single segment, for example {@code market.*.trades}</p>
+ * <p>Subscriptions are kept in a trie so publishing only visits the branches matching the topic,
+ * the cost does not depend on the amount of connected clients. Matching does not lock,
+ * subscribing and unsubscribing are serialized</p>
+ */
+public class TopicRegistry {
+  public static final String WILDCARD = "*";
+
+  private static class Node {
+    final Map<String, Node> children = new ConcurrentHashMap<>();
+    final Set<ClientSocket> subscribers = ConcurrentHashMap.newKeySet();
+
+    boolean isEmpty() { return children.isEmpty() && subscribers.isEmpty(); }
+  }
+
+  private final Node root = new Node();
+  /** The patterns every client is subscribed to, used to drop a closed client without walking the trie */
+  private final Map<ClientSocket, Set<String>> subscriptions = new ConcurrentHashMap<>();
+  private final ReentrantLock lock = new ReentrantLock();
+
+  /**
+   * Subscribes a client to every topic matching the pattern
+   * @param client - The client to subscribe
+   * @param pattern - The topic, may contain {@code *} segments
+   * @return false if the client was already subscribed to the pattern or is closed
+   * @throws UsageError if the pattern is empty or contains an empty segment
+   */
+  public boolean subscribe(ClientSocket client, String pattern) {
+    String[] segments = split(pattern);
+    lock.lock();
+    try {
+      // Checked under the lock, a client closed in the meantime already went through unsubscribeAll
+      // and would otherwise stay in the trie for good
+      if (client.isClosed()) return false;
+      Node node = root;
+      for (String segment : segments) node = node.children.computeIfAbsent(segment, (k) -> new Node());
+      if (!node.subscribers.add(client)) return false;
+      subscriptions.computeIfAbsent(client, (k) -> ConcurrentHashMap.newKeySet()).add(pattern);
+      return true;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Removes a subscription made with {@link #subscribe(ClientSocket, String)}
+   * @param client - The subscribed client
+   * @param pattern - The exact pattern used to subscribe
+   * @return false if the client was not subscribed to the pattern
+   */
+  public boolean unsubscribe(ClientSocket client, String pattern) {
+    String[] segments = split(pattern);
+    lock.lock();
+    try {
+      if (!remove(root, segments, 0, client)) return false;
+      Set<String> patterns = subscriptions.get(client);
+      if (patterns != null) {
+        patterns.remove(pattern);
+        if (patterns.isEmpty()) subscriptions.remove(client);
+      }
+      return true;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Removes every subscription of a client, called when it disconnects
+   * @param client - The client to remove
+   */
+  public void unsubscribeAll(ClientSocket client) {
+    lock.lock();
+    try {
+      Set<String> patterns = subscriptions.remove(client);
+      if (patterns == null) return;
+      for (String pattern : patterns) remove(root, split(pattern), 0, client);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Removes the client from the node at the end of the path and prunes the nodes left empty
+   */
+  private static boolean remove(Node node, String[] segments, int idx, ClientSocket client) {
+    if (idx == segments.length) return node.subscribers.remove(client);
+    Node child = node.children.get(segments[idx]);
+    if (child == null || !remove(child, segments, idx + 1, client)) return false;
+    if (child.isEmpty()) node.children.remove(segments[idx]);
+    return true;
+  }
+
+  /**
+   * Collects the clients subscribed to a topic
+   * @param topic - The concrete topic, {@code *} segments are matched literally
+   * @return the subscribed clients, every client is included once even if several of its patterns match
+   */
+  public Set<ClientSocket> match(String topic) {
+    Set<ClientSocket> out = new HashSet<>();
+    collect(root, split(topic), 0, out);
+    return out;
+  }
+
+  private static void collect(Node node, String[] segments, int idx, Set<ClientSocket> out) {
+    if (idx == segments.length) {
+      out.addAll(node.subscribers);
+      return;
+    }
+    Node exact = node.children.get(segments[idx]);
+    if (exact != null) collect(exact, segments, idx + 1, out);
+    Node wildcard = node.children.get(WILDCARD);
+    if (wildcard != null && wildcard != exact) collect(wildcard, segments, idx + 1, out);
+  }
+
+  /**
+   * Writes a frame to every client subscribed to the topic
+   * <p>Failing to write to a client does not stop the publish, the failures are reported in the result</p>
+   * @param topic - The topic to publish to
+   * @param frame - The frame to send
+   * @return the amount of recipients and the ones that failed
+   */
+  public BroadcastResult publish(String topic, PreparedFrame frame) {
+    return BroadcastResult.writeAll(match(topic), frame);
+  }
+
+  /**
+   * Writes a frame held in a pooled buffer to every client subscribed to the topic, taking over one reference
+   * <p>Every subscriber gets its own reference, the caller's reference is released once all writes were issued</p>
+   * @param topic - The topic to publish to
+   * @param frame - The frame to send, in read mode
+   * @return the amount of recipients and the ones that failed
+   */
+  public BroadcastResult publish(String topic, PooledBuffer frame) {
+    return BroadcastResult.writeAll(match(topic), frame);
+  }
+
+  /**
+   * @param client - The client
+   * @return a read-only view of the patterns the client is subscribed to
+   */
+  public Set<String> getSubscriptions(ClientSocket client) {
+    Set<String> patterns = subscriptions.get(client);
+    return patterns == null ? Collections.emptySet() : Collections.unmodifiableSet(patterns);
+  }
+
+  private static String[] split(String topic) {
+    if (topic == null || topic.isEmpty()) throw new UsageError("Topic may not be empty");
+    String[] segments = topic.split("\\.", -1);
+    for (String segment : segments) {
+      if (segment.isEmpty()) throw new UsageError("Topic " + topic + " contains an empty segment");
+    }
+    return segments;
+  }
+}
@@ -1,31 +1,70 @@
 package io.github.oxi1224.websocket.server;
 
+import java.io.EOFException;
 import java.io.IOException;
-import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.Method;
 import java.net.InetAddress;
+import java.nio.file.Path;
 import java.util.HashMap;
-import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
-import io.github.oxi1224.websocket.core.DataFrame;
-import io.github.oxi1224.websocket.core.Opcode;
-import io.github.oxi1224.websocket.json.JSONException;
+import io.github.oxi1224.websocket.core.BufferPool;
+import io.github.oxi1224.websocket.core.DataReader;
+import io.github.oxi1224.websocket.core.OutboundQueue;
+import io.github.oxi1224.websocket.core.PooledBuffer;
+import io.github.oxi1224.websocket.core.PreparedFrame;
+import io.github.oxi1224.websocket.core.SlowConsumerPolicy;
 import io.github.oxi1224.websocket.messages.Handler;
 import io.github.oxi1224.websocket.messages.HandlerPair;
 import io.github.oxi1224.websocket.messages.MessageHandler;
 import io.github.oxi1224.websocket.messages.DefaultHandlerID;
 import io.github.oxi1224.websocket.shared.exceptions.InvalidConfigurationError;
-import io.github.oxi1224.websocket.shared.exceptions.InvalidHandlerError;
-import io.github.oxi1224.websocket.shared.util.ClassScanner;
+import io.github.oxi1224.websocket.shared.exceptions.InvalidPayloadException;
+import io.github.oxi1224.websocket.shared.exceptions.MessageTooLargeException;
+import io.github.oxi1224.websocket.shared.util.HashedWheelTimer;
+import io.github.oxi1224.websocket.shared.util.ThreadFactories;
 
 public class WebSocketServer extends java.net.ServerSocket {
-  public Map<ClientSocket, Thread> clients = new HashMap<>();
+  private final ClientRegistry clients = new ClientRegistry();
+  /** The thread running the read loop of every connected client, interrupted when the client closes */
+  private final Map<ClientSocket, Thread> clientThreads = new ConcurrentHashMap<>();
   public Map<String, HandlerPair> handlers = new HashMap<>();
   private String handlersPackageName;
   /** Whether to use regular websockets (no message identification) */
   private boolean normalWebsocket = false;
   private boolean jsonProtocol = true;
+  private Dispatcher dispatcher;
+  private final TopicRegistry topics = new TopicRegistry();
+  private ThreadFactory threadFactory = ThreadFactories.platform();
+  private Executor executor;
+  /** Drains the outbound queues, null unless setOutboundQueue was called */
+  private Executor writerExecutor;
+  private long outboundHighWatermark;
+  private long outboundLowWatermark;
+  private SlowConsumerPolicy slowConsumerPolicy;
+  private HashedWheelTimer timer = HashedWheelTimer.shared();
+  private BufferPool bufferPool = BufferPool.shared();
+  private long handshakeTimeout = 10000;
+  /** Time between heartbeat sweeps, 0 if disabled */
+  private long heartbeatInterval = 0;
+  private long idleTimeout = 0;
+  private long maxMessageSize = DataReader.MAX_ARRAY_MESSAGE_SIZE;
+  /** Negative if messages are always buffered */
+  private long streamingThreshold = -1;
+  private boolean reuseFrames = false;
+  private boolean coalesceWrites = false;
+  private boolean tcpNoDelay = false;
+  /** Negative if messages are never spilled */
+  private long spillThreshold = -1;
+  private Path spillDirectory;
+  /** Negative if permessage-deflate is not offered to clients */
+  private int compressionMinSize = -1;
+  private boolean compressionContextTakeover;
+  private Heartbeat heartbeat;
 
   public WebSocketServer(int port) throws IOException {
     super(port);
@@ -66,6 +105,171 @@ public class WebSocketServer extends java.net.ServerSocket {
     jsonProtocol = false;
   }
   
+  /**
+   * Sets the factory used to create the per-connection threads
+   * @param factory - The factory to use
+   */
+  public void setThreadFactory(ThreadFactory factory) {
+    threadFactory = factory;
+    executor = null;
+  }
+
+  /**
+   * Runs the per-connection loops on the given executor instead of dedicated threads
+   * @param executor - The executor to use
+   */
+  public void setExecutor(Executor executor) {
+    this.executor = executor;
+  }
+
+  /**
+   * Runs every connection loop on its own virtual thread
+   * <p>Requires Java 21 or newer</p>
+   */
+  public void useVirtualThreads() {
+    setThreadFactory(ThreadFactories.virtual("websocket-client-"));
+  }
+  
+  /**
+   * Gives every client a bounded outbound queue drained asynchronously by writer tasks
+   * <p>Handlers and broadcasts then no longer block on slow clients. The writer tasks run on the executor
+   * if one is set, otherwise on threads from the thread factory</p>
+   * @param highWatermark - Amount of queued bytes past which the policy applies
+   * @param lowWatermark - Amount of queued bytes the queue has to drain to before counting as writable again
+   * @param policy - What to do with frames exceeding the high watermark
+   * @see OutboundQueue
+   */
+  public void setOutboundQueue(long highWatermark, long lowWatermark, SlowConsumerPolicy policy) {
+    if (lowWatermark > highWatermark) throw new InvalidConfigurationError("lowWatermark may not exceed highWatermark");
+    outboundHighWatermark = highWatermark;
+    outboundLowWatermark = lowWatermark;
+    slowConsumerPolicy = policy;
+  }
+  
+  /**
+   * Sets the largest message accepted from a client, bigger messages close the connection with 1009
+   * <p>Checked against the frame headers before the payload is buffered, defaults to the largest array.
+   * Messages above that are only accepted with a spill threshold set</p>
+   * @param bytes - The limit
+   */
+  public void setMaxMessageSize(long bytes) {
+    if (bytes <= 0) throw new InvalidConfigurationError("maxMessageSize must be positive");
+    maxMessageSize = bytes;
+  }
+
+  /**
+   * Writes messages growing to at least the threshold into memory-mapped temporary files instead of the heap
+   * <p>Spilled messages go to the {@link DefaultHandlerID#DEFAULT} handler, which reads them through
+   * {@link ClientSocket#getSpilledMessage()}. Disabled by default</p>
+   * @param bytes - The threshold
+   * @param directory - Where to create the files, null for the default temporary directory
+   * @see io.github.oxi1224.websocket.core.SpilledMessage
+   */
+  public void setSpillThreshold(long bytes, Path directory) {
+    if (bytes < 0 || bytes > DataReader.MAX_ARRAY_MESSAGE_SIZE) {
+      throw new InvalidConfigurationError("spillThreshold must be between 0 and " + DataReader.MAX_ARRAY_MESSAGE_SIZE);
+    }
+    spillThreshold = bytes;
+    spillDirectory = directory;
+  }
+
+  /**
+   * Accepts permessage-deflate from clients offering it, disabled by default
+   * <p>Without context takeover both sides reset their compression context after every message, which compresses
+   * worse but lets connections borrow pooled compressors per message instead of keeping their own.
+   * Broadcasts and publishes are then compressed once and shared by all such connections</p>
+   * @param minSize - Messages shorter than this are sent uncompressed
+   * @param contextTakeover - Whether compression contexts are kept between messages
+   */
+  public void enableCompression(int minSize, boolean contextTakeover) {
+    if (minSize < 0) throw new InvalidConfigurationError("minSize may not be negative");
+    compressionMinSize = minSize;
+    compressionContextTakeover = contextTakeover;
+  }
+
+  /**
+   * Hands data messages whose first frame is not final or carries at least this many bytes to the
+   * {@link DefaultHandlerID#STREAM} handler while they arrive instead of buffering them
+   * <p>Disabled by default and ignored unless such a handler exists</p>
+   * @param bytes - The threshold, 0 to stream every data message
+   */
+  public void setStreamingThreshold(long bytes) {
+    if (bytes < 0) throw new InvalidConfigurationError("streamingThreshold may not be negative");
+    streamingThreshold = bytes;
+  }
+
+  /**
+   * Reads the messages of every connection into a frame and payload array kept per connection
+   * <p>Receiving small messages then allocates nothing besides what handlers ask for. Handlers may only use
+   * {@link ClientSocket#getPayloadFrames()} and {@link ClientSocket#getPayloadBuffer()} until they return,
+   * anything kept longer has to be copied. Disabled by default</p>
+   * @param reuse - Whether to reuse frames
+   */
+  public void setReuseFrames(boolean reuse) {
+    reuseFrames = reuse;
+  }
+
+  /**
+   * Corks every connection while a handler runs, so the frames it writes go out in a single write once it returns
+   * <p>Control frames are still sent right away. Disabled by default</p>
+   * @param coalesce - Whether to coalesce the writes of a handler
+   * @see ClientSocket#cork()
+   */
+  public void setWriteCoalescing(boolean coalesce) {
+    coalesceWrites = coalesce;
+  }
+
+  /**
+   * Sets TCP_NODELAY on accepted sockets, which sends small writes without waiting for outstanding acknowledgements
+   * <p>Disabled by default. Mostly useful together with {@link #setWriteCoalescing(boolean)},
+   * which already batches what Nagle's algorithm would otherwise delay</p>
+   * @param noDelay - Whether to disable Nagle's algorithm
+   */
+  public void setTcpNoDelay(boolean noDelay) {
+    tcpNoDelay = noDelay;
+  }
+
+  /**
+   * Sets how long a connection may take to complete the handshake before it is closed, defaults to 10s
+   * @param millis - The timeout in milliseconds
+   */
+  public void setHandshakeTimeout(long millis) {
+    if (millis <= 0) throw new InvalidConfigurationError("handshakeTimeout must be positive");
+    handshakeTimeout = millis;
+  }
+
+  /**
+   * Enables the heartbeat, disabled by default
+   * <p>Every interval the clients that sent nothing during the last interval get pinged, clients not answering
+   * by the next sweep are considered dead and closed. Clients that sent nothing but PONGs for the idle timeout
+   * are closed as well</p>
+   * @param intervalMillis - Time between sweeps
+   * @param idleTimeoutMillis - Time after which a client without activity is closed, 0 to only close dead clients
+   */
+  public void setHeartbeat(long intervalMillis, long idleTimeoutMillis) {
+    if (intervalMillis <= 0) throw new InvalidConfigurationError("Heartbeat interval must be positive");
+    if (idleTimeoutMillis < 0) throw new InvalidConfigurationError("idleTimeout may not be negative");
+    heartbeatInterval = intervalMillis;
+    idleTimeout = idleTimeoutMillis;
+  }
+
+  /**
+   * Sets the timer used for the handshake, close and ping timeouts of every client,
+   * defaults to {@link HashedWheelTimer#shared()}
+   * @param timer - The timer to use
+   */
+  public void setTimer(HashedWheelTimer timer) {
+    this.timer = timer;
+  }
+
+  /**
+   * Sets the pool outgoing frames are taken from, defaults to {@link BufferPool#shared()}
+   * @param pool - The pool to use
+   */
+  public void setBufferPool(BufferPool pool) {
+    bufferPool = pool;
+  }
+
   /**
    * Calls collectHandlers and starts the server loop
    */
@@ -74,151 +278,263 @@ public class WebSocketServer extends java.net.ServerSocket {
       throw new InvalidConfigurationError("handlersPackageName is blank, set it via setHandlersPackageName");
     }
     collectHandlers();
+    dispatcher = new Dispatcher(handlers, normalWebsocket, topics);
+    if (slowConsumerPolicy != null) {
+      writerExecutor = executor != null ? executor : Executors.newCachedThreadPool(threadFactory);
+    }
+    if (heartbeatInterval > 0) {
+      // Pings block like any other write unless they only get queued
+      Executor pingExecutor = writerExecutor != null ? null : Executors.newSingleThreadExecutor(threadFactory);
+      heartbeat = new Heartbeat(clients, timer, heartbeatInterval, idleTimeout, pingExecutor);
+      heartbeat.start();
+    }
     while (true) {
-      ClientSocket client = new ClientSocket(this.accept());
-      if (normalWebsocket) client.useNormalWebsocket();
-      else if (!jsonProtocol) client.disableJSON();
-      HandlerPair connectHandler = handlers.get(DefaultHandlerID.CONNECT);
-      if (connectHandler != null) connectHandler.invoke(client);
-      HandlerPair closeHandler = handlers.get(DefaultHandlerID.CLOSE);
-      if (closeHandler != null) client.onClose((c) -> closeHandler.invoke(c));
+      // The handshake runs on the client's own thread so a slow client cannot stall the accept loop
+      createClientThread(new ClientSocket(this.accept()));
+    }
+  }
+
+  /**
+   * Applies the server configuration to a client and performs the handshake
+   * @return whether the handshake succeeded
+   */
+  private boolean setupClient(ClientSocket client) throws IOException {
+    client.getSocket().setTcpNoDelay(tcpNoDelay);
+    if (normalWebsocket) client.useNormalWebsocket();
+    else if (!jsonProtocol) client.disableJSON();
+    client.setTimer(timer);
+    client.setBufferPool(bufferPool);
+    client.setMaxMessageSize(maxMessageSize);
+    if (reuseFrames) client.setReuseFrames(true);
+    if (compressionMinSize >= 0) client.enableCompression(compressionMinSize, compressionContextTakeover);
+    if (spillThreshold >= 0) client.setSpillThreshold(spillThreshold, spillDirectory);
+    if (streamingThreshold >= 0 && dispatcher.hasStreamHandler()) client.setStreamingThreshold(streamingThreshold);
+    if (writerExecutor != null) {
+      client.useOutboundQueue(
+        new OutboundQueue(outboundHighWatermark, outboundLowWatermark, slowConsumerPolicy),
+        writerExecutor
+      );
+    }
+    HandlerPair connectHandler = handlers.get(DefaultHandlerID.CONNECT);
+    if (connectHandler != null) connectHandler.invoke(client);
+    HandlerPair closeHandler = handlers.get(DefaultHandlerID.CLOSE);
+    if (closeHandler != null) client.onClose((c) -> closeHandler.invoke(c));
+    // Closing the socket unblocks the handshake read of a client that never sends the request
+    HashedWheelTimer.Timeout timeout = timer.schedule(() -> {
+      try {
+        client.getSocket().close();
+      } catch (IOException e) {}
+    }, handshakeTimeout, TimeUnit.MILLISECONDS);
+    try {
       client.sendHandshake();
-      client.onClose((c) -> cleanupSocket(c));
-      createClientThread(client);
+    } finally {
+      timeout.cancel();
     }
+    if (client.getSocket().isClosed()) return false;
+    client.onClose((c) -> cleanupSocket(c));
+    return true;
   }
   
   /**
-   * Creates a new thread for a client and adds it to the clients map
+   * Hands the last read message to its handler, corking the client while the handler runs if writes are coalesced
+   * @return false if the connection got closed
+   */
+  private boolean dispatch(ClientSocket client) throws IOException {
+    if (!coalesceWrites) return dispatcher.dispatch(client);
+    client.cork();
+    try {
+      return dispatcher.dispatch(client);
+    } finally {
+      client.uncork();
+    }
+  }
+
+  /**
+   * Creates a new thread for a client which performs the handshake,
+   * adds the client to the registry and runs the read loop
+   * <p>When an executor is set the loop is submitted to it instead</p>
    */
   private void createClientThread(ClientSocket client) {
-    Thread clientThread = new Thread(() -> {
-      while (!Thread.interrupted()) {
+    Runnable loop = () -> {
+      try {
+        if (!setupClient(client)) return;
+      } catch (IOException e) {
+        e.printStackTrace();
         try {
-          client.read();
-          DataFrame refFrame = client.getPayloadStartFrame();
-          Opcode opcode = refFrame.getOpcode();
-          switch (opcode) {
-            case PING: {
-              HandlerPair p = handlers.get(DefaultHandlerID.PING);
-              if (p != null) p.invoke(client);
-              break;
-            }
-            case CLOSE: {
-              HandlerPair p = handlers.get(DefaultHandlerID.CLOSE);
-              if (p != null) p.invoke(client);
-              break;
-            }
-            case PONG:
-              break;
-            default: {
-              if (normalWebsocket || refFrame.getRsv1()) {
-                HandlerPair p = handlers.get(DefaultHandlerID.DEFAULT);
-                if (p != null) p.invoke(client);
-              } else {
-                String messageID;
-                if (opcode == Opcode.JSON) {
-                  try {
-                    messageID = client.getFullJSONPayload().get("messageID", String.class);
-                  } catch (JSONException e) {
-                    System.out.println("Payload did not parse to JSON or did not have messageID");
-                    client.close();
-                    return;
-                  }
-                } else {
-                  String payload = client.getPayload();
-                  messageID = payload.substring(0, payload.indexOf(" "));
-                }
-                HandlerPair p = handlers.get(handlers.containsKey(messageID) ? messageID : DefaultHandlerID.DEFAULT);
-                if (p != null) p.invoke(client);
-              }
-              break;
-            }
+          client.getSocket().close();
+        } catch (IOException err) {}
+        return;
+      }
+      clientThreads.put(client, Thread.currentThread());
+      clients.add(client);
+      // Closed before it got registered, the close callback did not find it
+      if (client.getSocket().isClosed()) {
+        cleanupSocket(client);
+        return;
+      }
+      try {
+        while (!Thread.interrupted()) {
+          try {
+            client.read();
+            if (!dispatch(client)) return;
+          } catch (IOException e) {
+            boolean expected = e instanceof EOFException || e instanceof MessageTooLargeException || e instanceof InvalidPayloadException;
+            if (e.getMessage() != "Socket closed" && !expected) e.printStackTrace();
+            // Makes sure the client is cleaned up when the peer went away without a CLOSE frame
+            client.terminate();
+            break;
           }
-        } catch (IOException e) {
-          if (e.getMessage() != "Socket closed") e.printStackTrace();
-          break;
         }
+      } finally {
+        client.releaseMessage();
       }
-    });
-    clients.put(client, clientThread);
-    clientThread.start();
+    };
+    if (executor != null) {
+      executor.execute(() -> {
+        loop.run();
+        // Do not leak the interrupt from cleanupSocket into the executor's next task
+        Thread.interrupted();
+      });
+      return;
+    }
+    threadFactory.newThread(loop).start();
   }
   
+  /**
+   * Stops the heartbeat and closes the server socket, connected clients stay open
+   */
+  @Override
+  public void close() throws IOException {
+    if (heartbeat != null) heartbeat.stop();
+    super.close();
+  }
+
   /**
    * Sends a message to every connected client
+   * <p>The frame is encoded once and the same bytes are written to every client. With compression enabled
+   * it is also compressed once for every client that negotiated it without context takeover</p>
    * @param payload - The payload to send
+   * @return the amount of recipients and the ones that failed
    */
-  public void broadcast(byte[] payload) throws IOException {
-    synchronized(clients) {
-      for (Map.Entry<ClientSocket, Thread> kvp : clients.entrySet()) {
-        kvp.getKey().write(payload);
-      }
-    }
+  public BroadcastResult broadcast(byte[] payload) throws IOException {
+    return broadcast(PreparedFrame.of(payload));
   }
   
   /**
    * Sends a message to every connected client
+   * <p>The frame is encoded once and the same bytes are written to every client. With compression enabled
+   * it is also compressed once for every client that negotiated it without context takeover</p>
    * @param payload - The payload to send
+   * @return the amount of recipients and the ones that failed
    */
-  public void broadcast(String payload) throws IOException {
-    synchronized(clients) {
-      for (Map.Entry<ClientSocket, Thread> kvp : clients.entrySet()) {
-        kvp.getKey().write(payload);
-      }
-    }
+  public BroadcastResult broadcast(String payload) throws IOException {
+    return broadcast(PreparedFrame.of(payload));
   }
   
   /**
    * Sends a message to every connected client
+   * <p>The frame is encoded once and the same bytes are written to every client. With compression enabled
+   * it is also compressed once for every client that negotiated it without context takeover</p>
    * @param messageID - The message ID
    * @param payload - The payload to send
+   * @return the amount of recipients and the ones that failed
    */
-  public void broadcast(String messageID, String payload) throws IOException {
-    synchronized(clients) {
-      for (Map.Entry<ClientSocket, Thread> kvp : clients.entrySet()) {
-        kvp.getKey().write(messageID, payload);
-      }
-    }
+  public BroadcastResult broadcast(String messageID, String payload) throws IOException {
+    return broadcast(PreparedFrame.of(messageID, payload));
+  }
+
+  /**
+   * Sends an already serialized frame to every connected client
+   * <p>Failing to write to a client does not stop the broadcast, the failures are reported in the result</p>
+   * @param frame - The frame to send
+   * @return the amount of recipients and the ones that failed
+   */
+  public BroadcastResult broadcast(PreparedFrame frame) {
+    return BroadcastResult.writeAll(clients, frame);
+  }
+
+  /**
+   * Sends a frame serialized into a pooled buffer to every connected client, taking over one reference
+   * <p>Every client holds its own reference while the frame waits to be written,
+   * the buffer goes back to the pool once the last client is done with it</p>
+   * @param frame - The frame to send, in read mode
+   * @return the amount of recipients and the ones that failed
+   */
+  public BroadcastResult broadcast(PooledBuffer frame) {
+    return BroadcastResult.writeAll(clients, frame);
+  }
+
+  /**
+   * Sends a message to every client subscribed to the topic
+   * <p>The frame is encoded and, for subscribers without context takeover, compressed once</p>
+   * @param topic - The topic to publish to
+   * @param payload - The payload to send
+   * @return the amount of recipients and the ones that failed
+   * @see TopicRegistry
+   */
+  public BroadcastResult publish(String topic, String payload) throws IOException {
+    return topics.publish(topic, PreparedFrame.of(payload));
+  }
+
+  /**
+   * Sends a message to every client subscribed to the topic
+   * <p>The frame is encoded and, for subscribers without context takeover, compressed once</p>
+   * @param topic - The topic to publish to
+   * @param messageID - The message ID
+   * @param payload - The payload to send
+   * @return the amount of recipients and the ones that failed
+   * @see TopicRegistry
+   */
+  public BroadcastResult publish(String topic, String messageID, String payload) throws IOException {
+    return topics.publish(topic, PreparedFrame.of(messageID, payload));
+  }
+
+  /**
+   * Sends an already serialized frame to every client subscribed to the topic
+   * @param topic - The topic to publish to
+   * @param frame - The frame to send
+   * @return the amount of recipients and the ones that failed
+   * @see TopicRegistry
+   */
+  public BroadcastResult publish(String topic, PreparedFrame frame) {
+    return topics.publish(topic, frame);
+  }
+
+  /**
+   * Sends a frame serialized into a pooled buffer to every client subscribed to the topic, taking over one reference
+   * @param topic - The topic to publish to
+   * @param frame - The frame to send, in read mode
+   * @return the amount of recipients and the ones that failed
+   * @see #broadcast(PooledBuffer)
+   */
+  public BroadcastResult publish(String topic, PooledBuffer frame) {
+    return topics.publish(topic, frame);
   }
 
   /**
    * Collects all handlers extending MessageHandler with @Handler annotation
    */
   private void collectHandlers() {
-    List<Class<?>> found = ClassScanner.findAllWithAnnotation(Handler.class, handlersPackageName);
-    for (Class<?> c : found) {
-      if (!MessageHandler.class.isAssignableFrom(c)) throw new InvalidHandlerError(
-        String.format("Class %s uses @Handler annotation but does not implement MessageHandler interface", c.getName())
-      );
-      String msgID = c.getAnnotation(Handler.class).id();
-      if (handlers.containsKey(msgID)) throw new InvalidHandlerError("Duplicate handler ID " + msgID);
-      Method method;
-      try {
-        method = c.getMethod("onMessage", ClientSocket.class);
-      } catch (NoSuchMethodException e) {
-        throw new InvalidHandlerError("Failed to find onMessage method on class %s" + c.getName());
-      }
-      try {
-        Object classInstance = c.getDeclaredConstructor().newInstance();
-        handlers.put(msgID, new HandlerPair(classInstance, method));
-      } catch (
-        InvocationTargetException | IllegalAccessException |
-        InstantiationException | NoSuchMethodException e
-      ) {
-        System.out.println("Exception when instantiating handler " + c.getName());
-        e.printStackTrace();
-      }
-    }
+    Dispatcher.collectHandlers(handlersPackageName, handlers);
   }
   
   /**
    * Cleans-up the resources left by a closed socket
    */
   private void cleanupSocket(ClientSocket socket) {
-    synchronized(clients) {
-      Thread t = clients.remove(socket);
-      if (t != null) t.interrupt();
-    }
+    topics.unsubscribeAll(socket);
+    clients.remove(socket);
+    Thread t = clientThreads.remove(socket);
+    if (t != null) t.interrupt();
   }
+
+  /**
+   * @return the subscriptions of the connected clients, clients subscribe with
+   * the {@link DefaultHandlerID#SUBSCRIBE} message or through {@link TopicRegistry#subscribe(ClientSocket, String)}
+   */
+  public TopicRegistry getTopics() { return topics; }
+  /**
+   * @return the connected clients
+   */
+  public ClientRegistry getClients() { return clients; }
 }
@@ -0,0 +1,13 @@
+package io.github.oxi1224.websocket.shared.exceptions;
+
+import java.io.IOException;
+
+public class HttpParseException extends IOException {
+  public HttpParseException(String msg) {
+    super(msg);
+  }
+
+  public HttpParseException() {
+    super();
+  }
+}
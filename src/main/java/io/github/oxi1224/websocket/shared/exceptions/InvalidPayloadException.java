@@ -0,0 +1,17 @@
+package io.github.oxi1224.websocket.shared.exceptions;
+
+import java.io.IOException;
+
+/**
+ * Thrown when the payload of a received message does not match its type, e.g. a TEXT message that is not
+ * valid UTF-8, the connection is closed with 1007
+ */
+public class InvalidPayloadException extends IOException {
+  public InvalidPayloadException(String msg) {
+    super(msg);
+  }
+
+  public InvalidPayloadException() {
+    super();
+  }
+}
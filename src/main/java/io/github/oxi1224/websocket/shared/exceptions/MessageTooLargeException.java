@@ -0,0 +1,16 @@
+package io.github.oxi1224.websocket.shared.exceptions;
+
+import java.io.IOException;
+
+/**
+ * Thrown when a received message exceeds the maximum message size, the connection is closed with 1009
+ */
+public class MessageTooLargeException extends IOException {
+  public MessageTooLargeException(String msg) {
+    super(msg);
+  }
+
+  public MessageTooLargeException() {
+    super();
+  }
+}
@@ -0,0 +1,13 @@
+package io.github.oxi1224.websocket.shared.exceptions;
+
+import java.io.IOException;
+
+public class SlowConsumerException extends IOException {
+  public SlowConsumerException(String msg) {
+    super(msg);
+  }
+
+  public SlowConsumerException() {
+    super();
+  }
+}
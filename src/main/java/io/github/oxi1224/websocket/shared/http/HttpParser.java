@@ -0,0 +1,236 @@
+package io.github.oxi1224.websocket.shared.http;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import io.github.oxi1224.websocket.shared.exceptions.HttpParseException;
+
+/**
+ * An incremental HTTP/1.1 parser fed with bytes as they arrive
+ * <p>Parsing stops right after the message, any bytes following it are left unconsumed
+ * so they can be read as WebSocket frames</p>
+ */
+public class HttpParser {
+  public static final int DEFAULT_MAX_HEADER_SIZE = 8192;
+  public static final int DEFAULT_MAX_BODY_SIZE = 65536;
+
+  private static final int START_LINE = 0;
+  private static final int HEADERS = 1;
+  private static final int BODY = 2;
+  /** Responses without Content-Length are delimited by the connection closing */
+  private static final int BODY_UNTIL_EOF = 3;
+  private static final int DONE = 4;
+
+  private final boolean parseRequest;
+  private final int maxHeaderSize;
+  private final int maxBodySize;
+  private int state = START_LINE;
+  private int headerSize = 0;
+  private byte[] line = new byte[128];
+  private int lineLength = 0;
+  private byte[] body = new byte[0];
+  private int bodyLength = 0;
+
+  private String method;
+  private String path;
+  private String version;
+  private int statusCode;
+  private String statusMessage;
+  private final HeaderMap headers = new HeaderMap();
+
+  private HttpParser(boolean parseRequest, int maxHeaderSize, int maxBodySize) {
+    this.parseRequest = parseRequest;
+    this.maxHeaderSize = maxHeaderSize;
+    this.maxBodySize = maxBodySize;
+  }
+
+  /**
+   * @return a parser for HTTP requests using the default limits
+   */
+  public static HttpParser request() {
+    return new HttpParser(true, DEFAULT_MAX_HEADER_SIZE, DEFAULT_MAX_BODY_SIZE);
+  }
+
+  /**
+   * @param maxHeaderSize - Maximum size of the request line and headers in bytes
+   * @param maxBodySize - Maximum size of the body in bytes
+   * @return a parser for HTTP requests
+   */
+  public static HttpParser request(int maxHeaderSize, int maxBodySize) {
+    return new HttpParser(true, maxHeaderSize, maxBodySize);
+  }
+
+  /**
+   * @return a parser for HTTP responses using the default limits
+   */
+  public static HttpParser response() {
+    return new HttpParser(false, DEFAULT_MAX_HEADER_SIZE, DEFAULT_MAX_BODY_SIZE);
+  }
+
+  /**
+   * @param maxHeaderSize - Maximum size of the status line and headers in bytes
+   * @param maxBodySize - Maximum size of the body in bytes
+   * @return a parser for HTTP responses
+   */
+  public static HttpParser response(int maxHeaderSize, int maxBodySize) {
+    return new HttpParser(false, maxHeaderSize, maxBodySize);
+  }
+
+  /**
+   * Consumes bytes from the buffer until the message is complete or the buffer is drained
+   * @param buf - The buffer to read from, in read mode
+   * @return whether the message is complete
+   * @throws HttpParseException if the message is malformed or exceeds the size limits
+   */
+  public boolean parse(ByteBuffer buf) throws HttpParseException {
+    while (state != DONE && buf.hasRemaining()) {
+      if (state == BODY || state == BODY_UNTIL_EOF) {
+        int n = state == BODY ? Math.min(buf.remaining(), body.length - bodyLength) : buf.remaining();
+        ensureBodyCapacity(bodyLength + n);
+        buf.get(body, bodyLength, n);
+        bodyLength += n;
+        if (state == BODY && bodyLength == body.length) state = DONE;
+      } else {
+        consume(buf.get());
+      }
+    }
+    return state == DONE;
+  }
+
+  /**
+   * Reads from the stream until the message is complete, never reading past its end
+   * <p>Reads a byte at a time, the stream should be buffered</p>
+   * @param in - The stream to read from
+   * @throws EOFException if the stream ends before the message is complete
+   */
+  public void parse(InputStream in) throws IOException {
+    while (state != DONE) {
+      if (state == BODY) {
+        int n = in.read(body, bodyLength, body.length - bodyLength);
+        if (n == -1) throw new EOFException("Connection closed before the HTTP body was received");
+        bodyLength += n;
+        if (bodyLength == body.length) state = DONE;
+        continue;
+      }
+      int b = in.read();
+      if (b == -1) {
+        if (state == BODY_UNTIL_EOF) {
+          state = DONE;
+          break;
+        }
+        throw new EOFException("Connection closed before the HTTP message was received");
+      }
+      if (state == BODY_UNTIL_EOF) {
+        ensureBodyCapacity(bodyLength + 1);
+        body[bodyLength++] = (byte)b;
+      } else {
+        consume((byte)b);
+      }
+    }
+  }
+
+  /**
+   * Processes one byte of the start line or headers
+   */
+  private void consume(byte b) throws HttpParseException {
+    if (++headerSize > maxHeaderSize) throw new HttpParseException("HTTP headers exceed " + maxHeaderSize + " bytes");
+    if (b != '\n') {
+      if (lineLength == line.length) line = Arrays.copyOf(line, line.length * 2);
+      line[lineLength++] = b;
+      return;
+    }
+    int length = lineLength;
+    if (length > 0 && line[length - 1] == '\r') length--;
+    String text = new String(line, 0, length, StandardCharsets.ISO_8859_1);
+    lineLength = 0;
+    if (state == START_LINE) {
+      if (text.isEmpty()) return; // Tolerate leading empty lines
+      parseStartLine(text);
+      state = HEADERS;
+    } else if (text.isEmpty()) {
+      endOfHeaders();
+    } else {
+      int colon = text.indexOf(':');
+      if (colon <= 0) throw new HttpParseException("Invalid HTTP header line");
+      headers.put(text.substring(0, colon).trim(), text.substring(colon + 1).trim());
+    }
+  }
+
+  private void parseStartLine(String text) throws HttpParseException {
+    if (parseRequest) {
+      String[] split = text.split(" ");
+      if (split.length != 3) throw new HttpParseException("Invalid HTTP request line");
+      method = split[0].trim();
+      path = split[1].trim();
+      version = split[2].substring(split[2].indexOf('/') + 1).trim();
+    } else {
+      String[] split = text.split(" ", 3);
+      if (split.length < 2) throw new HttpParseException("Invalid HTTP status line");
+      version = split[0].substring(split[0].indexOf('/') + 1).trim();
+      try {
+        statusCode = Integer.parseInt(split[1]);
+      } catch (NumberFormatException e) {
+        throw new HttpParseException("Invalid HTTP status code");
+      }
+      statusMessage = split.length == 3 ? split[2] : "";
+      if (version.isBlank() || statusCode < 100 || statusCode > 599) {
+        throw new HttpParseException("Invalid HTTP status line");
+      }
+    }
+  }
+
+  /**
+   * Decides how the body is delimited once the empty line after the headers arrives
+   */
+  private void endOfHeaders() throws HttpParseException {
+    String contentLength = headers.getFirstValue("Content-Length");
+    if (contentLength != null) {
+      int length;
+      try {
+        length = Integer.parseInt(contentLength.trim());
+      } catch (NumberFormatException e) {
+        throw new HttpParseException("Invalid Content-Length");
+      }
+      if (length < 0 || length > maxBodySize) throw new HttpParseException("Invalid Content-Length " + length);
+      body = new byte[length];
+      state = length == 0 ? DONE : BODY;
+    } else if (!parseRequest && statusCode >= 200 && statusCode != 204 && statusCode != 304) {
+      state = BODY_UNTIL_EOF;
+    } else {
+      state = DONE;
+    }
+  }
+
+  private void ensureBodyCapacity(int capacity) throws HttpParseException {
+    if (capacity > maxBodySize) throw new HttpParseException("HTTP body exceeds " + maxBodySize + " bytes");
+    if (capacity > body.length) body = Arrays.copyOf(body, Math.max(capacity, body.length * 2));
+  }
+
+  /**
+   * @return the parsed request
+   * @throws IllegalStateException if the parser is for responses or the message is not complete
+   */
+  public HttpRequest getRequest() {
+    if (!parseRequest || state != DONE) throw new IllegalStateException("No complete HTTP request parsed");
+    return new HttpRequest(method, path, version, headers, getBody());
+  }
+
+  /**
+   * @return the parsed response
+   * @throws IllegalStateException if the parser is for requests or the message is not complete
+   */
+  public HttpResponse getResponse() {
+    if (parseRequest || state != DONE) throw new IllegalStateException("No complete HTTP response parsed");
+    return new HttpResponse(version, statusCode, statusMessage, headers, getBody());
+  }
+
+  private String getBody() {
+    return new String(body, 0, bodyLength, StandardCharsets.UTF_8);
+  }
+
+  public boolean isDone() { return state == DONE; }
+}
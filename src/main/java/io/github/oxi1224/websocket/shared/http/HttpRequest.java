@@ -6,7 +6,6 @@ import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.Scanner;
 
 public class HttpRequest {
   private String method;
@@ -33,53 +32,15 @@ public class HttpRequest {
   }
   
   /**
-   * Reads an HTTP Request from an {@link java.io.InputStream}
-   * Note: The entire data first has to be in the stream
+   * Reads an HTTP request from an {@link java.io.InputStream}
+   * <p>Reads until the request is complete and never past its end, the stream should be buffered</p>
    * @return the parsed http request
+   * @see HttpParser
    */
-  public static HttpRequest parse(InputStream stream) throws IllegalArgumentException, IOException {
-    byte[] buff = new byte[stream.available()];
-    stream.readNBytes(buff, 0, stream.available());
-    Scanner s = new Scanner(new String(buff));
-    s.useDelimiter("\r\n");
-    if (!s.hasNextLine()) {
-      s.close();
-      throw new IllegalArgumentException("Invalid http request provided");
-    }
-    String[] splitHeader = s.nextLine().split(" ");
-    if (splitHeader.length != 3) {
-      s.close();
-      throw new IllegalArgumentException("Invalid http request provided");
-    }
-    String method = splitHeader[0].trim();
-    String path = splitHeader[1].trim();
-    String version = splitHeader[2].substring(splitHeader[2].indexOf('/') + 1).trim();
-    HeaderMap headers = new HeaderMap();
-    String line = s.nextLine(); 
-    while (line.contains(":") && !line.trim().isBlank()) {
-      String[] split = line.split(":", 2);
-      String header = split[0].trim();
-      String value = split[1].trim();
-      if (headers.containsKey(header)) {
-        headers.get(header).add(value);
-      } else {
-        ArrayList<String> set = new ArrayList<String>();
-        set.add(value);
-        headers.put(header, set);
-      }
-      if (!s.hasNextLine()) break;
-      line = s.nextLine();
-    }
-    String body = "";
-    if (s.hasNextLine()) {
-      body = s.nextLine();
-      while (s.hasNextLine()) {
-        body += line;
-        line = s.nextLine();
-      }
-    }
-    s.close();
-    return new HttpRequest(method, path, version, headers, body);
+  public static HttpRequest parse(InputStream stream) throws IOException {
+    HttpParser parser = HttpParser.request();
+    parser.parse(stream);
+    return parser.getRequest();
   }
   
   /**
@@ -6,7 +6,6 @@ import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.Scanner;
 
 public class HttpResponse {
   private String version;
@@ -34,54 +33,14 @@ public class HttpResponse {
   
   /**
    * Reads an HTTP response from an {@link java.io.InputStream}
-   * Note: The entire data first has to be in the stream
-   * @return the parsed http response 
+   * <p>Reads until the response is complete and never past its end, the stream should be buffered</p>
+   * @return the parsed http response
+   * @see HttpParser
    */
-  public static HttpResponse parse(InputStream stream) throws IllegalArgumentException, IOException {
-    byte[] buff = new byte[stream.available()];
-    stream.readNBytes(buff, 0, stream.available());
-    Scanner s = new Scanner(new String(buff));
-
-    s.useDelimiter("\r\n");
-    if (!s.hasNextLine()) {
-      s.close();
-      throw new IllegalArgumentException("Invalid http response provided");
-    }
-    String[] splitHeader = s.nextLine().split(" ", 3);
-    String version = splitHeader[0].substring(splitHeader[0].indexOf('/') + 1).trim();
-    int statusCode = Integer.parseInt(splitHeader[1]);
-    String statusMessage = splitHeader[2];
-    if (version.isBlank() || statusCode < 100 || statusCode > 599) {
-      s.close();
-      throw new IllegalArgumentException("Invalid http response provided");
-    }
-    HeaderMap headers = new HeaderMap();
-    String line = s.nextLine(); 
-    while (line.contains(":") && !line.trim().isBlank()) {
-      String[] split = line.split(":", 2);
-      String header = split[0].trim();
-      String value = split[1].trim();
-      if (headers.containsKey(header)) {
-        headers.get(header).add(value);
-      } else {
-        ArrayList<String> set = new ArrayList<String>();
-        set.add(value);
-        headers.put(header, set);
-      }
-      if (!s.hasNextLine()) break;
-      line = s.nextLine();
-    }
-    String body = "";
-    if (s.hasNextLine()) {
-      body = s.nextLine();
-      while (s.hasNextLine()) {
-        body += line;
-        line = s.nextLine();
-      }
-    }
-
-    s.close();
-    return new HttpResponse(version, statusCode, statusMessage, headers, body);
+  public static HttpResponse parse(InputStream stream) throws IOException {
+    HttpParser parser = HttpParser.response();
+    parser.parse(stream);
+    return parser.getResponse();
   }
   
   /**
@@ -0,0 +1,57 @@
+package io.github.oxi1224.websocket.shared.util;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * An {@link java.io.InputStream} reading from a {@link java.nio.ByteBuffer}
+ * <p>The buffer can be swapped at any time, reading consumes it from its position up to its limit</p>
+ */
+public class ByteBufferInputStream extends InputStream {
+  private ByteBuffer buf;
+
+  public ByteBufferInputStream() {
+    this.buf = ByteBuffer.allocate(0);
+  }
+
+  public ByteBufferInputStream(ByteBuffer buf) {
+    this.buf = buf;
+  }
+
+  /**
+   * Sets the buffer to read from, the buffer must be in read mode (flipped)
+   * @param buf - The buffer to read from
+   */
+  public void setBuffer(ByteBuffer buf) {
+    this.buf = buf;
+  }
+
+  @Override
+  public int read() {
+    if (!buf.hasRemaining()) return -1;
+    return buf.get() & 0xFF;
+  }
+
+  @Override
+  public int read(byte[] b, int off, int len) {
+    if (len == 0) return 0;
+    if (!buf.hasRemaining()) return -1;
+    int n = Math.min(len, buf.remaining());
+    buf.get(b, off, n);
+    return n;
+  }
+
+  @Override
+  public long skip(long n) {
+    int skipped = (int)Math.min(n, buf.remaining());
+    buf.position(buf.position() + skipped);
+    return skipped;
+  }
+
+  @Override
+  public int available() {
+    return buf.remaining();
+  }
+
+  public ByteBuffer getBuffer() { return buf; }
+}
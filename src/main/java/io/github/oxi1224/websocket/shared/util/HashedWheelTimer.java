@@ -0,0 +1,247 @@
+package io.github.oxi1224.websocket.shared.util;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import io.github.oxi1224.websocket.shared.exceptions.InvalidConfigurationError;
+
+/**
+ * A timer running every timeout on a single thread, meant for the protocol timeouts (closing, pings, handshakes)
+ * of many connections at once
+ * <p>Timeouts are kept in a wheel of buckets, scheduling and cancelling are O(1) and do not lock.
+ * Timeouts expire up to one tick late, the tick duration trades accuracy for wake-ups</p>
+ * <p>Tasks run on the timer thread and should not block</p>
+ */
+public class HashedWheelTimer {
+  private static final int WORKER_INIT = 0;
+  private static final int WORKER_STARTED = 1;
+  private static final int WORKER_STOPPED = 2;
+
+  private static volatile HashedWheelTimer shared;
+
+  private final long tickNanos;
+  private final Bucket[] wheel;
+  private final int mask;
+  private final Queue<Timeout> pending = new ConcurrentLinkedQueue<>();
+  private final Queue<Timeout> cancelled = new ConcurrentLinkedQueue<>();
+  private final AtomicInteger workerState = new AtomicInteger(WORKER_INIT);
+  private final Thread worker;
+  private final long startTime;
+
+  /**
+   * Creates a timer with 100ms ticks and 512 buckets
+   */
+  public HashedWheelTimer() {
+    this(100, TimeUnit.MILLISECONDS, 512);
+  }
+
+  /**
+   * @param tickDuration - How often the timer checks for expired timeouts
+   * @param unit - The unit of tickDuration
+   * @param ticksPerWheel - The amount of buckets, rounded up to a power of two
+   */
+  public HashedWheelTimer(long tickDuration, TimeUnit unit, int ticksPerWheel) {
+    if (tickDuration <= 0) throw new InvalidConfigurationError("tickDuration must be positive");
+    if (ticksPerWheel <= 0 || ticksPerWheel > 1 << 30) throw new InvalidConfigurationError("ticksPerWheel out of range");
+    tickNanos = Math.max(unit.toNanos(tickDuration), TimeUnit.MILLISECONDS.toNanos(1));
+    int size = 1;
+    while (size < ticksPerWheel) size <<= 1;
+    wheel = new Bucket[size];
+    for (int i = 0; i < size; i++) wheel[i] = new Bucket();
+    mask = size - 1;
+    worker = new Thread(this::run, "websocket-timer");
+    worker.setDaemon(true);
+    startTime = System.nanoTime();
+  }
+
+  /**
+   * @return the timer used by servers and clients unless configured otherwise, created on first use
+   */
+  public static HashedWheelTimer shared() {
+    HashedWheelTimer timer = shared;
+    if (timer == null) {
+      synchronized(HashedWheelTimer.class) {
+        if (shared == null) shared = new HashedWheelTimer();
+        timer = shared;
+      }
+    }
+    return timer;
+  }
+
+  /**
+   * Runs the task once after the delay
+   * @param task - The task to run on the timer thread
+   * @param delay - The delay
+   * @param unit - The unit of delay
+   * @return a handle used to cancel the timeout
+   */
+  public Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+    start();
+    long deadline = System.nanoTime() - startTime + unit.toNanos(Math.max(delay, 0));
+    Timeout timeout = new Timeout(this, task, deadline);
+    pending.add(timeout);
+    return timeout;
+  }
+
+  private void start() {
+    int state = workerState.get();
+    if (state == WORKER_INIT && workerState.compareAndSet(WORKER_INIT, WORKER_STARTED)) worker.start();
+    else if (state == WORKER_STOPPED) throw new IllegalStateException("Timer has been stopped");
+  }
+
+  /**
+   * Stops the timer thread, pending timeouts never expire
+   * <p>The shared timer can not be stopped</p>
+   */
+  public void stop() {
+    if (this == shared) throw new IllegalStateException("The shared timer can not be stopped");
+    if (workerState.getAndSet(WORKER_STOPPED) == WORKER_STARTED) worker.interrupt();
+  }
+
+  private void run() {
+    long tick = 0;
+    while (workerState.get() == WORKER_STARTED) {
+      long deadline = waitForNextTick(tick);
+      if (deadline < 0) break;
+      Bucket bucket = wheel[(int)(tick & mask)];
+      removeCancelled();
+      transferPending(tick);
+      bucket.expire(deadline);
+      tick++;
+    }
+  }
+
+  /**
+   * Sleeps until the end of the tick
+   * @return the time elapsed since the start or -1 if the timer was stopped
+   */
+  private long waitForNextTick(long tick) {
+    long deadline = tickNanos * (tick + 1);
+    while (true) {
+      long current = System.nanoTime() - startTime;
+      long sleepMs = (deadline - current + 999999) / 1000000;
+      if (sleepMs <= 0) return current;
+      try {
+        Thread.sleep(sleepMs);
+      } catch (InterruptedException e) {
+        if (workerState.get() == WORKER_STOPPED) return -1;
+      }
+    }
+  }
+
+  private void transferPending(long tick) {
+    // Bounded so a flood of timeouts can not starve expiration
+    for (int i = 0; i < 100000; i++) {
+      Timeout timeout = pending.poll();
+      if (timeout == null) return;
+      if (timeout.state.get() == Timeout.CANCELLED) continue;
+      long calculated = timeout.deadline / tickNanos;
+      timeout.remainingRounds = (calculated - tick) / wheel.length;
+      // Timeouts already due go into the current bucket
+      long ticks = Math.max(calculated, tick);
+      wheel[(int)(ticks & mask)].add(timeout);
+    }
+  }
+
+  private void removeCancelled() {
+    Timeout timeout;
+    while ((timeout = cancelled.poll()) != null) {
+      if (timeout.bucket != null) timeout.bucket.remove(timeout);
+    }
+  }
+
+  /**
+   * Handle of a scheduled task
+   */
+  public static final class Timeout {
+    private static final int INIT = 0;
+    private static final int CANCELLED = 1;
+    private static final int EXPIRED = 2;
+
+    private final HashedWheelTimer timer;
+    private final Runnable task;
+    private final long deadline;
+    private final AtomicInteger state = new AtomicInteger(INIT);
+    // Only touched by the worker thread
+    private long remainingRounds;
+    private Bucket bucket;
+    private Timeout next;
+    private Timeout prev;
+
+    private Timeout(HashedWheelTimer timer, Runnable task, long deadline) {
+      this.timer = timer;
+      this.task = task;
+      this.deadline = deadline;
+    }
+
+    /**
+     * Prevents the task from running
+     * @return false if the task already ran or the timeout was already cancelled
+     */
+    public boolean cancel() {
+      if (!state.compareAndSet(INIT, CANCELLED)) return false;
+      timer.cancelled.add(this);
+      return true;
+    }
+
+    public boolean isCancelled() { return state.get() == CANCELLED; }
+    public boolean isExpired() { return state.get() == EXPIRED; }
+
+    private void expire() {
+      if (!state.compareAndSet(INIT, EXPIRED)) return;
+      try {
+        task.run();
+      } catch (Throwable e) {
+        System.out.println("Exception thrown by a timeout task");
+        e.printStackTrace();
+      }
+    }
+  }
+
+  /**
+   * Doubly linked list of timeouts, only touched by the worker thread
+   */
+  private static final class Bucket {
+    private Timeout head;
+    private Timeout tail;
+
+    void add(Timeout timeout) {
+      timeout.bucket = this;
+      if (head == null) {
+        head = tail = timeout;
+      } else {
+        tail.next = timeout;
+        timeout.prev = tail;
+        tail = timeout;
+      }
+    }
+
+    void expire(long now) {
+      Timeout timeout = head;
+      while (timeout != null) {
+        Timeout next = timeout.next;
+        if (timeout.remainingRounds <= 0 && timeout.deadline <= now) {
+          remove(timeout);
+          timeout.expire();
+        } else if (timeout.isCancelled()) {
+          remove(timeout);
+        } else if (timeout.remainingRounds > 0) {
+          timeout.remainingRounds--;
+        }
+        timeout = next;
+      }
+    }
+
+    void remove(Timeout timeout) {
+      if (timeout.bucket != this) return;
+      if (timeout.prev != null) timeout.prev.next = timeout.next;
+      else head = timeout.next;
+      if (timeout.next != null) timeout.next.prev = timeout.prev;
+      else tail = timeout.prev;
+      timeout.prev = timeout.next = null;
+      timeout.bucket = null;
+    }
+  }
+}
@@ -0,0 +1,105 @@
+package io.github.oxi1224.websocket.shared.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Objects;
+
+/**
+ * A buffered {@link java.io.InputStream} for a single reading thread which lets frames be parsed straight out of its buffer
+ * <p>Every read from the underlying stream asks for as much as fits into the buffer, so a burst of small messages
+ * costs a single call. Reads at least as large as the buffer bypass it and go straight into the caller's array.
+ * Unlike {@link java.io.BufferedInputStream} it takes no lock</p>
+ */
+public class ReadAheadInputStream extends InputStream {
+  public static final int DEFAULT_BUFFER_SIZE = 16 * 1024;
+
+  private final InputStream in;
+  /** Holds the unread bytes between its position and limit */
+  private final ByteBuffer buf;
+
+  public ReadAheadInputStream(InputStream in) {
+    this(in, DEFAULT_BUFFER_SIZE);
+  }
+
+  /**
+   * @param in - The stream to read from
+   * @param size - The size of the buffer
+   */
+  public ReadAheadInputStream(InputStream in, int size) {
+    if (size <= 0) throw new IllegalArgumentException("Buffer size must be positive");
+    this.in = in;
+    this.buf = ByteBuffer.allocate(size);
+    buf.limit(0);
+  }
+
+  /**
+   * Reads until at least the given amount of bytes is buffered, looping on short reads
+   * @param n - The amount of bytes needed, at most the size of the buffer
+   * @return false if the stream ended first
+   */
+  public boolean fill(int n) throws IOException {
+    if (n > buf.capacity()) throw new IllegalArgumentException("Can not buffer more than " + buf.capacity() + " bytes");
+    if (buf.remaining() >= n) return true;
+    buf.compact();
+    try {
+      while (buf.position() < n) {
+        int read = in.read(buf.array(), buf.position(), buf.remaining());
+        if (read == -1) return false;
+        buf.position(buf.position() + read);
+      }
+      return true;
+    } finally {
+      buf.flip();
+    }
+  }
+
+  @Override
+  public int read() throws IOException {
+    if (!buf.hasRemaining() && !fill(1)) return -1;
+    return buf.get() & 0xFF;
+  }
+
+  @Override
+  public int read(byte[] b, int off, int len) throws IOException {
+    Objects.checkFromIndexSize(off, len, b.length);
+    if (len == 0) return 0;
+    if (buf.hasRemaining()) {
+      int n = Math.min(len, buf.remaining());
+      buf.get(b, off, n);
+      return n;
+    }
+    // Copying through the buffer would only add a copy
+    if (len >= buf.capacity()) return in.read(b, off, len);
+    if (!fill(1)) return -1;
+    int n = Math.min(len, buf.remaining());
+    buf.get(b, off, n);
+    return n;
+  }
+
+  @Override
+  public long skip(long n) throws IOException {
+    if (n <= 0) return 0;
+    if (buf.hasRemaining()) {
+      int skipped = (int)Math.min(n, buf.remaining());
+      buf.position(buf.position() + skipped);
+      return skipped;
+    }
+    return in.skip(n);
+  }
+
+  @Override
+  public int available() throws IOException {
+    return buf.remaining() + in.available();
+  }
+
+  @Override
+  public void close() throws IOException {
+    in.close();
+  }
+
+  /**
+   * @return the buffer with the unread bytes between its position and limit, consuming them moves its position
+   */
+  public ByteBuffer getBuffer() { return buf; }
+}
@@ -0,0 +1,56 @@
+package io.github.oxi1224.websocket.shared.util;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+
+import io.github.oxi1224.websocket.shared.exceptions.UsageError;
+
+/**
+ * Thread factories used for connection loops
+ * <p>Virtual threads are looked up reflectively so the library still runs on Java versions older than 21</p>
+ */
+public final class ThreadFactories {
+  private static final ThreadFactory PLATFORM = Thread::new;
+
+  private ThreadFactories() {}
+
+  /**
+   * @return a factory creating regular platform threads
+   */
+  public static ThreadFactory platform() {
+    return PLATFORM;
+  }
+
+  /**
+   * @return whether the running JVM supports virtual threads (Java 21+)
+   */
+  public static boolean virtualThreadsSupported() {
+    try {
+      Thread.class.getMethod("ofVirtual");
+      return true;
+    } catch (NoSuchMethodException e) {
+      return false;
+    }
+  }
+
+  /**
+   * Creates a factory producing virtual threads named prefix + a running counter
+   * @param prefix - The thread name prefix
+   * @return the created factory
+   * @throws UsageError if the running JVM does not support virtual threads
+   */
+  public static ThreadFactory virtual(String prefix) {
+    try {
+      Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+      Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+      Method name = builderClass.getMethod("name", String.class, long.class);
+      builder = name.invoke(builder, prefix, 0L);
+      return (ThreadFactory)builderClass.getMethod("factory").invoke(builder);
+    } catch (NoSuchMethodException | ClassNotFoundException e) {
+      throw new UsageError("Virtual threads require Java 21 or newer");
+    } catch (IllegalAccessException | InvocationTargetException e) {
+      throw new UsageError("Failed to create a virtual thread factory: " + e.getMessage());
+    }
+  }
+}
@@ -9,8 +9,11 @@ import io.github.oxi1224.websocket.json.JSONException;
 import io.github.oxi1224.websocket.json.JSONObject;
 import io.github.oxi1224.websocket.server.WebSocketServer;
 import io.github.oxi1224.websocket.shared.exceptions.ConnectionException;
+import io.github.oxi1224.websocket.shared.exceptions.UsageError;
+import io.github.oxi1224.websocket.shared.util.ThreadFactories;
 
 import java.io.IOException;
+import java.util.concurrent.Executors;
 
 class ClientTest {
   @Test
@@ -63,6 +66,28 @@ class ClientTest {
     assertEquals(obj.toString(), client.getJSONPayload().toString());
   }
 
+  @Test void testExecutorCommunication() throws IOException, ConnectionException {
+    WebSocketServer server = new WebSocketServer(9004);
+    server.disableJSON();
+    server.setExecutor(Executors.newCachedThreadPool());
+    startServerThread(server);
+    Client.disableJSON();
+    Client client = Client.connect("127.0.0.1", 9004);
+
+    client.write("Hello World");
+    client.read();
+    assertEquals("Hello World", client.getPayload(), "Sent/Received data differ");
+  }
+
+  @Test void testVirtualThreads() {
+    if (ThreadFactories.virtualThreadsSupported()) {
+      Thread t = ThreadFactories.virtual("test-").newThread(() -> {});
+      assertNotNull(t, "Expected a virtual thread to be created");
+    } else {
+      assertThrows(UsageError.class, () -> ThreadFactories.virtual("test-"));
+    }
+  }
+
   public static void startServerThread(WebSocketServer srv) {
     Thread t = new Thread(() -> {
       try {
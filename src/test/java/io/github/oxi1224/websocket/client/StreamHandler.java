@@ -0,0 +1,33 @@
+package io.github.oxi1224.websocket.client;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import io.github.oxi1224.websocket.core.MessageInputStream;
+import io.github.oxi1224.websocket.server.ClientSocket;
+import io.github.oxi1224.websocket.messages.DefaultHandlerID;
+import io.github.oxi1224.websocket.messages.Handler;
+import io.github.oxi1224.websocket.messages.MessageHandler;
+
+@Handler(id = DefaultHandlerID.STREAM)
+public class StreamHandler implements MessageHandler<ClientSocket> {
+  private static final Map<ClientSocket, Long> received = new ConcurrentHashMap<>();
+
+  public void onMessage(ClientSocket c) {
+    try {
+      MessageInputStream stream = c.getMessageStream();
+      if (stream != null) {
+        c.write("streamed " + stream.transferTo(OutputStream.nullOutputStream()));
+        return;
+      }
+      // Event loops hand the message over frame by frame
+      long total = received.merge(c, (long)c.getPayloadStartFrame().getPayloadLength(), Long::sum);
+      if (c.getPayloadStartFrame().getFin()) {
+        received.remove(c);
+        c.write("streamed " + total);
+      }
+    } catch (IOException e) {}
+  }
+}
@@ -0,0 +1,64 @@
+package io.github.oxi1224.websocket.core;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.nio.ByteBuffer;
+
+import org.junit.jupiter.api.Test;
+
+class BufferPoolTest {
+  @Test public void testSizeClasses() {
+    BufferPool pool = new BufferPool(false, 4096, 4, 4);
+    assertEquals(256, pool.allocate(1).buffer().capacity(), "Smallest class should be 256 bytes");
+    assertEquals(512, pool.allocate(257).buffer().capacity(), "Capacity was not rounded up to a power of two");
+    assertEquals(4096, pool.allocate(4096).buffer().capacity());
+    assertEquals(5000, pool.allocate(5000).buffer().capacity(), "Buffers above the biggest class should not be rounded");
+    assertTrue(new BufferPool(true, 4096, 4, 4).allocate(10).buffer().isDirect(), "Direct pool handed out a heap buffer");
+  }
+
+  @Test public void testReuse() {
+    BufferPool pool = new BufferPool(false, 4096, 4, 4);
+    PooledBuffer first = pool.allocate(1000);
+    ByteBuffer buf = first.buffer();
+    buf.put((byte)1).flip();
+    assertTrue(first.release(), "Single reference was not the last one");
+    PooledBuffer second = pool.allocate(700);
+    assertSame(buf, second.buffer(), "Released buffer was not reused");
+    assertEquals(0, buf.position(), "Reused buffer was not cleared");
+    assertEquals(buf.capacity(), buf.limit(), "Reused buffer was not cleared");
+
+    PooledBuffer large = pool.allocate(8192);
+    large.release();
+    assertNotSame(large.buffer(), pool.allocate(8192).buffer(), "Buffer above the biggest class was pooled");
+  }
+
+  @Test public void testSharedCache() throws InterruptedException {
+    BufferPool pool = new BufferPool(false, 4096, 0, 4);
+    PooledBuffer buffer = pool.allocate(300);
+    Thread other = new Thread(buffer::release);
+    other.start();
+    other.join();
+    assertSame(buffer.buffer(), pool.allocate(300).buffer(), "Buffer released on another thread was not reused");
+  }
+
+  @Test public void testReferenceCounting() {
+    BufferPool pool = new BufferPool(false, 4096, 4, 4);
+    PooledBuffer buffer = pool.allocate(100);
+    buffer.retain().retain();
+    assertEquals(3, buffer.refCnt());
+    assertFalse(buffer.release(), "Buffer was recycled while still referenced");
+    assertFalse(buffer.release(), "Buffer was recycled while still referenced");
+    assertTrue(buffer.release(), "Last release did not recycle the buffer");
+    assertThrows(IllegalStateException.class, buffer::release, "Released a buffer twice");
+    assertThrows(IllegalStateException.class, buffer::retain, "Retained a released buffer");
+  }
+
+  @Test public void testEncode() {
+    byte[] payload = "Hello".getBytes();
+    PooledBuffer frame = FrameCodec.encode(new BufferPool(), true, false, Opcode.TEXT, false, payload);
+    byte[] bytes = new byte[frame.buffer().remaining()];
+    frame.buffer().get(bytes);
+    assertArrayEquals(DataFrameTest.hexToByteArray("810548656c6c6f"), bytes, "Pooled frame was encoded incorrectly");
+    frame.release();
+  }
+}
@@ -3,12 +3,15 @@ package io.github.oxi1224.websocket.core;
 import static org.junit.jupiter.api.Assertions.*;
 
 import java.io.ByteArrayInputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.charset.StandardCharsets;
 
 import org.junit.jupiter.api.Test;
 
+import io.github.oxi1224.websocket.shared.exceptions.MessageTooLargeException;
+
 class DataFrameTest {
   @Test public void testMaskedFrame() throws IOException {
     // fin - 1 rsv1-3 - 0, mask - 1, data = "Hello"
@@ -50,6 +53,34 @@ class DataFrameTest {
     assertArrayEquals(byteFrame, serialized, "Incorrectly serialized masked frame");
   }
 
+  @Test public void test64BitLength() throws IOException {
+    // fin - 1, opcode - BINARY, 8 byte length of 5GiB and no payload
+    byte[] header = hexToByteArray("827f0000000140000000");
+    assertEquals(5L << 30, DataFrame.readHeader(new ByteArrayInputStream(header)).getPayloadLength(), "Length was truncated");
+    assertThrows(
+      MessageTooLargeException.class,
+      () -> DataFrame.read(new ByteArrayInputStream(header)),
+      "Payload above the array limit was not refused"
+    );
+  }
+
+  @Test public void testLargeFrameRoundTrip() throws IOException {
+    // Needs the 64-bit length encoding
+    byte[] bytePayload = new byte[70000];
+    for (int i = 0; i < bytePayload.length; i++) bytePayload[i] = (byte)i;
+    DataFrame frame = new DataFrame(true, false, false, false, Opcode.BINARY, true, bytePayload.length, hexToByteArray("37fa213d"), bytePayload);
+    byte[] serialized = frame.getBytes();
+    assertEquals(2 + 8 + 4 + 70000, serialized.length, "Incorrect serialized length");
+    DataFrame parsed = DataFrame.read(new ByteArrayInputStream(serialized));
+    assertEquals(70000, parsed.getPayloadLength(), "Incorrect parsed payload length");
+    assertArrayEquals(bytePayload, parsed.getPayload(), "Payload changed in the round trip");
+  }
+
+  @Test public void testTruncatedFrame() {
+    byte[] frame = hexToByteArray("8105486563");
+    assertThrows(EOFException.class, () -> DataFrame.read(new ByteArrayInputStream(frame)), "Truncated frame was not detected");
+  }
+
   public static byte[] hexToByteArray(String hstr) {
     if ((hstr.length() < 0) || ((hstr.length() % 2) != 0)) {
       throw new IllegalArgumentException(String.format("Invalid string length of <%d>",hstr.length()));
@@ -3,12 +3,26 @@ package io.github.oxi1224.websocket.core;
 import static org.junit.jupiter.api.Assertions.*;
 
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.MappedByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
 
 import org.junit.jupiter.api.Test;
 
+import io.github.oxi1224.websocket.shared.exceptions.InvalidPayloadException;
+import io.github.oxi1224.websocket.shared.exceptions.MessageTooLargeException;
 import io.github.oxi1224.websocket.shared.exceptions.UnexpectedFrameException;
+import io.github.oxi1224.websocket.shared.exceptions.UsageError;
+import io.github.oxi1224.websocket.shared.util.ByteBufferInputStream;
 
 class DataReaderTest {
   @Test public void testContinuation() throws IOException, UnexpectedFrameException {
@@ -19,6 +33,231 @@ class DataReaderTest {
     assertEquals("Hello, world", reader.getPayload(), String.format("Expected payload to be Hello, World got %s", reader.getPayload()));
   }
 
+  @Test public void testManyFragments() throws IOException, UnexpectedFrameException {
+    // Deep enough to overflow the stack of a recursive reader
+    int fragments = 50000;
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    DataWriter writer = new DataWriter(out);
+    for (int i = 0; i < fragments; i++) {
+      writer.write(i == fragments - 1, i == 0 ? Opcode.BINARY : Opcode.CONTINUE, new byte[] { (byte)i });
+    }
+    DataReader reader = new DataReader(new ByteArrayInputStream(out.toByteArray()));
+    reader.read();
+    assertEquals(fragments, reader.getPayloadLength(), "Wrong payload length");
+    assertEquals(fragments, reader.getFrameStream().size(), "Wrong amount of frames");
+    byte[] streamed = reader.getPayloadStream().readAllBytes();
+    byte[] joined = reader.getBytePayload();
+    assertArrayEquals(joined, streamed, "Streamed and joined payloads differ");
+    for (int i = 0; i < fragments; i++) assertEquals((byte)i, joined[i], "Fragments were joined out of order");
+    assertSame(joined, reader.getBytePayload(), "Payload was joined more than once");
+  }
+
+  @Test public void testStreamedMessage() throws IOException, UnexpectedFrameException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    DataWriter writer = new DataWriter(out);
+    writer.setMasking(true);
+    // Fragmented message with a PING in between
+    writer.write(false, Opcode.TEXT, "Hello, ");
+    writer.write(true, Opcode.PING, new byte[] { 1 });
+    writer.write(true, Opcode.CONTINUE, "world");
+    // Large message left unread
+    writer.write(true, Opcode.BINARY, new byte[500]);
+    // Small message still buffered
+    writer.write(true, Opcode.TEXT, "small");
+
+    ArrayList<DataFrame> control = new ArrayList<>();
+    DataReader reader = new DataReader(new ByteArrayInputStream(out.toByteArray()));
+    reader.setStreamingThreshold(100, control::add);
+    reader.read();
+    MessageInputStream stream = reader.getMessageStream();
+    assertNotNull(stream, "Fragmented message was not streamed");
+    assertEquals(Opcode.TEXT, reader.getStartFrame().getOpcode(), "Wrong opcode of the streamed message");
+    assertEquals("Hello, world", new String(stream.readAllBytes()), "Wrong streamed payload");
+    assertTrue(stream.isFinished(), "Stream was not finished after reading the message");
+    assertEquals(1, control.size(), "PING between the fragments was not handed over");
+    assertEquals(Opcode.PING, control.get(0).getOpcode(), "Wrong control frame handed over");
+
+    reader.read();
+    assertNotNull(reader.getMessageStream(), "Message above the threshold was not streamed");
+    assertEquals(3, reader.getMessageStream().read(new byte[3]), "Could not read the start of the message");
+    reader.read();
+    assertNull(reader.getMessageStream(), "Message below the threshold was streamed");
+    assertEquals("small", reader.getPayload(), "Unread rest of the previous message was not skipped");
+  }
+
+  @Test public void testInterleavedControlFrames() throws IOException, UnexpectedFrameException {
+    byte[] payload = new byte[250];
+    for (int i = 0; i < payload.length; i++) payload[i] = (byte)i;
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    DataWriter writer = new DataWriter(out);
+    writer.setMasking(true);
+    writer.setFragmentSize(100);
+    MessageOutputStream message = writer.openMessage(Opcode.BINARY);
+    message.write(payload, 0, 150);
+    writer.write(true, Opcode.PING, new byte[] { 1 });
+    message.write(payload, 150, 100);
+    writer.write(true, Opcode.PONG, new byte[0]);
+    message.close();
+    writer.write(true, Opcode.TEXT, "after");
+    byte[] data = out.toByteArray();
+
+    // Buffered into arrays, into a reused frame, and from a buffer as the event loop does
+    for (int mode = 0; mode < 4; mode++) {
+      DataReader reader = mode < 2
+        ? new DataReader(new ByteArrayInputStream(data))
+        : new DataReader(new ByteBufferInputStream(ByteBuffer.wrap(data.clone())));
+      reader.setReuseFrames(mode % 2 == 1);
+      ArrayList<DataFrame> control = new ArrayList<>();
+      reader.setControlFrameHandler(control::add);
+      reader.read();
+      assertArrayEquals(payload, reader.getBytePayload(), "Wrong payload around control frames in mode " + mode);
+      assertEquals(2, control.size(), "Control frames were not handed over in mode " + mode);
+      assertEquals(Opcode.PING, control.get(0).getOpcode(), "Wrong control frame handed over in mode " + mode);
+      assertArrayEquals(new byte[] { 1 }, control.get(0).getPayload(), "Wrong PING payload in mode " + mode);
+      assertEquals(Opcode.PONG, control.get(1).getOpcode(), "Wrong control frame handed over in mode " + mode);
+      reader.read();
+      assertEquals("after", reader.getPayload(), "Wrong message after the fragmented one in mode " + mode);
+    }
+
+    // A CLOSE ends the message
+    out.reset();
+    writer.write(false, Opcode.TEXT, "Hello, ");
+    writer.write(true, Opcode.CLOSE, new byte[0]);
+    DataReader reader = new DataReader(new ByteArrayInputStream(out.toByteArray()));
+    ArrayList<DataFrame> control = new ArrayList<>();
+    reader.setControlFrameHandler(control::add);
+    assertThrows(EOFException.class, reader::read, "Message interrupted by a CLOSE was not ended");
+    assertEquals(Opcode.CLOSE, control.get(0).getOpcode(), "CLOSE was not handed over");
+  }
+
+  @Test public void testSpill() throws IOException, UnexpectedFrameException {
+    byte[] payload = new byte[3000];
+    for (int i = 0; i < payload.length; i++) payload[i] = (byte)i;
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    DataWriter writer = new DataWriter(out);
+    writer.setMasking(true);
+    // Crosses the threshold on the second fragment
+    writer.write(false, Opcode.BINARY, Arrays.copyOfRange(payload, 0, 1000));
+    writer.write(false, Opcode.CONTINUE, Arrays.copyOfRange(payload, 1000, 2500));
+    writer.write(true, Opcode.CONTINUE, Arrays.copyOfRange(payload, 2500, 3000));
+    writer.write(true, Opcode.TEXT, "small");
+
+    DataReader reader = new DataReader(new ByteArrayInputStream(out.toByteArray()));
+    reader.setSpillThreshold(2000, null);
+    reader.read();
+    SpilledMessage spilled = reader.getSpilledMessage();
+    assertNotNull(spilled, "Message past the threshold was not spilled");
+    assertEquals(payload.length, reader.getPayloadLength(), "Wrong payload length");
+    assertEquals(Opcode.BINARY, reader.getStartFrame().getOpcode(), "Wrong opcode of the spilled message");
+    MappedByteBuffer mapped = spilled.map();
+    byte[] fromMap = new byte[mapped.remaining()];
+    mapped.get(fromMap);
+    assertArrayEquals(payload, fromMap, "Wrong mapped payload");
+    assertArrayEquals(payload, reader.getPayloadStream().readAllBytes(), "Wrong streamed payload");
+    assertThrows(UsageError.class, reader::getBytePayload, "Spilled message was joined into an array");
+    Path file = spilled.getPath();
+
+    reader.read();
+    assertNull(reader.getSpilledMessage(), "Message below the threshold was spilled");
+    assertEquals("small", reader.getPayload(), "Wrong payload after a spilled message");
+    assertFalse(Files.exists(file), "Spill file was not deleted");
+  }
+
+  @Test public void testMaxMessageSize() throws IOException, UnexpectedFrameException {
+    // Header announcing a 16 bit length of 300 followed by no payload at all
+    DataReader reader = new DataReader(new ByteArrayInputStream(hexToByteArray("827e012c")));
+    reader.setMaxMessageSize(100);
+    assertThrows(MessageTooLargeException.class, reader::read, "Oversized frame was not refused before reading it");
+
+    // 60 + 60 bytes split over two fragments, each below the limit
+    byte[] fragment = new byte[60];
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    DataWriter writer = new DataWriter(out);
+    writer.write(false, Opcode.BINARY, fragment);
+    writer.write(true, Opcode.CONTINUE, fragment);
+    reader = new DataReader(new ByteArrayInputStream(out.toByteArray()));
+    reader.setMaxMessageSize(100);
+    assertThrows(MessageTooLargeException.class, reader::read, "Fragments adding up past the limit were accepted");
+    reader = new DataReader(new ByteArrayInputStream(out.toByteArray()));
+    reader.setMaxMessageSize(120);
+    reader.read();
+    assertEquals(120, reader.getPayloadLength());
+  }
+
+  @Test public void testReusedFrames() throws IOException, UnexpectedFrameException {
+    int messages = 100;
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    DataWriter writer = new DataWriter(out);
+    writer.setMasking(true);
+    for (int i = 0; i < messages - 1; i++) writer.write(true, Opcode.TEXT, "message " + i);
+    writer.write(false, Opcode.TEXT, "Hello, ");
+    writer.write(true, Opcode.CONTINUE, "world");
+    byte[] data = out.toByteArray();
+    ByteBuffer frames = ByteBuffer.wrap(data.clone());
+
+    DataReader reader = new DataReader(new ByteBufferInputStream(frames));
+    reader.setReuseFrames(true);
+    reader.read();
+    DataFrame start = reader.getStartFrame();
+    assertEquals("message 0", reader.getPayload(), "Wrong payload of a reused frame");
+    for (int i = 1; i < messages - 1; i++) reader.read();
+    assertSame(start, reader.getStartFrame(), "Frame was not reused");
+    assertEquals("message 98", reader.getPayload(), "Wrong payload after reusing the frame");
+    reader.read();
+    assertEquals("Hello, world", reader.getPayload(), "Fragments were not joined into the reused frame");
+    assertEquals(1, reader.getFrameStream().size(), "Joined message is not a single frame");
+
+    long reused = allocatedWhileReading(reader, data, frames, messages);
+    long allocating = allocatedWhileReading(new DataReader(new ByteBufferInputStream(frames)), data, frames, messages);
+    // Leaves room for the measurement itself, a single allocation per message would be far above it
+    assertTrue(reused < 1024, String.format("Reading with reused frames allocated %d bytes", reused));
+    assertTrue(allocating > reused, "Allocations of the default reader were not measured");
+  }
+
+  @Test public void testUtf8() throws IOException, UnexpectedFrameException {
+    byte[] euro = "\u20ac".getBytes(StandardCharsets.UTF_8);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    DataWriter writer = new DataWriter(out);
+    // The euro sign split across the fragments
+    writer.write(false, Opcode.TEXT, new byte[] { 'a', euro[0] });
+    writer.write(true, Opcode.CONTINUE, new byte[] { euro[1], euro[2], 'b' });
+    // Surrogate U+D800, which the JDK's decoder would replace
+    writer.write(true, Opcode.TEXT, hexToByteArray("eda080"));
+    writer.write(true, Opcode.BINARY, hexToByteArray("eda080"));
+
+    DataReader reader = new DataReader(new ByteArrayInputStream(out.toByteArray()));
+    reader.read();
+    assertEquals("a\u20acb", reader.getPayload(), "Character split across fragments was not decoded");
+    assertSame(reader.getPayload(), reader.getPayload(), "Payload was decoded more than once");
+    assertThrows(InvalidPayloadException.class, reader::read, "Invalid UTF-8 was accepted");
+    reader.read();
+    assertEquals(3, reader.getPayloadLength(), "BINARY payload was validated as UTF-8");
+  }
+
+  /**
+   * Reads the buffered messages over and over once warmed up
+   * <p>The buffer is refilled every round, reading from a buffer unmasks the payloads in place</p>
+   * @return the bytes allocated by this thread while reading them
+   */
+  private static long allocatedWhileReading(DataReader reader, byte[] data, ByteBuffer frames, int messages) throws IOException, UnexpectedFrameException {
+    com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+    long checksum = 0;
+    long before = 0;
+    for (int round = 0; round < 400; round++) {
+      // The first half warms the read path up, so the JIT has removed what escape analysis can
+      if (round == 200) before = threads.getCurrentThreadAllocatedBytes();
+      frames.clear();
+      frames.put(data).flip();
+      for (int i = 0; i < messages; i++) {
+        reader.read();
+        checksum += reader.getPayloadBuffer().get(0) + reader.getStartFrame().getPayloadLength();
+      }
+    }
+    long allocated = threads.getCurrentThreadAllocatedBytes() - before;
+    assertTrue(checksum > 0);
+    return allocated;
+  }
+
   public static byte[] hexToByteArray(String hstr) {
     if ((hstr.length() < 0) || ((hstr.length() % 2) != 0)) {
       throw new IllegalArgumentException(String.format("Invalid string length of <%d>",hstr.length()));
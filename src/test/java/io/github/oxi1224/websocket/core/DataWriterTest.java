@@ -5,9 +5,14 @@ import static org.junit.jupiter.api.Assertions.*;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.junit.jupiter.api.Test;
 
+import io.github.oxi1224.websocket.shared.exceptions.UsageError;
+
 class DataWriterTest {
   @Test public void testWriting() throws IOException {
     ByteArrayOutputStream out = new ByteArrayOutputStream();
@@ -22,4 +27,160 @@ class DataWriterTest {
     assertArrayEquals(testFrame.getPayload(), readFrame.getPayload(), "Frame payloads are different");
     assertEquals(testFrame.getOpcode().getValue(), readFrame.getOpcode().getValue(), "Frame opcodes are different");
   }
+
+  @Test public void testMessageStream() throws IOException {
+    byte[] payload = new byte[260];
+    for (int i = 0; i < payload.length; i++) payload[i] = (byte)i;
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    DataWriter writer = new DataWriter(out);
+    writer.setFragmentSize(100);
+    MessageOutputStream message = writer.openMessage(Opcode.BINARY);
+    assertThrows(UsageError.class, () -> writer.openMessage(Opcode.TEXT), "Opened two messages at once");
+    message.write(payload, 0, 250);
+    writer.write(true, Opcode.PING, new byte[0]);
+    message.write(ByteBuffer.wrap(payload, 250, 10));
+    message.close();
+    writer.write("after");
+
+    ByteArrayInputStream in = new ByteArrayInputStream(out.toByteArray());
+    Opcode[] opcodes = { Opcode.BINARY, Opcode.CONTINUE, Opcode.PING, Opcode.CONTINUE, Opcode.TEXT };
+    int[] lengths = { 100, 100, 0, 60, 5 };
+    ByteArrayOutputStream received = new ByteArrayOutputStream();
+    for (int i = 0; i < opcodes.length; i++) {
+      DataFrame frame = DataFrame.read(in);
+      assertEquals(opcodes[i], frame.getOpcode(), "Wrong opcode of frame " + i);
+      assertEquals(lengths[i], frame.getPayloadLength(), "Wrong length of frame " + i);
+      assertEquals(i >= 2, frame.getFin(), "Wrong FIN of frame " + i);
+      if (i != 2 && i != 4) received.write(frame.getPayload());
+    }
+    assertArrayEquals(payload, received.toByteArray(), "Fragments do not add up to the message");
+  }
+
+  @Test public void testDataFramesWaitForOpenMessage() throws IOException, InterruptedException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    DataWriter writer = new DataWriter(out);
+    writer.setFragmentSize(100);
+    MessageOutputStream message = writer.openMessage(Opcode.BINARY);
+    message.write(new byte[150]);
+    assertThrows(UsageError.class, () -> writer.write("inside"), "Data frame from the opening thread was written into the message");
+
+    Thread other = new Thread(() -> {
+      try {
+        writer.write(PreparedFrame.of("other"));
+      } catch (IOException e) {}
+    });
+    other.start();
+    for (int i = 0; i < 100 && other.getState() != Thread.State.WAITING; i++) Thread.sleep(10);
+    assertEquals(Thread.State.WAITING, other.getState(), "Data frame did not wait for the open message");
+    message.write(new byte[100]);
+    message.close();
+    other.join(5000);
+
+    ByteArrayInputStream in = new ByteArrayInputStream(out.toByteArray());
+    Opcode[] opcodes = { Opcode.BINARY, Opcode.CONTINUE, Opcode.CONTINUE, Opcode.TEXT };
+    for (int i = 0; i < opcodes.length; i++) {
+      assertEquals(opcodes[i], DataFrame.read(in).getOpcode(), "Wrong opcode of frame " + i);
+    }
+  }
+
+  @Test public void testGatheredWrite() throws IOException {
+    byte[] payload = new byte[5000];
+    for (int i = 0; i < payload.length; i++) payload[i] = (byte)i;
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    DataWriter writer = new DataWriter(out);
+    ByteBuffer first = ByteBuffer.wrap(payload, 0, 3000);
+    ByteBuffer second = ByteBuffer.wrap(payload, 3000, 2000);
+    writer.write(true, Opcode.BINARY, first, second);
+    assertEquals(0, first.position(), "Writing moved the position of a chunk");
+    writer.write(true, Opcode.BINARY, payload);
+
+    ByteArrayInputStream in = new ByteArrayInputStream(out.toByteArray());
+    assertArrayEquals(payload, DataFrame.read(in).getPayload(), "Chunked frame payload is different");
+    assertArrayEquals(payload, DataFrame.read(in).getPayload(), "Gathered frame payload is different");
+  }
+
+  @Test public void testGatheredWriteCalls() throws IOException {
+    AtomicInteger writes = new AtomicInteger();
+    ByteArrayOutputStream out = new ByteArrayOutputStream() {
+      @Override
+      public synchronized void write(byte[] b, int off, int len) {
+        writes.incrementAndGet();
+        super.write(b, off, len);
+      }
+    };
+    byte[] payload = new byte[40000];
+    for (int i = 0; i < payload.length; i++) payload[i] = (byte)i;
+    DataWriter writer = new DataWriter(out);
+    writer.write(true, Opcode.BINARY, ByteBuffer.wrap(payload, 0, 3000), ByteBuffer.wrap(payload, 3000, 2000));
+    assertEquals(1, writes.get(), "Header and small payload were not written at once");
+    writer.write(true, Opcode.BINARY, payload);
+    assertEquals(3, writes.get(), "Large payload was not written as the head and the rest");
+
+    ByteArrayInputStream in = new ByteArrayInputStream(out.toByteArray());
+    assertArrayEquals(Arrays.copyOf(payload, 5000), DataFrame.read(in).getPayload(), "Chunked frame payload is different");
+    assertArrayEquals(payload, DataFrame.read(in).getPayload(), "Large frame payload is different");
+  }
+
+  @Test public void testGatheredWriteQueued() throws IOException {
+    byte[] payload = new byte[5000];
+    for (int i = 0; i < payload.length; i++) payload[i] = (byte)i;
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    DataWriter writer = new DataWriter(out);
+    OutboundQueue queue = new OutboundQueue(1 << 20, 1 << 19, SlowConsumerPolicy.DISCONNECT);
+    AtomicInteger enqueued = new AtomicInteger();
+    writer.useOutboundQueue(queue, enqueued::incrementAndGet);
+    writer.write(true, Opcode.BINARY, payload);
+    writer.write("small");
+    assertEquals(2, enqueued.get(), "Every frame should notify once");
+    assertEquals(2, queue.getQueuedFrames(), "Header and payload were counted as separate frames");
+    queue.drainTo(out);
+
+    ByteArrayInputStream in = new ByteArrayInputStream(out.toByteArray());
+    assertArrayEquals(payload, DataFrame.read(in).getPayload(), "Queued gathered frame payload is different");
+    assertEquals("small", new String(DataFrame.read(in).getPayload()), "Small frame payload is different");
+  }
+
+  @Test public void testCork() throws IOException {
+    AtomicInteger writes = new AtomicInteger();
+    ByteArrayOutputStream out = new ByteArrayOutputStream() {
+      @Override
+      public synchronized void write(byte[] b, int off, int len) {
+        writes.incrementAndGet();
+        super.write(b, off, len);
+      }
+    };
+    DataWriter writer = new DataWriter(out);
+    writer.cork();
+    writer.cork();
+    for (int i = 0; i < 20; i++) writer.write("message " + i);
+    writer.uncork();
+    assertEquals(0, writes.get(), "Frames were written before the last uncork()");
+    writer.uncork();
+    assertEquals(1, writes.get(), "Corked frames were not written at once");
+    assertThrows(UsageError.class, writer::uncork, "Uncorking an uncorked writer was accepted");
+
+    writer.cork();
+    writer.write("held back");
+    writer.write(true, Opcode.PING, new byte[0]);
+    assertEquals(2, writes.get(), "PING did not push out the corked frames");
+    writer.uncork();
+
+    ByteArrayInputStream in = new ByteArrayInputStream(out.toByteArray());
+    for (int i = 0; i < 20; i++) assertEquals("message " + i, new String(DataFrame.read(in).getPayload()), "Corked frames out of order");
+    assertEquals("held back", new String(DataFrame.read(in).getPayload()), "Frame before the PING is missing");
+    assertEquals(Opcode.PING, DataFrame.read(in).getOpcode(), "PING is missing");
+  }
+
+  @Test public void testCorkQueued() throws IOException {
+    DataWriter writer = new DataWriter(new ByteArrayOutputStream());
+    OutboundQueue queue = new OutboundQueue(1 << 20, 1 << 19, SlowConsumerPolicy.DISCONNECT);
+    AtomicInteger notified = new AtomicInteger();
+    writer.useOutboundQueue(queue, notified::incrementAndGet);
+    writer.cork();
+    for (int i = 0; i < 20; i++) writer.write("message " + i);
+    assertEquals(0, notified.get(), "Consumer was woken up while corked");
+    writer.uncork();
+    assertEquals(1, notified.get(), "Consumer was not woken up once for the corked frames");
+    assertEquals(20, queue.getQueuedFrames(), "Corked frames were not queued");
+  }
 }
@@ -0,0 +1,105 @@
+package io.github.oxi1224.websocket.core;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.jupiter.api.Test;
+
+class FrameCodecTest {
+  @Test public void testHeaderRoundTrip() throws IOException {
+    long[] lengths = { 0, 125, 126, 65535, 65536, 5000000000L };
+    for (long length : lengths) {
+      for (boolean mask : new boolean[] { false, true }) {
+        ByteBuffer buf = ByteBuffer.allocate(FrameCodec.MAX_HEADER_LENGTH);
+        int written = FrameCodec.encodeHeader(buf, true, true, false, true, Opcode.BINARY, mask, length, 0x37fa213d);
+        assertEquals(FrameCodec.headerLength(length, mask), written, "Header length mismatch for " + length);
+        buf.flip();
+        FrameHeader header = new FrameHeader();
+        assertTrue(FrameCodec.decodeHeader(buf, header));
+        assertEquals(written, buf.position(), "Decoding did not consume the header");
+        assertEquals(length, header.getPayloadLength(), "Payload length changed in the round trip");
+        assertTrue(header.getFin());
+        assertTrue(header.getRsv1());
+        assertFalse(header.getRsv2());
+        assertTrue(header.getRsv3());
+        assertEquals(Opcode.BINARY, header.getOpcode());
+        assertEquals(mask, header.getMask());
+        if (mask) assertEquals(0x37fa213d, header.getMaskingKey(), "Masking key changed in the round trip");
+      }
+    }
+  }
+
+  @Test public void testIncompleteHeader() throws IOException {
+    // Masked frame with a 16 bit length, cut off in the middle of the masking key
+    ByteBuffer buf = ByteBuffer.wrap(DataFrameTest.hexToByteArray("81fe012c37fa"));
+    FrameHeader header = new FrameHeader();
+    assertEquals(-1, FrameCodec.decodeHeader(buf, 0, header), "Incomplete header was decoded");
+    assertFalse(FrameCodec.decodeHeader(buf, header));
+    assertEquals(0, buf.position(), "Position moved on an incomplete header");
+  }
+
+  @Test public void testPayloadSlice() throws IOException {
+    // fin - 1 rsv1-3 - 0, mask - 1, data = "Hello", followed by another frame
+    ByteBuffer buf = ByteBuffer.wrap(DataFrameTest.hexToByteArray("818537fa213d7f9f4d5158810548656c6c6f"));
+    FrameHeader header = new FrameHeader();
+    assertTrue(FrameCodec.decodeHeader(buf, header));
+    ByteBuffer payload = FrameCodec.payload(buf, header);
+    assertEquals("Hello", StandardCharsets.UTF_8.decode(payload.duplicate()).toString(), "Payload was not unmasked");
+    assertEquals(buf.array(), payload.array(), "Payload was copied instead of sliced");
+    assertTrue(FrameCodec.decodeHeader(buf, header));
+    assertFalse(header.getMask());
+    assertEquals("Hello", StandardCharsets.UTF_8.decode(FrameCodec.payload(buf, header)).toString());
+    assertFalse(buf.hasRemaining());
+  }
+
+  @Test public void testMatchesDataFrame() {
+    byte[] payload = new byte[300];
+    for (int i = 0; i < payload.length; i++) payload[i] = (byte)i;
+    byte[] key = DataFrameTest.hexToByteArray("01020304");
+    byte[] expected = new DataFrame(true, false, false, false, Opcode.TEXT, true, payload.length, key, payload).getBytes();
+    ByteBuffer buf = ByteBuffer.allocate(expected.length);
+    FrameCodec.encodeHeader(buf, true, false, false, false, Opcode.TEXT, true, payload.length, 0x01020304);
+    int start = buf.position();
+    buf.put(payload);
+    buf.position(start);
+    FrameCodec.mask(buf, 0x01020304);
+    assertArrayEquals(expected, buf.array(), "Codec and DataFrame encode differently");
+  }
+
+  @Test public void testMaskMatchesBytewise() {
+    int key = 0x9e3779b9;
+    for (int offset = 0; offset < 8; offset++) {
+      for (int length = 0; length < 40; length++) {
+        byte[] data = new byte[offset + length + 3];
+        for (int i = 0; i < data.length; i++) data[i] = (byte)(i * 31);
+        byte[] expected = data.clone();
+        for (int i = 0; i < length; i++) expected[offset + i] ^= (byte)(key >>> (24 - (i % 4) * 8));
+
+        byte[] array = data.clone();
+        FrameCodec.mask(array, offset, length, key);
+        assertArrayEquals(expected, array, "Array masking wrong at offset " + offset + " length " + length);
+
+        ByteBuffer direct = ByteBuffer.allocateDirect(data.length).put(data);
+        direct.position(offset).limit(offset + length);
+        FrameCodec.mask(direct, key);
+        assertEquals(offset, direct.position(), "Masking moved the position");
+        byte[] fromDirect = new byte[data.length];
+        direct.clear();
+        direct.get(fromDirect);
+        assertArrayEquals(expected, fromDirect, "Direct buffer masking wrong at offset " + offset + " length " + length);
+      }
+    }
+  }
+
+  @Test public void testGenMaskingKey() {
+    byte[] key = DataFrame.genMaskingKey();
+    assertEquals(4, key.length);
+    boolean differs = false;
+    int first = FrameCodec.newMaskingKey();
+    for (int i = 0; i < 16 && !differs; i++) differs = FrameCodec.newMaskingKey() != first;
+    assertTrue(differs, "Masking keys are not random");
+  }
+}
@@ -0,0 +1,221 @@
+package io.github.oxi1224.websocket.core;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+import io.github.oxi1224.websocket.shared.exceptions.SlowConsumerException;
+
+class OutboundQueueTest {
+  private static ByteBuffer frame(int size, int value) {
+    byte[] bytes = new byte[size];
+    for (int i = 0; i < size; i++) bytes[i] = (byte)value;
+    return ByteBuffer.wrap(bytes);
+  }
+
+  /**
+   * A complete BINARY message of the given size, its header byte followed by the value
+   */
+  private static ByteBuffer message(int size, int value) {
+    return header(frame(size, value), true, Opcode.BINARY);
+  }
+
+  private static ByteBuffer header(ByteBuffer frame, boolean fin, Opcode opcode) {
+    frame.put(0, (byte)((fin ? 0x80 : 0) | opcode.getValue()));
+    return frame;
+  }
+
+  @Test public void testDropNewest() throws IOException {
+    OutboundQueue queue = new OutboundQueue(10, 5, SlowConsumerPolicy.DROP_NEWEST);
+    assertTrue(queue.offer(message(8, 1)), "First frame was dropped");
+    assertFalse(queue.offer(message(8, 2)), "Frame exceeding the high watermark was accepted");
+    assertEquals(1, queue.getDroppedFrames(), "Dropped frame was not counted");
+    assertFalse(queue.isWritable(), "Queue above the high watermark counts as writable");
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    queue.drainTo(out);
+    assertEquals(8, out.size(), "Drained the wrong amount of bytes");
+    assertTrue(queue.isWritable(), "Drained queue does not count as writable");
+  }
+
+  @Test public void testDropOldest() throws IOException {
+    OutboundQueue queue = new OutboundQueue(10, 5, SlowConsumerPolicy.DROP_OLDEST);
+    queue.offer(message(4, 1));
+    queue.offer(message(4, 2));
+    assertTrue(queue.offer(message(4, 3)), "Newest frame was dropped");
+    assertEquals(1, queue.getDroppedFrames(), "Dropped frame was not counted");
+    assertEquals(8, queue.getQueuedBytes(), "Queued bytes are wrong after dropping");
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    queue.drainTo(out);
+    byte[] bytes = out.toByteArray();
+    assertEquals(2, bytes[1], "Oldest frame was not the one dropped");
+    assertEquals(3, bytes[7], "Newest frame was not kept");
+  }
+
+  @Test public void testDisconnect() throws IOException {
+    OutboundQueue queue = new OutboundQueue(10, 5, SlowConsumerPolicy.DISCONNECT);
+    assertTrue(queue.offer(frame(64, 1)), "Frame larger than the high watermark was refused by an empty queue");
+    assertThrows(SlowConsumerException.class, () -> queue.offer(frame(1, 2)), "Full queue did not disconnect");
+  }
+
+  @Test public void testBlock() throws Exception {
+    OutboundQueue queue = new OutboundQueue(10, 5, SlowConsumerPolicy.BLOCK);
+    queue.offer(frame(8, 1));
+    CountDownLatch offered = new CountDownLatch(1);
+    Thread producer = new Thread(() -> {
+      try {
+        queue.offer(frame(8, 2));
+        offered.countDown();
+      } catch (IOException e) {}
+    });
+    producer.start();
+    assertFalse(offered.await(200, TimeUnit.MILLISECONDS), "Producer was not blocked by a full queue");
+    queue.drainTo(new ByteArrayOutputStream());
+    assertTrue(offered.await(5, TimeUnit.SECONDS), "Producer was not woken after draining");
+    producer.join();
+  }
+
+  @Test public void testClose() throws IOException {
+    OutboundQueue queue = new OutboundQueue(10, 5, SlowConsumerPolicy.DROP_NEWEST);
+    queue.offer(frame(4, 1));
+    queue.close();
+    assertTrue(queue.isEmpty(), "Closed queue still holds frames");
+    assertThrows(IOException.class, () -> queue.offer(frame(4, 1)), "Closed queue accepted a frame");
+  }
+
+  @Test public void testDropNewestKeepsFragmentsAndControlFrames() throws IOException {
+    OutboundQueue queue = new OutboundQueue(10, 5, SlowConsumerPolicy.DROP_NEWEST);
+    queue.offer(message(8, 1));
+    assertTrue(queue.offer(header(frame(4, 2), false, Opcode.BINARY)), "First fragment was dropped");
+    assertTrue(queue.offer(header(frame(4, 3), true, Opcode.CONTINUE)), "Continuation fragment was dropped");
+    assertTrue(queue.offer(header(frame(4, 4), true, Opcode.PONG)), "PONG frame was dropped");
+    assertTrue(queue.offer(header(frame(4, 5), true, Opcode.CLOSE)), "CLOSE frame was dropped");
+    queue.offerRaw(frame(4, 'H'));
+    assertFalse(queue.offer(message(4, 6)), "Whole message exceeding the high watermark was accepted");
+    assertEquals(1, queue.getDroppedFrames(), "Dropped frames were not counted");
+    assertEquals(28, queue.getQueuedBytes(), "Kept frames are missing");
+  }
+
+  @Test public void testDropOldestKeepsFragmentsAndControlFrames() throws IOException {
+    OutboundQueue queue = new OutboundQueue(10, 5, SlowConsumerPolicy.DROP_OLDEST);
+    queue.offerRaw(frame(4, 'H'));
+    queue.offer(header(frame(4, 1), false, Opcode.TEXT));
+    queue.offer(message(4, 2));
+    queue.offer(header(frame(4, 3), true, Opcode.CONTINUE));
+    queue.offer(header(frame(4, 4), true, Opcode.CLOSE));
+    assertEquals(1, queue.getDroppedFrames(), "Only the whole message could be dropped");
+    assertTrue(queue.offer(message(4, 5)), "Newest frame was dropped");
+    assertEquals(1, queue.getDroppedFrames(), "Fragments, control frames or raw bytes were dropped");
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    queue.drainTo(out);
+    byte[] bytes = out.toByteArray();
+    assertEquals(20, bytes.length, "Kept frames are missing");
+    byte[] values = { 'H', 1, 3, 4, 5 };
+    for (int i = 0; i < values.length; i++) assertEquals(values[i], bytes[i * 4 + 1], "Kept frames are out of order");
+  }
+
+  @Test public void testKeepsCompressedMessagesWithContextTakeover() throws IOException {
+    for (SlowConsumerPolicy policy : new SlowConsumerPolicy[] { SlowConsumerPolicy.DROP_OLDEST, SlowConsumerPolicy.DROP_NEWEST }) {
+      OutboundQueue queue = new OutboundQueue(10, 5, policy);
+      queue.setCompressionContextTakeover(true);
+      ByteBuffer compressed = message(8, 1);
+      compressed.put(0, (byte)(compressed.get(0) | 0x40));
+      queue.offer(compressed);
+      ByteBuffer next = message(8, 2);
+      next.put(0, (byte)(next.get(0) | 0x40));
+      assertTrue(queue.offer(next), "Compressed message was dropped under " + policy);
+      assertEquals(0, queue.getDroppedFrames(), "Compressed message was dropped under " + policy);
+      assertEquals(16, queue.getQueuedBytes(), "Compressed messages are missing under " + policy);
+    }
+
+    // The writer keeps the queue informed of the negotiated context takeover
+    DataWriter writer = new DataWriter(new ByteArrayOutputStream());
+    writer.setDeflate(PerMessageDeflate.accept(List.of("permessage-deflate"), 0, true));
+    OutboundQueue queue = new OutboundQueue(1, 0, SlowConsumerPolicy.DROP_NEWEST);
+    // Never drained, so the second message finds the queue above its high watermark
+    writer.useOutboundQueue(queue, (task) -> {});
+    writer.write(true, Opcode.BINARY, new byte[64]);
+    writer.write(true, Opcode.BINARY, new byte[64]);
+    assertEquals(0, queue.getDroppedFrames(), "Message compressed with context takeover was dropped");
+  }
+
+  @Test public void testCloseLeavesInFlightToConsumer() throws IOException {
+    BufferPool pool = new BufferPool(false, 4096, 4, 4);
+    OutboundQueue queue = new OutboundQueue(300, 100, SlowConsumerPolicy.DROP_NEWEST);
+    PooledBuffer frame = pool.allocate(200);
+    frame.buffer().put(message(200, 0)).flip();
+    queue.offer(frame);
+    TrickleChannel channel = new TrickleChannel();
+    assertFalse(queue.drainTo(channel), "Partial write reported as fully drained");
+    queue.close();
+    assertEquals(1, frame.refCnt(), "Frame being written was released by the closing thread");
+    assertTrue(queue.drainTo(channel), "Closed queue was not reported as drained");
+    assertEquals(0, frame.refCnt(), "Consumer did not release the in-flight frame");
+  }
+
+  /**
+   * Accepts at most a few bytes per write, like a socket with a full send buffer
+   */
+  private static class TrickleChannel implements GatheringByteChannel {
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    int limit = 5;
+
+    public long write(ByteBuffer[] srcs, int offset, int length) {
+      int written = 0;
+      for (int i = offset; i < offset + length && written < limit; i++) {
+        while (srcs[i].hasRemaining() && written < limit) {
+          out.write(srcs[i].get());
+          written++;
+        }
+      }
+      return written;
+    }
+    public long write(ByteBuffer[] srcs) { return write(srcs, 0, srcs.length); }
+    public int write(ByteBuffer src) { return (int)write(new ByteBuffer[] { src }, 0, 1); }
+    public boolean isOpen() { return true; }
+    public void close() {}
+  }
+
+  @Test public void testMultiPartFrames() throws IOException {
+    OutboundQueue queue = new OutboundQueue(100, 50, SlowConsumerPolicy.DROP_NEWEST);
+    queue.offer(frame(2, 1), frame(6, 2));
+    queue.offer(frame(3, 3), frame(0, 0), frame(1, 4));
+    assertEquals(2, queue.getQueuedFrames(), "Parts were counted as frames");
+    assertEquals(12, queue.getQueuedBytes(), "Queued bytes do not cover every part");
+
+    TrickleChannel channel = new TrickleChannel();
+    assertFalse(queue.drainTo(channel), "Partial write reported as fully drained");
+    assertEquals(2, queue.getQueuedFrames(), "Partially written frame was removed");
+    assertFalse(queue.drainTo(channel), "Partial write reported as fully drained");
+    assertEquals(1, queue.getQueuedFrames(), "Written frame was not removed");
+    channel.limit = 100;
+    assertTrue(queue.drainTo(channel), "Queue was not drained");
+    assertTrue(queue.isEmpty(), "Drained queue still holds frames");
+    assertArrayEquals(new byte[] { 1, 1, 2, 2, 2, 2, 2, 2, 3, 3, 3, 4 }, channel.out.toByteArray(), "Parts were written out of order");
+  }
+
+  @Test public void testReleasesPooledFrames() throws IOException {
+    BufferPool pool = new BufferPool(false, 4096, 4, 4);
+    OutboundQueue queue = new OutboundQueue(300, 100, SlowConsumerPolicy.DROP_NEWEST);
+    PooledBuffer shared = pool.allocate(200);
+    shared.buffer().put(message(200, 0)).flip();
+    shared.retain().retain();
+    assertTrue(queue.offer(shared), "Pooled frame was dropped");
+    assertFalse(queue.offer(shared), "Frame exceeding the high watermark was accepted");
+    assertEquals(2, shared.refCnt(), "Dropped frame was not released");
+    queue.drainTo(new TrickleChannel() {{ limit = 1000; }});
+    assertEquals(1, shared.refCnt(), "Written frame was not released");
+    assertEquals(200, shared.buffer().remaining(), "Queue moved the position of the shared buffer");
+    queue.offer(shared);
+    queue.close();
+    assertEquals(0, shared.refCnt(), "Discarded frame was not released");
+  }
+}
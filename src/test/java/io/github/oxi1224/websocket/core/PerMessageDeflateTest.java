@@ -0,0 +1,100 @@
+package io.github.oxi1224.websocket.core;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import io.github.oxi1224.websocket.shared.exceptions.MessageTooLargeException;
+import io.github.oxi1224.websocket.shared.exceptions.UnexpectedFrameException;
+
+class PerMessageDeflateTest {
+  @Test public void testNegotiation() throws IOException {
+    assertNull(PerMessageDeflate.accept(List.of("x-webkit-deflate-frame"), 0, true), "Accepted an unknown extension");
+    PerMessageDeflate server = PerMessageDeflate.accept(
+      List.of("permessage-deflate; server_max_window_bits=10, permessage-deflate; client_max_window_bits"), 0, true
+    );
+    assertNotNull(server, "Declined the second offer");
+    assertEquals("permessage-deflate", server.getResponse(), "Wrong response to an offer without parameters");
+    server = PerMessageDeflate.accept(List.of(PerMessageDeflate.offer(true)), 0, false);
+    assertEquals(
+      "permessage-deflate; server_no_context_takeover; client_no_context_takeover",
+      server.getResponse(),
+      "Server without context takeover did not ask for it to be reset"
+    );
+    PerMessageDeflate client = PerMessageDeflate.fromResponse(List.of(server.getResponse()), 0, true);
+    assertFalse(client.keepsContext(), "Client kept its context although the server asked it not to");
+    assertThrows(
+      IOException.class,
+      () -> PerMessageDeflate.fromResponse(List.of("permessage-deflate; client_max_window_bits=9"), 0, true),
+      "Accepted a window the client can not compress with"
+    );
+  }
+
+  @Test public void testOfferParameters() throws IOException {
+    PerMessageDeflate server = PerMessageDeflate.accept(List.of("permessage-deflate; server_max_window_bits=15"), 0, true);
+    assertNotNull(server, "Declined a window the server compresses with");
+    assertEquals(
+      "permessage-deflate; server_max_window_bits=15",
+      server.getResponse(),
+      "Accepted server_max_window_bits was left out of the response"
+    );
+    assertNotNull(
+      PerMessageDeflate.fromResponse(List.of(server.getResponse()), 0, true),
+      "Client refused the response"
+    );
+    assertNull(
+      PerMessageDeflate.accept(List.of("permessage-deflate; client_no_context_takeover; client_no_context_takeover"), 0, true),
+      "Accepted an offer with a duplicated parameter"
+    );
+    server = PerMessageDeflate.accept(
+      List.of("permessage-deflate; server_max_window_bits=15; server_max_window_bits=15, permessage-deflate"), 0, true
+    );
+    assertNotNull(server, "Declined the offer after the invalid one");
+    assertEquals("permessage-deflate", server.getResponse(), "Accepted the offer with a duplicated parameter");
+  }
+
+  @Test public void testRoundTrip() throws IOException, UnexpectedFrameException {
+    for (boolean contextTakeover : new boolean[] { true, false }) {
+      PerMessageDeflate server = PerMessageDeflate.accept(List.of(PerMessageDeflate.offer(contextTakeover)), 100, contextTakeover);
+      PerMessageDeflate client = PerMessageDeflate.fromResponse(List.of(server.getResponse()), 100, contextTakeover);
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      DataWriter writer = new DataWriter(out);
+      writer.setMasking(true);
+      writer.setDeflate(client);
+      String json = "{\"messageID\":\"update\",\"__data\":{\"price\":42,\"symbol\":\"ABC\"}}".repeat(50);
+      writer.write(json);
+      writer.write(json);
+      writer.write(true, Opcode.TEXT, "id", "short");
+
+      DataReader reader = new DataReader(new ByteArrayInputStream(out.toByteArray()));
+      reader.setDeflate(server);
+      for (int i = 0; i < 2; i++) {
+        reader.read();
+        assertTrue(reader.getStartFrame().getRsv1(), "Message above the minimum size was not compressed");
+        assertTrue(reader.getStartFrame().getPayloadLength() < json.length() / 5, "Message was barely compressed");
+        assertEquals(json, reader.getPayload(), "Wrong inflated payload, context takeover: " + contextTakeover);
+      }
+      reader.read();
+      assertFalse(reader.getStartFrame().getRsv1(), "Message below the minimum size was compressed");
+      assertTrue(reader.getStartFrame().getRsv2(), "Message ID marker was not set");
+      assertEquals("id short", reader.getPayload(), "Wrong uncompressed payload");
+    }
+  }
+
+  @Test public void testInflateLimit() throws IOException {
+    PerMessageDeflate server = PerMessageDeflate.accept(List.of(PerMessageDeflate.offer(false)), 0, false);
+    PerMessageDeflate client = PerMessageDeflate.fromResponse(List.of(server.getResponse()), 0, false);
+    byte[] zeros = new byte[1024 * 1024];
+    byte[] compressed = client.compress(zeros);
+    assertTrue(compressed.length < 2048, "Zeros did not compress");
+    assertThrows(MessageTooLargeException.class, () -> server.decompress(compressed, 1000), "Inflated past the limit");
+    assertArrayEquals(zeros, server.decompress(compressed, zeros.length), "Wrong payload inflated up to the limit");
+    assertEquals("", new String(server.decompress(client.compress(new byte[0]), 10), StandardCharsets.UTF_8), "Empty message");
+  }
+}
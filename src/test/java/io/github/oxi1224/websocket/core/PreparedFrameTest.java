@@ -0,0 +1,68 @@
+package io.github.oxi1224.websocket.core;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import io.github.oxi1224.websocket.shared.exceptions.UnexpectedFrameException;
+import io.github.oxi1224.websocket.shared.exceptions.UsageError;
+
+class PreparedFrameTest {
+  @Test public void testSameBytesAsWriter() throws IOException {
+    ByteArrayOutputStream direct = new ByteArrayOutputStream();
+    new DataWriter(direct).write("Hello");
+    ByteArrayOutputStream prepared = new ByteArrayOutputStream();
+    PreparedFrame frame = PreparedFrame.of("Hello");
+    new DataWriter(prepared).write(frame);
+    new DataWriter(prepared).write(frame);
+    byte[] once = direct.toByteArray();
+    byte[] twice = prepared.toByteArray();
+    assertEquals(once.length * 2, twice.length, "Prepared frame written twice has the wrong length");
+    for (int i = 0; i < twice.length; i++) {
+      assertEquals(once[i % once.length], twice[i], "Prepared frame differs from a regular write");
+    }
+  }
+
+  @Test public void testCompressedOnce() throws IOException, UnexpectedFrameException {
+    String payload = "shared payload ".repeat(100);
+    PreparedFrame frame = PreparedFrame.of("id", payload);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    for (boolean contextTakeover : new boolean[] { false, false, true }) {
+      PerMessageDeflate server = PerMessageDeflate.accept(List.of(PerMessageDeflate.offer(contextTakeover)), 0, contextTakeover);
+      DataWriter writer = new DataWriter(out);
+      writer.setDeflate(server);
+      writer.write(frame);
+    }
+    assertSame(frame.getCompressedBytes(), frame.getCompressedBytes(), "Frame was compressed more than once");
+
+    PerMessageDeflate client = PerMessageDeflate.fromResponse(List.of("permessage-deflate"), 0, true);
+    DataReader reader = new DataReader(new ByteArrayInputStream(out.toByteArray()));
+    reader.setDeflate(client);
+    for (int i = 0; i < 3; i++) {
+      reader.read();
+      assertTrue(reader.getStartFrame().getRsv1(), "Frame was not compressed");
+      assertTrue(reader.getStartFrame().getRsv2(), "Message ID marker was lost");
+      assertEquals("id " + payload, reader.getPayload(), "Wrong inflated payload");
+    }
+  }
+
+  @Test public void testReadOnlyBuffer() {
+    PreparedFrame frame = PreparedFrame.of("Hello".getBytes(StandardCharsets.UTF_8));
+    ByteBuffer buf = frame.asReadOnlyBuffer();
+    assertTrue(buf.isReadOnly(), "Expected a read-only view");
+    assertEquals(frame.getLength(), buf.remaining(), "View has the wrong length");
+  }
+
+  @Test public void testMaskingWriterRejected() {
+    DataWriter writer = new DataWriter(new ByteArrayOutputStream());
+    writer.setMasking(true);
+    assertThrows(UsageError.class, () -> writer.write(PreparedFrame.of("Hello")));
+  }
+}
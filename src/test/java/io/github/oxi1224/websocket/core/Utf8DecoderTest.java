@@ -0,0 +1,51 @@
+package io.github.oxi1224.websocket.core;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.nio.charset.StandardCharsets;
+
+import org.junit.jupiter.api.Test;
+
+import io.github.oxi1224.websocket.shared.exceptions.InvalidPayloadException;
+
+class Utf8DecoderTest {
+  @Test public void testDecode() throws InvalidPayloadException {
+    String text = "plain ASCII long enough for the fast path, \u00fcn\u00efc\u00f6d\u00e9, \u20ac and \ud83d\ude00";
+    byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+    Utf8Decoder decoder = new Utf8Decoder();
+    decoder.decode(bytes, 0, bytes.length);
+    decoder.finish();
+    assertEquals(text, decoder.decoded(), "Wrong decoded text");
+
+    // Every split point, including ones inside a sequence
+    for (int split = 0; split <= bytes.length; split++) {
+      decoder.reset();
+      decoder.decode(bytes, 0, split);
+      decoder.decode(bytes, split, bytes.length - split);
+      decoder.finish();
+      assertEquals(text, decoder.decoded(), "Wrong text when split at " + split);
+    }
+  }
+
+  @Test public void testInvalid() {
+    String[] invalid = {
+      "80",         // lone continuation byte
+      "c0af",       // overlong '/'
+      "e080af",     // overlong '/' in 3 bytes
+      "eda080",     // surrogate U+D800
+      "f4908080",   // above U+10FFFF
+      "f5808080",   // invalid lead byte
+      "c3",         // truncated sequence
+      "e282",       // truncated sequence
+      "c328"        // lead byte followed by ASCII
+    };
+    for (String hex : invalid) {
+      byte[] bytes = DataReaderTest.hexToByteArray(hex);
+      Utf8Decoder decoder = new Utf8Decoder();
+      assertThrows(InvalidPayloadException.class, () -> {
+        decoder.decode(bytes, 0, bytes.length);
+        decoder.finish();
+      }, "Accepted invalid UTF-8 " + hex);
+    }
+  }
+}
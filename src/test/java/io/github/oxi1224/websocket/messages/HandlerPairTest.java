@@ -0,0 +1,71 @@
+package io.github.oxi1224.websocket.messages;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.lang.management.ManagementFactory;
+
+import org.junit.jupiter.api.Test;
+
+import io.github.oxi1224.websocket.shared.exceptions.UsageError;
+
+class HandlerPairTest {
+  @Test public void testInvoke() throws NoSuchMethodException {
+    CountingHandler handler = new CountingHandler();
+    HandlerPair pair = new HandlerPair(handler, CountingHandler.class.getMethod("onMessage", String.class));
+    pair.invoke("message");
+    assertEquals(1, handler.count, "Handler was not invoked");
+    assertEquals("message", handler.last, "Handler received wrong data");
+
+    // Exceptions thrown by the handler are reported, not propagated to the read loop
+    HandlerPair throwing = new HandlerPair(new ThrowingHandler(), ThrowingHandler.class.getMethod("onMessage", String.class));
+    throwing.invoke("message");
+  }
+
+  @Test public void testInvokeError() throws NoSuchMethodException {
+    // Errors such as UsageError must not escape either, they would kill the thread reading the connection
+    HandlerPair throwing = new HandlerPair(new ErrorHandler(), ErrorHandler.class.getMethod("onMessage", String.class));
+    throwing.invoke("message");
+  }
+
+  @Test public void testInvokeAllocation() throws NoSuchMethodException {
+    CountingHandler handler = new CountingHandler();
+    HandlerPair pair = new HandlerPair(handler, CountingHandler.class.getMethod("onMessage", String.class));
+    long allocated = allocatedWhileInvoking(pair, 100000);
+    // Leaves room for the measurement itself, an argument array per call would be far above it
+    assertTrue(allocated < 1024, String.format("Invoking a handler allocated %d bytes", allocated));
+    assertEquals(200000, handler.count, "Handler was not invoked for every message");
+  }
+
+  private static long allocatedWhileInvoking(HandlerPair pair, int invocations) {
+    com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+    long before = 0;
+    for (int round = 0; round < 2; round++) {
+      // The first round warms the call up, so the JIT has inlined it
+      if (round == 1) before = threads.getCurrentThreadAllocatedBytes();
+      for (int i = 0; i < invocations; i++) pair.invoke("message");
+    }
+    return threads.getCurrentThreadAllocatedBytes() - before;
+  }
+
+  public static class CountingHandler implements MessageHandler<String> {
+    int count = 0;
+    String last;
+
+    public void onMessage(String data) {
+      count++;
+      last = data;
+    }
+  }
+
+  public static class ThrowingHandler implements MessageHandler<String> {
+    public void onMessage(String data) {
+      throw new IllegalStateException("Thrown by handler");
+    }
+  }
+
+  public static class ErrorHandler implements MessageHandler<String> {
+    public void onMessage(String data) {
+      throw new UsageError("Thrown by handler");
+    }
+  }
+}
@@ -0,0 +1,58 @@
+package io.github.oxi1224.websocket.server;
+
+import static org.junit.jupiter.api.Assertions.*;
+import org.junit.jupiter.api.Test;
+
+import io.github.oxi1224.websocket.core.PreparedFrame;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.List;
+
+class ClientRegistryTest {
+  @Test
+  public void testLookup() throws IOException {
+    try (ServerSocket srv = new ServerSocket(0)) {
+      ClientSocket a = connect(srv);
+      ClientSocket b = connect(srv);
+      assertNotEquals(a.getId(), b.getId(), "Expected every client to get its own id");
+      ClientRegistry clients = new ClientRegistry();
+      clients.add(a);
+      clients.add(b);
+      assertEquals(2, clients.size());
+      assertSame(a, clients.get(a.getId()), "Lookup by id returned the wrong client");
+      assertTrue(clients.remove(a));
+      assertFalse(clients.remove(a), "Removed client was reported as registered");
+      assertNull(clients.get(a.getId()), "Removed client can still be looked up");
+      assertFalse(clients.contains(a));
+      assertTrue(clients.contains(b));
+    }
+  }
+
+  @Test
+  public void testSnapshotAndSend() throws IOException {
+    try (ServerSocket srv = new ServerSocket(0)) {
+      ClientSocket a = connect(srv);
+      ClientSocket b = connect(srv);
+      ClientRegistry clients = new ClientRegistry();
+      clients.add(a);
+      clients.add(b);
+      List<ClientSocket> snapshot = clients.snapshot();
+      clients.remove(b);
+      assertEquals(2, snapshot.size(), "Snapshot changed with the registry");
+
+      PreparedFrame frame = PreparedFrame.of("Hello");
+      assertTrue(clients.send(a.getId(), frame));
+      assertFalse(clients.send(b.getId(), frame), "Sent to a client that is no longer registered");
+      BroadcastResult result = clients.send(List.of(a.getId(), b.getId()), frame);
+      assertEquals(1, result.getSentCount(), "Expected only the registered client to be sent to");
+      assertFalse(result.hasFailures());
+    }
+  }
+
+  private static ClientSocket connect(ServerSocket srv) throws IOException {
+    new Socket("127.0.0.1", srv.getLocalPort());
+    return new ClientSocket(srv.accept());
+  }
+}
@@ -0,0 +1,382 @@
+package io.github.oxi1224.websocket.server;
+
+import static org.junit.jupiter.api.Assertions.*;
+import org.junit.jupiter.api.Test;
+
+import io.github.oxi1224.websocket.client.Client;
+import io.github.oxi1224.websocket.core.BufferPool;
+import io.github.oxi1224.websocket.core.DataFrame;
+import io.github.oxi1224.websocket.core.DataWriter;
+import io.github.oxi1224.websocket.core.FrameCodec;
+import io.github.oxi1224.websocket.core.Opcode;
+import io.github.oxi1224.websocket.core.PooledBuffer;
+import io.github.oxi1224.websocket.core.StatusCode;
+import io.github.oxi1224.websocket.json.JSONException;
+import io.github.oxi1224.websocket.json.JSONObject;
+import io.github.oxi1224.websocket.shared.exceptions.ConnectionException;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+
+class NioWebSocketServerTest {
+  @Test
+  public void testPing() throws IOException, ConnectionException {
+    NioWebSocketServer server = new NioWebSocketServer(9100);
+    server.disableJSON();
+    startServerThread(server);
+    Client.disableJSON();
+    Client client = Client.connect("127.0.0.1", 9100);
+
+    client.pingServer();
+    DataFrame frame = client.getPayloadStartFrame();
+    assertEquals(Opcode.PONG, frame.getOpcode(), "Expected client to receive back a PONG frame");
+    server.close();
+  }
+
+  @Test
+  public void testClose() throws IOException, ConnectionException {
+    NioWebSocketServer server = new NioWebSocketServer(9101);
+    server.disableJSON();
+    startServerThread(server);
+    Client.disableJSON();
+    Client client = Client.connect("127.0.0.1", 9101);
+
+    client.close();
+    DataFrame frame = client.getPayloadStartFrame();
+    assertEquals(Opcode.CLOSE, frame.getOpcode(), "Expected client to receive back a CLOSE frame");
+    server.close();
+  }
+
+  @Test
+  public void testCommunication() throws IOException, ConnectionException {
+    NioWebSocketServer server = new NioWebSocketServer(9102);
+    server.disableJSON();
+    server.setEventLoopThreads(2);
+    startServerThread(server);
+    Client.disableJSON();
+    Client[] clients = { Client.connect("127.0.0.1", 9102), Client.connect("127.0.0.1", 9102) };
+
+    for (Client client : clients) {
+      client.write("Hello World");
+      client.read();
+      assertEquals("Hello World", client.getPayload(), "Sent/Received data differ");
+    }
+    server.close();
+  }
+
+  @Test
+  public void testJSONCommunication() throws IOException, ConnectionException, JSONException {
+    NioWebSocketServer server = new NioWebSocketServer(9103);
+    startServerThread(server);
+    Client.enableJSON();
+    Client client = Client.connect("127.0.0.1", 9103);
+    JSONObject obj = new JSONObject();
+    obj.set("message", "hello world");
+    client.write("json", obj);
+    client.read();
+    assertEquals(obj.toString(), client.getJSONPayload().toString());
+    server.close();
+  }
+
+  @Test
+  public void testMultipleAcceptors() throws IOException, ConnectionException {
+    NioWebSocketServer server = new NioWebSocketServer(9104);
+    server.disableJSON();
+    server.setEventLoopThreads(3);
+    server.setAcceptorThreads(2);
+    server.setLoadBalancingPolicy(LoadBalancingPolicy.leastConnections());
+    startServerThread(server);
+    Client.disableJSON();
+    for (int i = 0; i < 6; i++) {
+      Client client = Client.connect("127.0.0.1", 9104);
+      client.write("Hello " + i);
+      client.read();
+      assertEquals("Hello " + i, client.getPayload(), "Sent/Received data differ");
+    }
+    assertEquals(6, server.getClients().size(), "Expected every client to be registered");
+    server.close();
+  }
+
+  @Test
+  public void testBroadcast() throws IOException, ConnectionException {
+    NioWebSocketServer server = new NioWebSocketServer(9105);
+    server.disableJSON();
+    startServerThread(server);
+    Client.disableJSON();
+    Client[] clients = { Client.connect("127.0.0.1", 9105), Client.connect("127.0.0.1", 9105) };
+    // Round trip once so both clients are registered
+    for (Client client : clients) {
+      client.write("ready now");
+      client.read();
+    }
+
+    BroadcastResult result = server.broadcast("Hello everyone");
+    assertEquals(2, result.getSentCount(), "Expected the broadcast to reach both clients");
+    assertFalse(result.hasFailures(), "Expected no failed recipients");
+    for (Client client : clients) {
+      client.read();
+      assertEquals("Hello everyone", client.getPayload(), "Sent/Received data differ");
+    }
+
+    PooledBuffer frame = FrameCodec.encode(BufferPool.shared(), true, false, Opcode.TEXT, false, "Pooled hello".getBytes());
+    frame.retain();
+    assertEquals(2, server.broadcast(frame).getSentCount(), "Expected the pooled broadcast to reach both clients");
+    for (Client client : clients) {
+      client.read();
+      assertEquals("Pooled hello", client.getPayload(), "Sent/Received data differ");
+    }
+    // The loop releases its reference right after the write, possibly after the client already read the frame
+    long deadline = System.currentTimeMillis() + 2000;
+    while (frame.refCnt() > 1 && System.currentTimeMillis() < deadline) Thread.onSpinWait();
+    assertTrue(frame.release(), "Pooled frame was not released by every client");
+    server.close();
+  }
+
+  @Test
+  public void testPublish() throws IOException, ConnectionException {
+    NioWebSocketServer server = new NioWebSocketServer(9106);
+    server.disableJSON();
+    startServerThread(server);
+    Client.disableJSON();
+    Client subscriber = Client.connect("127.0.0.1", 9106);
+    Client other = Client.connect("127.0.0.1", 9106);
+    subscriber.write("subscribe market.*.trades");
+    // Messages are handled in order, once the echo arrives the subscription exists
+    for (Client client : new Client[] { subscriber, other }) {
+      client.write("ready now");
+      client.read();
+    }
+
+    BroadcastResult result = server.publish("market.btc.trades", "trade 1");
+    assertEquals(1, result.getSentCount(), "Expected only the subscriber to receive the message");
+    subscriber.read();
+    assertEquals("trade 1", subscriber.getPayload(), "Sent/Received data differ");
+
+    subscriber.write("unsubscribe market.*.trades");
+    subscriber.write("ready now");
+    subscriber.read();
+    assertEquals(0, server.publish("market.btc.trades", "trade 2").getSentCount(), "Unsubscribed client received the message");
+    server.close();
+  }
+
+  @Test
+  public void testHandshakeTimeout() throws IOException {
+    NioWebSocketServer server = new NioWebSocketServer(9107);
+    server.setHandshakeTimeout(200);
+    startServerThread(server);
+    try (Socket socket = new Socket("127.0.0.1", 9107)) {
+      socket.setSoTimeout(5000);
+      // Never sending the upgrade request, the server has to close the connection
+      assertEquals(-1, socket.getInputStream().read(), "Expected the server to close the connection");
+    }
+    server.close();
+  }
+
+  @Test
+  public void testHeartbeat() throws IOException, ConnectionException, InterruptedException {
+    NioWebSocketServer server = new NioWebSocketServer(9108);
+    server.disableJSON();
+    server.setHeartbeat(100, 0);
+    startServerThread(server);
+    Client.disableJSON();
+    Client alive = Client.connect("127.0.0.1", 9108);
+    Client dead = Client.connect("127.0.0.1", 9108);
+    // Reading answers the pings, the other client never reads so it never answers
+    Thread reader = new Thread(() -> {
+      try {
+        while (true) alive.read();
+      } catch (IOException e) {}
+    });
+    reader.setDaemon(true);
+    reader.start();
+    for (int i = 0; i < 50 && server.getClients().size() != 1; i++) Thread.sleep(100);
+    assertEquals(1, server.getClients().size(), "Expected only the unresponsive client to be closed");
+    Thread.sleep(500);
+    assertEquals(1, server.getClients().size(), "Expected the responsive client to stay connected");
+    dead.getSocket().close();
+    server.close();
+  }
+
+  @Test
+  public void testLoadBalancingPolicies() {
+    LoadBalancingPolicy roundRobin = LoadBalancingPolicy.roundRobin();
+    int[] counts = { 5, 0, 3 };
+    assertEquals(0, roundRobin.select(counts));
+    assertEquals(1, roundRobin.select(counts));
+    assertEquals(2, roundRobin.select(counts));
+    assertEquals(0, roundRobin.select(counts));
+    assertEquals(1, LoadBalancingPolicy.leastConnections().select(counts));
+  }
+
+  @Test
+  public void testMaxMessageSize() throws IOException, ConnectionException {
+    NioWebSocketServer server = new NioWebSocketServer(9109);
+    server.disableJSON();
+    server.setMaxMessageSize(100);
+    startServerThread(server);
+    Client.disableJSON();
+    Client client = Client.connect("127.0.0.1", 9109);
+
+    client.write("short enough");
+    client.read();
+    assertEquals("short enough", client.getPayload(), "Message below the limit was not echoed");
+    client.write("x".repeat(200));
+    client.read();
+    DataFrame frame = client.getPayloadStartFrame();
+    assertEquals(Opcode.CLOSE, frame.getOpcode(), "Expected the server to close the connection");
+    int code = ((frame.getPayload()[0] & 0xFF) << 8) | (frame.getPayload()[1] & 0xFF);
+    assertEquals(StatusCode.S_1009.getCode(), code, "Expected the connection to be closed with 1009");
+    server.close();
+  }
+
+  @Test
+  public void testMaxBufferedFraming() throws IOException, ConnectionException {
+    NioWebSocketServer server = new NioWebSocketServer(9114);
+    server.disableJSON();
+    server.setMaxMessageSize(100);
+    startServerThread(server);
+    Client.disableJSON();
+    Client client = Client.connect("127.0.0.1", 9114);
+
+    // Empty fragments stay below the message size but keep growing the buffered bytes.
+    // They go out in a single write, the server closing mid-way through many small writes breaks the pipe
+    ByteArrayOutputStream fragments = new ByteArrayOutputStream();
+    DataWriter writer = new DataWriter(fragments);
+    writer.setMasking(true);
+    writer.write(false, Opcode.TEXT, new byte[0]);
+    for (int i = 0; i < 23000; i++) writer.write(false, Opcode.CONTINUE, new byte[0]);
+    PooledBuffer frames = BufferPool.shared().allocate(fragments.size());
+    frames.buffer().put(fragments.toByteArray()).flip();
+    client.write(frames);
+    client.read();
+    DataFrame frame = client.getPayloadStartFrame();
+    assertEquals(Opcode.CLOSE, frame.getOpcode(), "Expected the server to close the connection");
+    int code = ((frame.getPayload()[0] & 0xFF) << 8) | (frame.getPayload()[1] & 0xFF);
+    assertEquals(StatusCode.S_1009.getCode(), code, "Expected the connection to be closed with 1009");
+    server.close();
+  }
+
+  @Test
+  public void testStreaming() throws IOException, ConnectionException {
+    NioWebSocketServer server = new NioWebSocketServer(9110);
+    server.disableJSON();
+    server.setStreamingThreshold(1000);
+    startServerThread(server);
+    Client.disableJSON();
+    Client client = Client.connect("127.0.0.1", 9110);
+
+    client.write("hello world");
+    client.read();
+    assertEquals("hello world", client.getPayload(), "Message below the threshold was not echoed");
+    client.write(new byte[5000]);
+    client.read();
+    assertEquals("streamed 5000", client.getPayload(), "Message above the threshold was not streamed");
+
+    client.write(false, Opcode.BINARY, new byte[10]);
+    client.write(true, Opcode.PING, new byte[0]);
+    client.write(true, Opcode.CONTINUE, new byte[20]);
+    client.read();
+    assertEquals(Opcode.PONG, client.getPayloadStartFrame().getOpcode(), "PING between the fragments was not answered");
+    client.read();
+    assertEquals("streamed 30", client.getPayload(), "Fragmented message was not streamed");
+    server.close();
+  }
+
+  @Test
+  public void testCompression() throws IOException, ConnectionException {
+    NioWebSocketServer server = new NioWebSocketServer(9111);
+    server.disableJSON();
+    server.enableCompression(64, false);
+    startServerThread(server);
+    Client.disableJSON();
+    Client.enableCompression(64, true);
+    try {
+      Client client = Client.connect("127.0.0.1", 9111);
+      String message = "compressed message ".repeat(100);
+      for (int i = 0; i < 3; i++) {
+        client.write(message);
+        client.read();
+        assertTrue(client.getPayloadStartFrame().getRsv1(), "Echo was not compressed");
+        assertEquals(message, client.getPayload(), "Wrong echo of a compressed message");
+      }
+      client.write("short message");
+      client.read();
+      assertFalse(client.getPayloadStartFrame().getRsv1(), "Message below the minimum size was compressed");
+      assertEquals("short message", client.getPayload(), "Wrong echo of an uncompressed message");
+    } finally {
+      Client.disableCompression();
+      server.close();
+    }
+  }
+
+  @Test
+  public void testCompressedBroadcast() throws IOException, ConnectionException {
+    NioWebSocketServer server = new NioWebSocketServer(9112);
+    server.disableJSON();
+    server.enableCompression(64, false);
+    startServerThread(server);
+    Client.disableJSON();
+    Client plain = Client.connect("127.0.0.1", 9112);
+    Client.enableCompression(64, false);
+    Client[] clients;
+    try {
+      clients = new Client[] { plain, Client.connect("127.0.0.1", 9112), Client.connect("127.0.0.1", 9112) };
+    } finally {
+      Client.disableCompression();
+    }
+    for (Client client : clients) {
+      client.write("ready now");
+      client.read();
+    }
+
+    String message = "broadcast message ".repeat(100);
+    assertEquals(3, server.broadcast(message).getSentCount(), "Expected the broadcast to reach every client");
+    for (int i = 0; i < clients.length; i++) {
+      clients[i].read();
+      assertEquals(i != 0, clients[i].getPayloadStartFrame().getRsv1(), "Broadcast compressed for the wrong clients");
+      assertEquals(message, clients[i].getPayload(), "Sent/Received data differ");
+    }
+    server.close();
+  }
+
+  @Test
+  public void testRegisteredAfterHandshake() throws IOException, ConnectionException, InterruptedException {
+    NioWebSocketServer server = new NioWebSocketServer(9113);
+    server.disableJSON();
+    startServerThread(server);
+    Client.disableJSON();
+    // Connected but the upgrade request is not sent yet
+    Socket pending = null;
+    for (int attempt = 0; pending == null; attempt++) {
+      try {
+        pending = new Socket("127.0.0.1", 9113);
+      } catch (IOException e) {
+        if (attempt == 50) throw e;
+        Thread.sleep(100);
+      }
+    }
+    Thread.sleep(200);
+    assertEquals(0, server.getClients().size(), "Client was registered before completing the handshake");
+    assertEquals(0, server.broadcast("too early").getSentCount(), "Broadcast reached a client before its handshake");
+
+    Client client = Client.connect("127.0.0.1", 9113);
+    client.write("ready now");
+    client.read();
+    assertEquals(1, server.getClients().size(), "Client was not registered after the handshake");
+    pending.close();
+    server.close();
+  }
+
+  public static void startServerThread(NioWebSocketServer srv) {
+    Thread t = new Thread(() -> {
+      try {
+        srv.setHandlersPackageName("io.github.oxi1224.websocket.client");
+        srv.start();
+      } catch (IOException e) {
+        e.printStackTrace();
+      }
+    });
+    t.start();
+  }
+}
@@ -0,0 +1,75 @@
+package io.github.oxi1224.websocket.server;
+
+import static org.junit.jupiter.api.Assertions.*;
+import org.junit.jupiter.api.Test;
+
+import io.github.oxi1224.websocket.shared.exceptions.UsageError;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Set;
+
+class TopicRegistryTest {
+  @Test
+  public void testWildcardMatching() throws IOException {
+    try (ServerSocket srv = new ServerSocket(0)) {
+      ClientSocket a = connect(srv);
+      ClientSocket b = connect(srv);
+      TopicRegistry topics = new TopicRegistry();
+      topics.subscribe(a, "market.btc.trades");
+      topics.subscribe(b, "market.*.trades");
+      topics.subscribe(b, "market.btc.*");
+
+      Set<ClientSocket> matched = topics.match("market.btc.trades");
+      assertEquals(2, matched.size(), "Expected both subscribers to match");
+      assertEquals(Set.of(b), topics.match("market.eth.trades"), "Expected only the wildcard subscriber to match");
+      assertEquals(Set.of(b), topics.match("market.btc.book"), "Expected only the trailing wildcard to match");
+      assertTrue(topics.match("market.btc").isEmpty(), "Wildcards must match exactly one segment");
+      assertTrue(topics.match("market.btc.trades.extra").isEmpty(), "Wildcards must match exactly one segment");
+    }
+  }
+
+  @Test
+  public void testUnsubscribe() throws IOException {
+    try (ServerSocket srv = new ServerSocket(0)) {
+      ClientSocket a = connect(srv);
+      TopicRegistry topics = new TopicRegistry();
+      assertTrue(topics.subscribe(a, "news.*"));
+      assertFalse(topics.subscribe(a, "news.*"), "Duplicate subscription was reported as new");
+      topics.subscribe(a, "chat.general");
+      assertTrue(topics.unsubscribe(a, "news.*"));
+      assertFalse(topics.unsubscribe(a, "news.*"), "Removed subscription was reported as existing");
+      assertTrue(topics.match("news.sports").isEmpty(), "Unsubscribed client still matches");
+      assertEquals(Set.of("chat.general"), topics.getSubscriptions(a));
+      topics.unsubscribeAll(a);
+      assertTrue(topics.match("chat.general").isEmpty(), "Client still matches after unsubscribeAll");
+      assertTrue(topics.getSubscriptions(a).isEmpty());
+    }
+  }
+
+  @Test
+  public void testSubscribeAfterClose() throws IOException {
+    try (ServerSocket srv = new ServerSocket(0)) {
+      ClientSocket a = connect(srv);
+      TopicRegistry topics = new TopicRegistry();
+      a.onClose((c) -> topics.unsubscribeAll(c));
+      a.terminate();
+      assertFalse(topics.subscribe(a, "news.*"), "Closed client was subscribed");
+      assertTrue(topics.match("news.sports").isEmpty(), "Closed client was left in the registry");
+      assertTrue(topics.getSubscriptions(a).isEmpty());
+    }
+  }
+
+  @Test
+  public void testInvalidTopic() {
+    TopicRegistry topics = new TopicRegistry();
+    assertThrows(UsageError.class, () -> topics.match(""));
+    assertThrows(UsageError.class, () -> topics.match("market..trades"));
+  }
+
+  private static ClientSocket connect(ServerSocket srv) throws IOException {
+    new Socket("127.0.0.1", srv.getLocalPort());
+    return new ClientSocket(srv.accept());
+  }
+}
@@ -5,11 +5,14 @@ import org.junit.jupiter.api.Test;
 
 import io.github.oxi1224.websocket.client.Client;
 import io.github.oxi1224.websocket.core.Opcode;
+import io.github.oxi1224.websocket.core.OutboundQueue;
+import io.github.oxi1224.websocket.core.SlowConsumerPolicy;
 import io.github.oxi1224.websocket.json.JSONException;
 import io.github.oxi1224.websocket.json.JSONObject;
 import io.github.oxi1224.websocket.shared.exceptions.ConnectionException;
 
 import java.io.IOException;
+import java.util.concurrent.Executors;
 import java.util.function.Consumer;
 
 /// TODO: Rewrite this test cause wtf is this
@@ -17,6 +20,7 @@ class ConnectTask implements Consumer<Integer> {
   private WebSocketServer s;
   private ClientSocket c;
   public boolean disablejson = true;
+  public OutboundQueue queue;
 
   public void accept(Integer port) {
     try {
@@ -24,6 +28,7 @@ class ConnectTask implements Consumer<Integer> {
       if (disablejson) s.disableJSON();
       c = new ClientSocket(s.accept());
       if (disablejson) c.disableJSON();
+      if (queue != null) c.useOutboundQueue(queue, Executors.newSingleThreadExecutor());
       c.sendHandshake();
     } catch (IOException e) { e.printStackTrace(); }
   }
@@ -109,6 +114,22 @@ class WebSocketServerTest {
     assertEquals(obj.toString(), client_sock.getJSONPayload().toString(), "Invalid opcode received");
   }
 
+  @Test
+  public void testOutboundQueue() throws IOException, InterruptedException, ConnectionException {
+    ConnectTask c = new ConnectTask();
+    c.disablejson = true;
+    c.queue = new OutboundQueue(1024, 512, SlowConsumerPolicy.DROP_NEWEST);
+    Thread t = new Thread(() -> c.accept(8004));
+    t.start();
+    Thread.sleep(10); // Needed so the server starts first
+    Client.disableJSON();
+    Client client = Client.connect("127.0.0.1", 8004);
+    ClientSocket client_sock = c.getClient();
+    client_sock.write("Hello World");
+    client.read();
+    assertEquals("Hello World", client.getPayload(), "Queued message was not delivered");
+  }
+
   public static void runInThread(Runnable cb) {
     new Thread(() -> cb.run()).start();
   }
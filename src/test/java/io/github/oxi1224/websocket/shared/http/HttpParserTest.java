@@ -0,0 +1,58 @@
+package io.github.oxi1224.websocket.shared.http;
+
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+import io.github.oxi1224.websocket.shared.exceptions.HttpParseException;
+
+class HttpParserTest {
+  @Test public void testSplitSegments() throws IOException {
+    String raw = "GET /chat HTTP/1.1\r\n" +
+      "Host: localhost:8080\r\n" +
+      "Upgrade: websocket\r\n" +
+      "Sec-WebSocket-Version: 13\r\n" +
+      "\r\n";
+    byte[] bytes = raw.getBytes();
+    HttpParser parser = HttpParser.request();
+    // Feed the request in 3 byte segments, it must only complete on the last one
+    for (int i = 0; i < bytes.length; i += 3) {
+      int len = Math.min(3, bytes.length - i);
+      boolean done = parser.parse(ByteBuffer.wrap(bytes, i, len));
+      assertEquals(i + len == bytes.length, done, "Parser completed at the wrong segment");
+    }
+    HttpRequest req = parser.getRequest();
+    assertEquals("GET", req.getMethod(), "Wrong method provided");
+    assertEquals("/chat", req.getPath(), "Wrong path provided");
+    assertEquals("websocket", req.getFirstHeaderValue("Upgrade"), "Invalid Upgrade header provided");
+  }
+
+  @Test public void testLeavesTrailingBytes() throws IOException {
+    String raw = "HTTP/1.1 101 Switching Protocols\r\n" +
+      "Upgrade: websocket\r\n" +
+      "\r\n";
+    byte[] head = raw.getBytes();
+    byte[] frame = { (byte)0x81, 0x00 };
+    ByteBuffer buf = ByteBuffer.allocate(head.length + frame.length);
+    buf.put(head).put(frame).flip();
+    HttpParser parser = HttpParser.response();
+    assertTrue(parser.parse(buf), "Expected the response to be complete");
+    assertEquals(101, parser.getResponse().getStatusCode(), "Wrong status code provided");
+    assertEquals(2, buf.remaining(), "Parser consumed bytes past the end of the headers");
+
+    InputStream in = new ByteArrayInputStream(buf.array());
+    HttpResponse res = HttpResponse.parse(in);
+    assertEquals("Switching Protocols", res.getStatusMessage(), "Wrong status message provided");
+    assertEquals(0x81, in.read(), "Stream was read past the end of the headers");
+  }
+
+  @Test public void testHeaderLimit() {
+    HttpParser parser = HttpParser.request(32, 0);
+    byte[] raw = "GET / HTTP/1.1\r\nX-Long-Header: aaaaaaaaaaaaaaaaaaaa\r\n\r\n".getBytes();
+    assertThrows(HttpParseException.class, () -> parser.parse(ByteBuffer.wrap(raw)));
+  }
+}
@@ -0,0 +1,47 @@
+package io.github.oxi1224.websocket.shared.util;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+
+class HashedWheelTimerTest {
+  @Test public void testExpires() throws InterruptedException {
+    HashedWheelTimer timer = new HashedWheelTimer(10, TimeUnit.MILLISECONDS, 8);
+    CountDownLatch latch = new CountDownLatch(1);
+    long start = System.nanoTime();
+    HashedWheelTimer.Timeout timeout = timer.schedule(latch::countDown, 50, TimeUnit.MILLISECONDS);
+    assertTrue(latch.await(5, TimeUnit.SECONDS), "Timeout did not expire");
+    assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(50), "Timeout expired early");
+    assertTrue(timeout.isExpired());
+    assertFalse(timeout.cancel(), "Expired timeout reported as cancelled");
+    timer.stop();
+  }
+
+  @Test public void testCancel() throws InterruptedException {
+    HashedWheelTimer timer = new HashedWheelTimer(10, TimeUnit.MILLISECONDS, 8);
+    AtomicInteger runs = new AtomicInteger();
+    HashedWheelTimer.Timeout timeout = timer.schedule(runs::incrementAndGet, 50, TimeUnit.MILLISECONDS);
+    assertTrue(timeout.cancel());
+    assertTrue(timeout.isCancelled());
+    Thread.sleep(150);
+    assertEquals(0, runs.get(), "Cancelled timeout ran");
+    timer.stop();
+  }
+
+  @Test public void testLongerThanWheel() throws InterruptedException {
+    // 4 buckets of 10ms, so the timeout needs several rounds
+    HashedWheelTimer timer = new HashedWheelTimer(10, TimeUnit.MILLISECONDS, 4);
+    CountDownLatch early = new CountDownLatch(1);
+    CountDownLatch late = new CountDownLatch(1);
+    timer.schedule(late::countDown, 150, TimeUnit.MILLISECONDS);
+    timer.schedule(early::countDown, 20, TimeUnit.MILLISECONDS);
+    assertTrue(early.await(5, TimeUnit.SECONDS), "Short timeout did not expire");
+    assertEquals(1, late.getCount(), "Long timeout expired a round early");
+    assertTrue(late.await(5, TimeUnit.SECONDS), "Long timeout did not expire");
+    timer.stop();
+  }
+}
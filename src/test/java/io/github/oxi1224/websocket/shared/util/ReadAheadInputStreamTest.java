@@ -0,0 +1,77 @@
+package io.github.oxi1224.websocket.shared.util;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.junit.jupiter.api.Test;
+
+import io.github.oxi1224.websocket.core.DataReader;
+import io.github.oxi1224.websocket.core.DataWriter;
+import io.github.oxi1224.websocket.core.Opcode;
+import io.github.oxi1224.websocket.shared.exceptions.UnexpectedFrameException;
+
+class ReadAheadInputStreamTest {
+  @Test public void testShortReads() throws IOException, UnexpectedFrameException {
+    byte[] large = new byte[100000];
+    for (int i = 0; i < large.length; i++) large[i] = (byte)i;
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    DataWriter writer = new DataWriter(out);
+    writer.setMasking(true);
+    writer.write(true, Opcode.BINARY, large);
+    writer.write(true, Opcode.TEXT, "small");
+
+    // Hands out at most 7 bytes per call, splitting headers and payloads
+    CountingInputStream raw = new CountingInputStream(out.toByteArray(), 7);
+    DataReader reader = new DataReader(new ReadAheadInputStream(raw, 64));
+    reader.read();
+    assertArrayEquals(large, reader.getBytePayload(), "Payload read with short reads is wrong");
+    reader.read();
+    assertEquals("small", reader.getPayload(), "Message after the large one is wrong");
+  }
+
+  @Test public void testReadsAhead() throws IOException, UnexpectedFrameException {
+    int messages = 100;
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    DataWriter writer = new DataWriter(out);
+    writer.setMasking(true);
+    for (int i = 0; i < messages; i++) writer.write(true, Opcode.TEXT, "message " + i);
+
+    CountingInputStream raw = new CountingInputStream(out.toByteArray(), Integer.MAX_VALUE);
+    DataReader reader = new DataReader(new ReadAheadInputStream(raw));
+    for (int i = 0; i < messages; i++) {
+      reader.read();
+      assertEquals("message " + i, reader.getPayload(), "Wrong payload");
+    }
+    assertEquals(1, raw.reads, "Buffered messages were not read at once");
+  }
+
+  /**
+   * Counts the calls reaching the socket and returns at most a given amount of bytes per call
+   */
+  private static class CountingInputStream extends InputStream {
+    private final ByteArrayInputStream in;
+    private final int maxRead;
+    int reads = 0;
+
+    CountingInputStream(byte[] data, int maxRead) {
+      this.in = new ByteArrayInputStream(data);
+      this.maxRead = maxRead;
+    }
+
+    @Override
+    public int read() {
+      reads++;
+      return in.read();
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) {
+      reads++;
+      return in.read(b, off, Math.min(len, maxRead));
+    }
+  }
+}